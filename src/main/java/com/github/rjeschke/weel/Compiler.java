@@ -20,6 +20,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 
@@ -60,6 +61,14 @@ final class Compiler
     private final HashMap<String, Integer> mapFunctionsExact = new HashMap<String, Integer>();
     /** Name to (private) function index mapping. */
     private final HashMap<String, Integer> mapFunctions = new HashMap<String, Integer>();
+    /** Functions redefining existing functions (dynamic linking). */
+    private final ArrayList<WeelFunction> redefinitions = new ArrayList<WeelFunction>();
+    /** Flag indicating that code generation is deferred to generate(). */
+    private boolean deferred = false;
+    /** Closed blocks waiting for code generation. */
+    private final ArrayList<WeelCode> pending = new ArrayList<WeelCode>();
+    /** The generated class. */
+    private byte[] code;
 
     /**
      * Constructor.
@@ -104,15 +113,51 @@ final class Compiler
         this.compile();
     }
 
+    /**
+     * Parses the given input String, but defers optimization and code
+     * generation to {@link #generate()}.
+     * 
+     * <p>
+     * All functions, globals and privates get registered while parsing, so
+     * the next input may be parsed right away. {@link #generate()} only
+     * touches this compiler's code and may run on another thread.
+     * </p>
+     * 
+     * @param input
+     *            The input String.
+     * @param filename
+     *            The filename used in error messages.
+     * @see Weel#compileAll(java.util.List, java.util.List,
+     *      java.util.concurrent.ExecutorService)
+     */
+    void parse(final String input, final String filename)
+    {
+        this.tokenizer = new Tokenizer(new StringReader(input), filename);
+        this.deferred = true;
+        this.parse();
+    }
+
     /**
      * Main compile method.
      */
     private void compile()
+    {
+        this.parse();
+        this.generate();
+        this.load();
+        this.link();
+    }
+
+    /**
+     * Parses the input.
+     */
+    private void parse()
     {
         if (this.used)
         {
             throw new WeelException("Trying to reuse a compiler instance.");
         }
+        this.used = true;
         this.initialize();
 
         this.tokenizer.next();
@@ -125,15 +170,42 @@ final class Compiler
             throw new WeelException("Open block: " + this.scope.type.toString());
         }
 
-        this.scope.block.closeBlock(this.weel.debugMode, this.weel.dumpCode);
+        this.closeCode(this.block);
+    }
 
-        this.blockToBytecode(this.block);
+    /**
+     * Optimizes all deferred blocks and creates the class.
+     */
+    void generate()
+    {
+        for (final WeelCode b : this.pending)
+        {
+            this.writeCode(b);
+        }
+        this.pending.clear();
+        this.code = this.classWriter.build();
+    }
 
-        this.weel.classLoader.addClass(this.classWriter);
+    /**
+     * Loads the created class.
+     */
+    void load()
+    {
+        this.weel.classLoader.addClass(this.classWriter.className, this.code);
+    }
 
+    /**
+     * Initializes the new functions and applies redefinitions. All functions
+     * known to the Weel must be loaded.
+     */
+    void link()
+    {
         this.weel.initAllInvokers();
 
-        this.used = true;
+        for (final WeelFunction func : this.redefinitions)
+        {
+            this.weel.functions.get(func.index).redefine(this.weel, func);
+        }
     }
 
     /**
@@ -186,16 +258,15 @@ final class Compiler
             this.syntaxError();
         }
 
-        this.scope.block.closeBlock(this.weel.debugMode, this.weel.dumpCode);
-
-        this.blockToBytecode(this.block);
+        this.closeCode(this.block);
 
         final WeelLoader loader = this.lastFunction.loader = new WeelLoader(
                 this.weel.classLoader);
 
         loader.addClass(this.classWriter);
 
-        this.lastFunction.invoker = WeelInvokerFactory.create();
+        this.lastFunction.invoker = WeelInvokerFactory.create(this.weel,
+                this.lastFunction);
         this.lastFunction.invoker.initialize(this.weel, this.lastFunction);
 
         this.used = true;
@@ -211,8 +282,17 @@ final class Compiler
         this.classWriter = new JvmClassWriter(
                 "com.github.rjeschke.weel.scripts.Script"
                         + Weel.scriptCounter.getAndIncrement());
+        if (this.weel.dynamicLinking)
+        {
+            this.classWriter.enableInvokeDynamic();
+        }
 
-        this.weel.scriptClasses.add(this.classWriter.className);
+        // Runtime compiled classes live in their own class loader and get
+        // unloaded with their function
+        if (!this.runtimeCompile)
+        {
+            this.weel.scriptClasses.add(this.classWriter.className);
+        }
 
         final Scope s = new Scope(this.weel, ScopeType.STATIC, this);
         s.block = new WeelCode(this.weel);
@@ -556,8 +636,9 @@ final class Compiler
                 this.checkToken(Token.BRACE_CLOSE);
                 this.tokenizer.next();
 
-                this.block.add(new InstrSpecialCall(name, paramc, getContext
-                        || this.wouldNeedReturnValue()));
+                this.block.add(new InstrSpecialCall(name, this.weel
+                        .getTypeFunctionSlot(name + "#" + (paramc + 1)),
+                        paramc, getContext || this.wouldNeedReturnValue()));
 
                 oop = first = false;
                 expr = ExpressionType.FUNCTION;
@@ -629,7 +710,8 @@ final class Compiler
                                         + paramc + ")"));
                     }
 
-                    this.block.add(new InstrCall(func));
+                    this.block.add(new InstrCall(func, this.weel.functions
+                            .get(func.index) == func));
 
                     if (getContext || this.wouldNeedReturnValue())
                     {
@@ -1708,6 +1790,7 @@ final class Compiler
         this.block = this.scope.block = new WeelCode(this.weel);
         this.block.source = this.tokenizer.error("");
         this.block.isAnonymousFunction = anonymous;
+        this.block.isRuntimeCompiled = this.runtimeCompile;
 
         final WeelFunction func = this.block.function = new WeelFunction();
         func.returnsValue = this.tokenizer.token == Token.RESERVED
@@ -1781,13 +1864,21 @@ final class Compiler
         }
         func.arguments = paramc;
 
-        if (this.findFunction(func.name, func.arguments) != null)
+        final WeelFunction existing = this.findFunction(func.name,
+                func.arguments);
+        if (existing != null)
         {
-            throw new WeelException(this.tokenizer.error("Duplicate function: "
-                    + func));
+            if (!this.canRedefine(existing, anonymous || isPrivate))
+            {
+                throw new WeelException(this.tokenizer
+                        .error("Duplicate function: " + func));
+            }
+            // Compile against the existing function, it gets updated after
+            // our class is loaded
+            func.index = existing.index;
+            this.redefinitions.add(func);
         }
-
-        if (!this.runtimeCompile)
+        else if (!this.runtimeCompile)
         {
             final int fi = this.weel.addFunction(func.name + "#"
                     + func.arguments, func, !(anonymous || isPrivate));
@@ -1801,6 +1892,28 @@ final class Compiler
         this.block.isAlternateSyntax = alternate;
     }
 
+    /**
+     * Checks if the given function may get redefined by the function we're
+     * currently declaring.
+     * 
+     * @param existing
+     *            The existing function.
+     * @param isHidden
+     *            Is the new function anonymous or private?
+     * @return <code>true</code> if so.
+     * @see Weel#setDynamicLinking(boolean)
+     */
+    private boolean canRedefine(final WeelFunction existing,
+            final boolean isHidden)
+    {
+        // Only public script functions from earlier compilations
+        return this.weel.dynamicLinking && !isHidden && !this.runtimeCompile
+                && existing.clazz != null
+                && !existing.clazz.equals(this.classWriter.className)
+                && this.weel.scriptClasses.contains(existing.clazz)
+                && this.weel.findFunction(existing.name, existing.arguments) == existing;
+    }
+
     /**
      * Closes a function.
      */
@@ -1816,6 +1929,13 @@ final class Compiler
             func.returnsValue = true;
         }
 
+        if (this.redefinitions.contains(func)
+                && this.weel.functions.get(func.index).returnsValue != func.returnsValue)
+        {
+            throw new WeelException(this.tokenizer.error("Can't redefine "
+                    + this.weel.functions.get(func.index) + " as " + func));
+        }
+
         if (this.scope.breakLabel != -1)
         {
             this.block.add(new InstrLabel(this.scope.breakLabel));
@@ -1831,9 +1951,7 @@ final class Compiler
             }
         }
 
-        this.block.closeBlock(this.weel.debugMode, this.weel.dumpCode);
-
-        this.blockToBytecode(this.block);
+        this.closeCode(this.block);
 
         this.removeScope();
         if (anonymous)
@@ -1842,7 +1960,8 @@ final class Compiler
             if (!this.runtimeCompile)
             {
                 if (func.envLocals != null)
-                    this.block.add(new InstrCreateClosure(func.index));
+                    this.block.add(new InstrCreateClosure(func.index,
+                            func.envLocals));
                 else
                     this.block.add(new InstrLoadFunc(func.index));
             }
@@ -2332,6 +2451,71 @@ final class Compiler
         this.block.add(new InstrEndAssert());
     }
 
+    /**
+     * Names the method of the given block and optimizes and writes it, unless
+     * code generation is deferred.
+     * 
+     * @param b
+     *            The closed block.
+     */
+    private void closeCode(final WeelCode b)
+    {
+        if (b.function != null)
+        {
+            // Named right away, later code may call it
+            b.function.clazz = this.classWriter.className;
+            b.function.javaName = b.isAnonymousFunction ? "$anon$"
+                    + this.anonCounter++ : b.function.name + "$"
+                    + b.function.arguments;
+
+            if (this.weel.lazyCompilation && !b.isAnonymousFunction
+                    && !this.runtimeCompile)
+            {
+                // Check it now, compile it on the first call
+                b.validate(this.weel.debugMode);
+                b.isLazy = true;
+                b.function.lazy = new WeelLazyCode(this.weel, b,
+                        this.weel.debugMode, this.weel.dynamicLinking);
+            }
+        }
+        if (this.deferred)
+        {
+            this.pending.add(b);
+        }
+        else
+        {
+            this.writeCode(b);
+        }
+    }
+
+    /**
+     * Optimizes and writes the given block, or writes the stub of a lazily
+     * compiled function.
+     * 
+     * @param b
+     *            The closed block.
+     */
+    private void writeCode(final WeelCode b)
+    {
+        if (b.isLazy)
+        {
+            final JvmMethodWriter mw = this.classWriter.createMethod(
+                    b.function.javaName,
+                    "(Lcom/github/rjeschke/weel/WeelRuntime;)V");
+            mw.aload(0);
+            mw.ldc(b.function.index);
+            mw.invokeVirtual("com.github.rjeschke.weel.WeelRuntime",
+                    "lazyCall", "(I)V");
+            mw.addOp(JvmOp.RETURN);
+            mw.resolveLabels();
+        }
+        else
+        {
+            b.closeBlock(this.weel.debugMode, this.weel.dumpCode);
+            this.blockToBytecode(b);
+        }
+    }
+
     private void blockToBytecode(final WeelCode b)
     {
         JvmMethodWriter mw;
@@ -2346,12 +2530,18 @@ final class Compiler
         }
         else
         {
-            b.function.clazz = this.classWriter.className;
-            b.function.javaName = b.isAnonymousFunction ? "$anon$"
-                    + this.anonCounter++ : b.function.name + "$"
-                    + b.function.arguments;
             mw = this.classWriter.createMethod(b.function.javaName,
                     "(Lcom/github/rjeschke/weel/WeelRuntime;)V");
+            if (b.profile != null)
+            {
+                b.profile.clazz = b.function.clazz;
+                b.profile.javaName = b.function.javaName;
+            }
+        }
+
+        if (b.numericLocals > 0)
+        {
+            mw.setDoubleLocals(b.numericLocals);
         }
 
         for (int i = 0; i < b.instrs.size(); i++)
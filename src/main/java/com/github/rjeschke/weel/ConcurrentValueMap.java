@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe Weel map for state shared between threads.
+ * 
+ * <p>
+ * Reads don't lock, writes lock one of a fixed number of stripes selected by
+ * the key, which makes {@link #getOrSet(Value, Value)},
+ * {@link #increment(Value, double)} and
+ * {@link #compute(WeelRuntime, Value, WeelFunction)} atomic. Iteration is
+ * weakly consistent and doesn't follow insertion order. Maps stored inside a
+ * concurrent map are not thread-safe themselves.
+ * </p>
+ * 
+ * @author René Jeschke <rene_jeschke@yahoo.de>
+ */
+public final class ConcurrentValueMap extends ValueMap
+{
+    /** Number of lock stripes, must be a power of two. */
+    private final static int STRIPES = 32;
+    /** The entries, keys are Integers or Strings. Values never change. */
+    private final ConcurrentHashMap<Object, Value> map = new ConcurrentHashMap<Object, Value>();
+    /** The lock stripes. */
+    private final Object[] locks = new Object[STRIPES];
+    /** The next key used by {@link #append(Value)}. */
+    private final AtomicInteger nextKey = new AtomicInteger();
+
+    /**
+     * Creates a new ConcurrentValueMap.
+     */
+    public ConcurrentValueMap()
+    {
+        // Keeps the runtime's fast paths away
+        this.ordered = false;
+        this.numbers = null;
+        for (int i = 0; i < STRIPES; i++)
+        {
+            this.locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Creates a new ConcurrentValueMap containing the entries of the given
+     * map.
+     * 
+     * @param map
+     *            The map.
+     */
+    public ConcurrentValueMap(final ValueMap map)
+    {
+        this();
+        final Value k = new Value();
+        final Value v = new Value();
+        for (final ValueMapIterator i = map.createIterator(); i.next(k, v);)
+        {
+            this.set(k, v);
+        }
+    }
+
+    /**
+     * Converts a Value into a key.
+     * 
+     * @param index
+     *            The Value.
+     * @return The key.
+     * @throws WeelException
+     *             If the index is invalid.
+     */
+    private static Object key(final Value index)
+    {
+        if (index.type == ValueType.NUMBER)
+            return Integer.valueOf((int) index.number);
+        if (index.type == ValueType.STRING)
+            return index.object;
+        throw new WeelException("Illegal map index type: " + index.type);
+    }
+
+    /**
+     * Gets the lock stripe of the given key.
+     * 
+     * @param key
+     *            The key.
+     * @return The lock.
+     */
+    private Object lock(final Object key)
+    {
+        final int h = key.hashCode();
+        return this.locks[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Stores a value, the lock of the key must be held.
+     * 
+     * @param key
+     *            The key.
+     * @param value
+     *            The value, must not be changed afterwards.
+     */
+    private void store(final Object key, final Value value)
+    {
+        this.map.put(key, value);
+        if (key instanceof Integer)
+        {
+            final int next = (Integer) key + 1;
+            for (;;)
+            {
+                final int n = this.nextKey.get();
+                if (n >= next || this.nextKey.compareAndSet(n, next))
+                    break;
+            }
+        }
+    }
+
+    /** @see com.github.rjeschke.weel.ValueMap#size() */
+    @Override
+    public int size()
+    {
+        return this.map.size();
+    }
+
+    /** @see com.github.rjeschke.weel.ValueMap#get(int, Value) */
+    @Override
+    public Value get(final int index, final Value out)
+    {
+        final Value v = this.map.get(Integer.valueOf(index));
+        if (v != null)
+            v.copyTo(out);
+        else
+            out.setNull();
+        return out;
+    }
+
+    /** @see com.github.rjeschke.weel.ValueMap#get(String, Value) */
+    @Override
+    public Value get(final String index, final Value out)
+    {
+        final Value v = this.map.get(index);
+        if (v != null)
+            v.copyTo(out);
+        else
+            out.setNull();
+        return out;
+    }
+
+    /** @see com.github.rjeschke.weel.ValueMap#hasKey(Value) */
+    @Override
+    public boolean hasKey(final Value key)
+    {
+        return this.map.containsKey(key(key));
+    }
+
+    /** @see com.github.rjeschke.weel.ValueMap#set(String, Value) */
+    @Override
+    public void set(final String index, final Value value)
+    {
+        synchronized (this.lock(index))
+        {
+            this.store(index, value.clone());
+        }
+    }
+
+    /** @see com.github.rjeschke.weel.ValueMap#set(int, Value) */
+    @Override
+    public void set(final int index, final Value value)
+    {
+        final Integer key = Integer.valueOf(index);
+        synchronized (this.lock(key))
+        {
+            this.store(key, value.clone());
+        }
+    }
+
+    /** @see com.github.rjeschke.weel.ValueMap#append(Value) */
+    @Override
+    public void append(final Value value)
+    {
+        this.set(this.nextKey.getAndIncrement(), value);
+    }
+
+    /** @see com.github.rjeschke.weel.ValueMap#remove(Value) */
+    @Override
+    public void remove(final Value index)
+    {
+        final Object key = key(index);
+        synchronized (this.lock(key))
+        {
+            this.map.remove(key);
+        }
+    }
+
+    /** @see com.github.rjeschke.weel.ValueMap#removeLast() */
+    @Override
+    public Value removeLast()
+    {
+        throw new WeelException("Concurrent maps have no last entry");
+    }
+
+    /** @see com.github.rjeschke.weel.ValueMap#reverse() */
+    @Override
+    public ValueMap reverse()
+    {
+        throw new WeelException("Concurrent maps can't be reversed");
+    }
+
+    /** @see com.github.rjeschke.weel.ValueMap#freeze() */
+    @Override
+    public ValueMap freeze()
+    {
+        throw new WeelException("Concurrent maps can't be frozen");
+    }
+
+    /** @see com.github.rjeschke.weel.ValueMap#getOrSet(Value, Value) */
+    @Override
+    public Value getOrSet(final Value key, final Value value)
+    {
+        final Object k = key(key);
+        Value v = this.map.get(k);
+        if (v == null)
+        {
+            synchronized (this.lock(k))
+            {
+                v = this.map.get(k);
+                if (v == null)
+                {
+                    v = value.clone();
+                    this.store(k, v);
+                }
+            }
+        }
+        return v.clone();
+    }
+
+    /** @see com.github.rjeschke.weel.ValueMap#increment(Value, double) */
+    @Override
+    public double increment(final Value key, final double delta)
+    {
+        final Object k = key(key);
+        synchronized (this.lock(k))
+        {
+            final Value v = this.map.get(k);
+            final Value n = v != null ? v.clone() : new Value();
+            final double ret = add(n, delta);
+            this.store(k, n);
+            return ret;
+        }
+    }
+
+    /**
+     * The function must not change other keys of this map.
+     * 
+     * @see com.github.rjeschke.weel.ValueMap#compute(WeelRuntime, Value,
+     *      WeelFunction)
+     */
+    @Override
+    public Value compute(final WeelRuntime runtime, final Value key,
+            final WeelFunction func)
+    {
+        final Object k = key(key);
+        synchronized (this.lock(k))
+        {
+            final Value v = this.map.get(k);
+            final Value n = apply(runtime, func, v != null ? v.clone()
+                    : new Value());
+            if (n.type == ValueType.NULL)
+                this.map.remove(k);
+            else
+                this.store(k, n.clone());
+            return n;
+        }
+    }
+
+    /** @see com.github.rjeschke.weel.ValueMap#clone() */
+    @Override
+    public ValueMap clone()
+    {
+        final ConcurrentValueMap ret = new ConcurrentValueMap();
+        for (final Map.Entry<Object, Value> e : this.map.entrySet())
+        {
+            final Value v = e.getValue();
+            ret.map.put(e.getKey(), v.isMap() ? new Value(v.getMap().clone())
+                    : v);
+        }
+        ret.nextKey.set(this.nextKey.get());
+        return ret;
+    }
+
+    /** @see com.github.rjeschke.weel.ValueMap#cloneShared() */
+    @Override
+    ValueMap cloneShared()
+    {
+        return this.clone();
+    }
+
+    /** @see com.github.rjeschke.weel.ValueMap#last(Value, Value) */
+    @Override
+    boolean last(final Value key, final Value value)
+    {
+        final ValueMapIterator it = this.createIterator();
+        if (!it.next(key, value))
+            return false;
+        while (it.next(key, value))
+        {
+            // Skip to the last entry
+        }
+        return true;
+    }
+
+    /** @see com.github.rjeschke.weel.ValueMap#entries() */
+    @Override
+    Iterator<Map.Entry<Object, Value>> entries()
+    {
+        return this.map.entrySet().iterator();
+    }
+}
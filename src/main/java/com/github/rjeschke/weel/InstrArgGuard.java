@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+class InstrArgGuard implements Instr
+{
+    int args;
+    int mask;
+    int index;
+    
+    public InstrArgGuard(final int args, final int mask, final int index)
+    {
+        this.args = args;
+        this.mask = mask;
+        this.index = index;
+    }
+    
+    /** @see Instr#getType() */
+    @Override
+    public Op getType()
+    {
+        return Op.ARGGUARD;
+    }
+
+    /** @see java.lang.Object#toString() */
+    @Override
+    public String toString()
+    {
+        return "GUARDARGS " + Integer.toBinaryString(this.mask) + " L" + (this.index + 1);
+    }
+
+    /** @see Instr#write(JvmMethodWriter) */
+    @Override
+    public void write(JvmMethodWriter mw)
+    {
+        mw.aload(0);
+        mw.ldc(this.args);
+        mw.ldc(this.mask);
+        mw.invokeVirtual("com.github.rjeschke.weel.WeelRuntime", "checkNumberArguments", "(II)Z");
+        mw.writeJmp(JvmOp.IFEQ, this.index);
+    }
+}
@@ -18,10 +18,13 @@ package com.github.rjeschke.weel;
 class InstrCall implements Instr
 {
     WeelFunction func;
+    /** May this call be dynamically linked? */
+    boolean linkable;
     
-    public InstrCall(final WeelFunction func)
+    public InstrCall(final WeelFunction func, final boolean linkable)
     {
         this.func = func;
+        this.linkable = linkable;
     }
     
     /** @see Instr#getType() */
@@ -43,6 +46,23 @@ class InstrCall implements Instr
     public void write(JvmMethodWriter mw)
     {
         mw.aload(0);
-        mw.invokeStatic(this.func.clazz, this.func.javaName, "(Lcom/github/rjeschke/weel/WeelRuntime;)V");
+        if(this.linkable && mw.classWriter.usesInvokeDynamic())
+        {
+            mw.invokeDynamic("com.github.rjeschke.weel.WeelBootstrap", "bootstrap",
+                    WeelBootstrap.DESCRIPTOR, this.func.index, "call",
+                    "(Lcom/github/rjeschke/weel/WeelRuntime;)V");
+        }
+        else if(this.func.loader != null
+                && !this.func.clazz.equals(mw.classWriter.className))
+        {
+            // Lives in another class loader (e.g. optimized code in tiered
+            // mode) and may not be visible from here
+            mw.ldc(this.func.index);
+            mw.invokeVirtual("com.github.rjeschke.weel.WeelRuntime", "call", "(I)V");
+        }
+        else
+        {
+            mw.invokeStatic(this.func.clazz, this.func.javaName, "(Lcom/github/rjeschke/weel/WeelRuntime;)V");
+        }
     }
 }
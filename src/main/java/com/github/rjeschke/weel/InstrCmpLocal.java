@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+class InstrCmpLocal implements Instr
+{
+    Alu2InstrType type;
+    int index;
+    Value value;
+    
+    public InstrCmpLocal(final Alu2InstrType type, final int index, final Value value)
+    {
+        this.type = type;
+        this.index = index;
+        this.value = value;
+    }
+    
+    /** @see Instr#getType() */
+    @Override
+    public Op getType()
+    {
+        return Op.CMPLOC;
+    }
+
+    /** @see java.lang.Object#toString() */
+    @Override
+    public String toString()
+    {
+        return this.type.toString().toUpperCase() + "LOC #" + this.index + ", " + this.value;
+    }
+
+    /** @see Instr#write(JvmMethodWriter) */
+    @Override
+    public void write(JvmMethodWriter mw)
+    {
+        mw.aload(0);
+        mw.ldc(this.index);
+        final double val = this.value.getNumber(); 
+        final int iVal = (int) val;
+        if (iVal == val)
+        {
+            mw.ldc(iVal);
+            mw.addOp(JvmOp.I2D);
+            mw.add(1);
+        }
+        else
+        {
+            final float check = (float) val;
+            if (Double.compare(check, val) == 0)
+            {
+                mw.ldc(check);
+                mw.addOp(JvmOp.F2D);
+                mw.add(1);
+            }
+            else
+            {
+                mw.ldc(val);
+            }
+        }
+        mw.invokeVirtual("com.github.rjeschke.weel.WeelRuntime", this.type.toString() + "Local", "(ID)Z");
+    }
+}
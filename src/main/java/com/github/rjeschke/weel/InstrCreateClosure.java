@@ -18,10 +18,13 @@ package com.github.rjeschke.weel;
 class InstrCreateClosure implements Instr
 {
     int index;
+    /** Closure environment indices of the function. */
+    final int[] envLocals;
     
-    public InstrCreateClosure(final int index)
+    public InstrCreateClosure(final int index, final int[] envLocals)
     {
         this.index = index;
+        this.envLocals = envLocals;
     }
     
     /** @see Instr#getType() */
@@ -17,6 +17,9 @@ package com.github.rjeschke.weel;
 
 class InstrCreateMap implements Instr
 {
+    /** Frozen map to copy, <code>null</code> for empty maps. */
+    ValueMap constant = null;
+
     /** @see Instr#getType() */
     @Override
     public Op getType()
@@ -28,6 +31,8 @@ class InstrCreateMap implements Instr
     @Override
     public String toString()
     {
+        if (this.constant != null)
+            return "CREATEMAP " + InstrLoad.escape(this.constant.toString());
         return "CREATEMAP";
     }
 
@@ -36,6 +41,92 @@ class InstrCreateMap implements Instr
     public void write(JvmMethodWriter mw)
     {
         mw.aload(0);
-        mw.invokeVirtual("com.github.rjeschke.weel.WeelRuntime", "createMap", "()V");
+        if (this.constant != null)
+        {
+            final ValueMap map = this.constant;
+            mw.getStatic(mw.classWriter.className, mw.classWriter
+                    .createStaticField("Lcom/github/rjeschke/weel/ValueMap;",
+                            new Instr()
+                            {
+                                @Override
+                                public Op getType()
+                                {
+                                    return Op.CREATEMAP;
+                                }
+
+                                @Override
+                                public void write(final JvmMethodWriter w)
+                                {
+                                    writeMap(w, map);
+                                    w.invokeVirtual(
+                                            "com.github.rjeschke.weel.ValueMap",
+                                            "freeze",
+                                            "()Lcom/github/rjeschke/weel/ValueMap;");
+                                }
+                            }), "Lcom/github/rjeschke/weel/ValueMap;");
+            mw.invokeVirtual("com.github.rjeschke.weel.WeelRuntime", "createMap",
+                    "(Lcom/github/rjeschke/weel/ValueMap;)V");
+        }
+        else
+        {
+            mw.invokeVirtual("com.github.rjeschke.weel.WeelRuntime", "createMap", "()V");
+        }
+    }
+
+    /**
+     * Writes code which builds a copy of the given map.
+     * 
+     * @param mw
+     *            The method writer.
+     * @param map
+     *            The map, containing only numbers, strings, nulls and maps.
+     */
+    static void writeMap(final JvmMethodWriter mw, final ValueMap map)
+    {
+        mw.newObject("com.github.rjeschke.weel.ValueMap");
+        mw.dup();
+        mw.invokeSpecial("com.github.rjeschke.weel.ValueMap", "<init>", "()V");
+        final Value k = new Value(), v = new Value();
+        for (final ValueMap.ValueMapIterator it = map.createIterator(); it
+                .next(k, v);)
+        {
+            mw.dup();
+            final String key;
+            if (k.type == ValueType.NUMBER)
+            {
+                mw.ldc((int) k.number);
+                key = "I";
+            }
+            else
+            {
+                mw.ldc((String) k.object);
+                key = "Ljava/lang/String;";
+            }
+            mw.newObject("com.github.rjeschke.weel.Value");
+            mw.dup();
+            final String arg;
+            switch (v.type)
+            {
+            case NUMBER:
+                mw.ldc(v.number);
+                arg = "D";
+                break;
+            case STRING:
+                mw.ldc((String) v.object);
+                arg = "Ljava/lang/String;";
+                break;
+            case MAP:
+                writeMap(mw, (ValueMap) v.object);
+                arg = "Lcom/github/rjeschke/weel/ValueMap;";
+                break;
+            default:
+                arg = "";
+                break;
+            }
+            mw.invokeSpecial("com.github.rjeschke.weel.Value", "<init>", "("
+                    + arg + ")V");
+            mw.invokeVirtual("com.github.rjeschke.weel.ValueMap", "set", "("
+                    + key + "Lcom/github/rjeschke/weel/Value;)V");
+        }
     }
 }
@@ -50,7 +50,14 @@ class InstrGetMap implements Instr
             else
             {
                 mw.ldc((String)this.key.object);
-                mw.invokeVirtual("com.github.rjeschke.weel.WeelRuntime", "getMap", "(Ljava/lang/String;)V");
+                final int site = mw.classWriter
+                        .addStaticArrayElement("com.github.rjeschke.weel.WeelMapSite");
+                mw.getStatic(mw.classWriter.className, mw.classWriter
+                        .getStaticArray("com.github.rjeschke.weel.WeelMapSite"),
+                        "[Lcom/github/rjeschke/weel/WeelMapSite;");
+                mw.ldc(site);
+                mw.invokeVirtual("com.github.rjeschke.weel.WeelRuntime", "getMap",
+                        "(Ljava/lang/String;[Lcom/github/rjeschke/weel/WeelMapSite;I)V");
             }
         }
         else
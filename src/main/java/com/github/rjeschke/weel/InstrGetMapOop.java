@@ -43,7 +43,14 @@ class InstrGetMapOop implements Instr
         if(this.key != null)
         {
             mw.ldc(this.key.getString());
-            mw.invokeVirtual("com.github.rjeschke.weel.WeelRuntime", "getMapOop", "(Ljava/lang/String;)V");
+            final int site = mw.classWriter
+                    .addStaticArrayElement("com.github.rjeschke.weel.WeelMapSite");
+            mw.getStatic(mw.classWriter.className, mw.classWriter
+                    .getStaticArray("com.github.rjeschke.weel.WeelMapSite"),
+                    "[Lcom/github/rjeschke/weel/WeelMapSite;");
+            mw.ldc(site);
+            mw.invokeVirtual("com.github.rjeschke.weel.WeelRuntime", "getMapOop",
+                    "(Ljava/lang/String;[Lcom/github/rjeschke/weel/WeelMapSite;I)V");
         }
         else
         {
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+class InstrIncLocal implements Instr
+{
+    int index;
+    double value;
+    
+    public InstrIncLocal(final int index, final double value)
+    {
+        this.index = index;
+        this.value = value;
+    }
+    
+    /** @see Instr#getType() */
+    @Override
+    public Op getType()
+    {
+        return Op.INCLOC;
+    }
+
+    /** @see java.lang.Object#toString() */
+    @Override
+    public String toString()
+    {
+        return "INCLOC #" + this.index + ", " + new Value(this.value);
+    }
+
+    /** @see Instr#write(JvmMethodWriter) */
+    @Override
+    public void write(JvmMethodWriter mw)
+    {
+        mw.aload(0);
+        mw.ldc(this.index);
+        final int iVal = (int) this.value;
+        if (iVal == this.value)
+        {
+            mw.ldc(iVal);
+            mw.addOp(JvmOp.I2D);
+            mw.add(1);
+        }
+        else
+        {
+            mw.ldc(this.value);
+        }
+        mw.invokeVirtual("com.github.rjeschke.weel.WeelRuntime", "incLocal", "(ID)V");
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+class InstrNumAlu implements Instr
+{
+    Alu2InstrType type;
+    
+    public InstrNumAlu(final Alu2InstrType type)
+    {
+        this.type = type;
+    }
+    
+    /** @see Instr#getType() */
+    @Override
+    public Op getType()
+    {
+        return Op.NUMALU;
+    }
+
+    /** @see java.lang.Object#toString() */
+    @Override
+    public String toString()
+    {
+        return "N" + this.type.toString().toUpperCase();
+    }
+
+    /** @see Instr#write(JvmMethodWriter) */
+    @Override
+    public void write(JvmMethodWriter mw)
+    {
+        switch(this.type)
+        {
+        case add:
+            mw.addOp(JvmOp.DADD);
+            break;
+        case sub:
+            mw.addOp(JvmOp.DSUB);
+            break;
+        case mul:
+            mw.addOp(JvmOp.DMUL);
+            break;
+        case div:
+            mw.addOp(JvmOp.DDIV);
+            break;
+        case mod:
+            mw.addOp(JvmOp.DREM);
+            break;
+        case pow:
+            mw.invokeStatic("java.lang.Math", "pow", "(DD)D");
+            return;
+        case and:
+        case or:
+        case xor:
+            // a, b -> (int)b, a -> (int)b, (int)a
+            mw.addOp(JvmOp.D2I);
+            mw.addOp(JvmOp.DUP_X2);
+            mw.addOp(JvmOp.POP);
+            mw.addOp(JvmOp.D2I);
+            mw.addOp(this.type == Alu2InstrType.and ? JvmOp.IAND
+                    : this.type == Alu2InstrType.or ? JvmOp.IOR : JvmOp.IXOR);
+            mw.addOp(JvmOp.I2D);
+            break;
+        case shl:
+        case shr:
+        case ushr:
+            mw.addOp(JvmOp.D2I);
+            mw.addOp(JvmOp.DUP_X2);
+            mw.addOp(JvmOp.POP);
+            mw.addOp(JvmOp.D2I);
+            mw.addOp(JvmOp.SWAP);
+            mw.addOp(this.type == Alu2InstrType.shl ? JvmOp.ISHL
+                    : this.type == Alu2InstrType.shr ? JvmOp.ISHR
+                            : JvmOp.IUSHR);
+            mw.addOp(JvmOp.I2D);
+            break;
+        default:
+            throw new WeelException("Illegal numeric operation: " + this.type);
+        }
+        mw.add(-2);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+class InstrNumCmpJmp implements Instr
+{
+    Alu2InstrType type;
+    Value value;
+    boolean jumpIfTrue;
+    int index;
+    
+    public InstrNumCmpJmp(final InstrCmpPop cmp, final boolean jumpIfTrue,
+            final int index)
+    {
+        this.type = cmp.type;
+        this.value = cmp.value;
+        this.jumpIfTrue = jumpIfTrue;
+        this.index = index;
+    }
+    
+    /** @see Instr#getType() */
+    @Override
+    public Op getType()
+    {
+        return Op.NUMCMPJMP;
+    }
+
+    /** @see java.lang.Object#toString() */
+    @Override
+    public String toString()
+    {
+        return "N" + this.type.toString().toUpperCase()
+                + (this.value != null ? " " + this.value : "")
+                + (this.jumpIfTrue ? " IFNE L" : " IFEQ L") + (this.index + 1);
+    }
+
+    /** @see Instr#write(JvmMethodWriter) */
+    @Override
+    public void write(JvmMethodWriter mw)
+    {
+        if(this.value != null)
+        {
+            mw.ldc(this.value.getNumber());
+        }
+        // Two operand (in)equality uses '==', everything else compares
+        // like Double.compare(), see WeelRuntime#cmpEqual() and cmp()
+        if(this.value == null
+                && (this.type == Alu2InstrType.cmpEq || this.type == Alu2InstrType.cmpNe))
+        {
+            mw.addOp(JvmOp.DCMPL);
+            mw.add(-3);
+        }
+        else
+        {
+            mw.invokeStatic("java.lang.Double", "compare", "(DD)I");
+        }
+        final boolean t = this.jumpIfTrue;
+        final int op;
+        switch(this.type)
+        {
+        case cmpEq:
+            op = t ? JvmOp.IFEQ : JvmOp.IFNE;
+            break;
+        case cmpNe:
+            op = t ? JvmOp.IFNE : JvmOp.IFEQ;
+            break;
+        case cmpGt:
+            op = t ? JvmOp.IFGT : JvmOp.IFLE;
+            break;
+        case cmpGe:
+            op = t ? JvmOp.IFGE : JvmOp.IFLT;
+            break;
+        case cmpLt:
+            op = t ? JvmOp.IFLT : JvmOp.IFGE;
+            break;
+        case cmpLe:
+            op = t ? JvmOp.IFLE : JvmOp.IFGT;
+            break;
+        default:
+            throw new WeelException("Illegal numeric comparison: " + this.type);
+        }
+        mw.writeJmp(op, this.index);
+    }
+}
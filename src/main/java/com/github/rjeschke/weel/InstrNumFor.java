@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+class InstrNumFor implements Instr
+{
+    int slot;
+    boolean end;
+    
+    public InstrNumFor(final int slot, final boolean end)
+    {
+        this.slot = slot;
+        this.end = end;
+    }
+    
+    /** @see Instr#getType() */
+    @Override
+    public Op getType()
+    {
+        return Op.NUMFOR;
+    }
+
+    /** @see java.lang.Object#toString() */
+    @Override
+    public String toString()
+    {
+        return (this.end ? "NENDFOR $" : "NBEGINFOR $") + this.slot;
+    }
+
+    /** @see Instr#write(JvmMethodWriter) */
+    @Override
+    public void write(JvmMethodWriter mw)
+    {
+        if(this.end)
+        {
+            mw.dload(this.slot);
+            mw.aload(0);
+            mw.invokeVirtual("com.github.rjeschke.weel.WeelRuntime", "getForLoopStep", "()D");
+            mw.addOp(JvmOp.DADD);
+            mw.add(-2);
+            mw.dstore(this.slot);
+        }
+        mw.aload(0);
+        mw.dload(this.slot);
+        mw.invokeVirtual("com.github.rjeschke.weel.WeelRuntime", "testForLoop", "(D)Z");
+    }
+}
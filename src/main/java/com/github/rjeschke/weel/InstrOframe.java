@@ -19,11 +19,13 @@ class InstrOframe implements Instr
 {
     int args;
     int locals;
+    int maxStack;
     
-    public InstrOframe(final int args, final int locals)
+    public InstrOframe(final int args, final int locals, final int maxStack)
     {
         this.args = args;
         this.locals = locals;
+        this.maxStack = maxStack;
     }
     
     /** @see Instr#getType() */
@@ -37,7 +39,7 @@ class InstrOframe implements Instr
     @Override
     public String toString()
     {
-        return "OFRAME(" + this.args + ", " + this.locals + ")";
+        return "OFRAME(" + this.args + ", " + this.locals + ", " + this.maxStack + ")";
     }
 
     /** @see Instr#write(JvmMethodWriter) */
@@ -47,6 +49,7 @@ class InstrOframe implements Instr
         mw.aload(0);
         mw.ldc(this.args);
         mw.ldc(this.locals);
-        mw.invokeVirtual("com.github.rjeschke.weel.WeelRuntime", "openFrame", "(II)V");
+        mw.ldc(this.maxStack);
+        mw.invokeVirtual("com.github.rjeschke.weel.WeelRuntime", "openFrame", "(III)V");
     }
 }
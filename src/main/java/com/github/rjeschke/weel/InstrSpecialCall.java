@@ -18,12 +18,14 @@ package com.github.rjeschke.weel;
 class InstrSpecialCall implements Instr
 {
     String name;
+    int slot;
     int paramc;
     boolean needsReturn;
     
-    public InstrSpecialCall(final String name, final int paramc, final boolean needsReturn)
+    public InstrSpecialCall(final String name, final int slot, final int paramc, final boolean needsReturn)
     {
         this.name = name;
+        this.slot = slot;
         this.paramc = paramc;
         this.needsReturn = needsReturn;
     }
@@ -47,9 +49,9 @@ class InstrSpecialCall implements Instr
     public void write(JvmMethodWriter mw)
     {
         mw.aload(0);
-        mw.ldc(this.name + "#" + (this.paramc + 1));
+        mw.ldc(this.slot);
         mw.ldc(this.paramc);
         mw.ldc(this.needsReturn);
-        mw.invokeVirtual("com.github.rjeschke.weel.WeelRuntime", "specialCall", "(Ljava/lang/String;IZ)V");
+        mw.invokeVirtual("com.github.rjeschke.weel.WeelRuntime", "specialCall", "(IIZ)V");
     }
 }
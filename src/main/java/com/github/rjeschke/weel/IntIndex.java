@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash table mapping integer keys to entry indices.
+ * 
+ * <p>
+ * Uses linear probing on two parallel primitive arrays, so neither keys nor
+ * indices get boxed. Indices must be positive or zero.
+ * </p>
+ * 
+ * @author René Jeschke <rene_jeschke@yahoo.de>
+ */
+final class IntIndex
+{
+    /** Initial capacity, must be a power of two. */
+    private final static int INITIAL_SIZE = 16;
+    /** The keys. */
+    private int[] keys;
+    /** The indices, <code>-1</code> marks a free slot. */
+    private int[] values;
+    /** Number of used slots. */
+    private int size = 0;
+
+    /**
+     * Constructor.
+     */
+    public IntIndex()
+    {
+        this(INITIAL_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param expected
+     *            Expected number of keys.
+     */
+    public IntIndex(final int expected)
+    {
+        int cap = INITIAL_SIZE;
+        while (cap * 3 < expected * 4)
+            cap <<= 1;
+        this.keys = new int[cap];
+        this.values = new int[cap];
+        Arrays.fill(this.values, -1);
+    }
+
+    /**
+     * Copy constructor.
+     * 
+     * @param index
+     *            The index to copy.
+     */
+    public IntIndex(final IntIndex index)
+    {
+        this.keys = index.keys.clone();
+        this.values = index.values.clone();
+        this.size = index.size;
+    }
+
+    /**
+     * Gets the number of keys.
+     * 
+     * @return The size.
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * Spreads the bits of the given key.
+     * 
+     * @param key
+     *            The key.
+     * @return The hash value.
+     */
+    private static int hash(final int key)
+    {
+        final int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Gets the slot of the given key.
+     * 
+     * @param key
+     *            The key.
+     * @return The slot, either the key's or the free one it would go into.
+     */
+    private int find(final int key)
+    {
+        final int mask = this.keys.length - 1;
+        int i = hash(key) & mask;
+        while (this.values[i] != -1 && this.keys[i] != key)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    /**
+     * Gets the index mapped to the given key.
+     * 
+     * @param key
+     *            The key.
+     * @return The index or <code>-1</code> if there is none.
+     */
+    public int get(final int key)
+    {
+        return this.values[this.find(key)];
+    }
+
+    /**
+     * Maps the given key to the given index.
+     * 
+     * @param key
+     *            The key.
+     * @param index
+     *            The index.
+     */
+    public void put(final int key, final int index)
+    {
+        int i = this.find(key);
+        if (this.values[i] == -1)
+        {
+            if ((this.size + 1) * 4 > this.keys.length * 3)
+            {
+                this.rehash(this.keys.length << 1);
+                i = this.find(key);
+            }
+            this.keys[i] = key;
+            this.size++;
+        }
+        this.values[i] = index;
+    }
+
+    /**
+     * Removes the given key.
+     * 
+     * @param key
+     *            The key.
+     * @return The index the key was mapped to or <code>-1</code>.
+     */
+    public int remove(final int key)
+    {
+        final int mask = this.keys.length - 1;
+        int i = this.find(key);
+        final int ret = this.values[i];
+        if (ret == -1)
+            return -1;
+        // Shift following entries of the probe sequence back
+        for (int j = (i + 1) & mask; this.values[j] != -1; j = (j + 1) & mask)
+        {
+            final int home = hash(this.keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask))
+            {
+                this.keys[i] = this.keys[j];
+                this.values[i] = this.values[j];
+                i = j;
+            }
+        }
+        this.values[i] = -1;
+        this.size--;
+        return ret;
+    }
+
+    /**
+     * Decrements all indices greater than the given one.
+     * 
+     * @param index
+     *            The index.
+     */
+    public void shiftDown(final int index)
+    {
+        final int[] v = this.values;
+        for (int i = 0; i < v.length; i++)
+        {
+            if (v[i] > index)
+                v[i]--;
+        }
+    }
+
+    /**
+     * Removes all keys.
+     */
+    public void clear()
+    {
+        Arrays.fill(this.values, -1);
+        this.size = 0;
+    }
+
+    /**
+     * Resizes the table.
+     * 
+     * @param capacity
+     *            The new capacity.
+     */
+    private void rehash(final int capacity)
+    {
+        final int[] k = this.keys, v = this.values;
+        this.keys = new int[capacity];
+        this.values = new int[capacity];
+        Arrays.fill(this.values, -1);
+        for (int i = 0; i < k.length; i++)
+        {
+            if (v[i] != -1)
+            {
+                final int j = this.find(k[i]);
+                this.keys[j] = k[i];
+                this.values[j] = v[i];
+            }
+        }
+    }
+}
@@ -29,12 +29,31 @@ final class JvmClassWriter
 {
     /** .class file version 50.0 */
     private final static int CLASS_VERSION = 0x00320000;
+    /** .class file version 51.0, needed for invokedynamic */
+    private final static int CLASS_VERSION_INDY = 0x00330000;
     /** Constant pool. */
     private ArrayList<JvmConstant> constants = new ArrayList<JvmConstant>();
     /** Constant pool hashmap. */
     private HashMap<JvmConstant, Integer> mapConstants = new HashMap<JvmConstant, Integer>();
     /** Methods. */
     private ArrayList<JvmMethodWriter> methods = new ArrayList<JvmMethodWriter>();
+    /** Fields (access, name index, descriptor index). */
+    private ArrayList<int[]> fields = new ArrayList<int[]>();
+    /**
+     * Static fields to initialize in &lt;clinit&gt; (field name, descriptor,
+     * array size or initializing Instr).
+     */
+    private ArrayList<Object[]> staticInstances = new ArrayList<Object[]>();
+    /** Static arrays by element class (field name, descriptor, size). */
+    private HashMap<String, Object[]> staticArrays = new HashMap<String, Object[]>();
+    /** Bootstrap methods (method handle index, argument indices). */
+    private ArrayList<int[]> bootstrapMethods = new ArrayList<int[]>();
+    /** Bootstrap method hashmap. */
+    private HashMap<String, Integer> mapBootstrapMethods = new HashMap<String, Integer>();
+    /** Flag indicating that we use invokedynamic. */
+    private boolean invokeDynamic = false;
+    /** Implemented interfaces (constant pool indices). */
+    private ArrayList<Integer> interfaces = new ArrayList<Integer>();
     /** The full class name. */
     final String className;
 
@@ -45,6 +64,22 @@ final class JvmClassWriter
      *            The full class name.
      */
     public JvmClassWriter(final String className)
+    {
+        this(className, "java.lang.Object", Modifier.PRIVATE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param className
+     *            The full class name.
+     * @param superClassName
+     *            The full name of the super class.
+     * @param ctorAccess
+     *            The access modifiers of the default constructor.
+     */
+    public JvmClassWriter(final String className, final String superClassName,
+            final int ctorAccess)
     {
         // Insert unused constant #0
         this.constants.add(null);
@@ -56,14 +91,14 @@ final class JvmClassWriter
         this.addConstant(new JvmConstant("Code"));
         // Put super class constant
         this.addConstant(new JvmConstant(JvmConstant.CONSTANT_Class, this
-                .addConstant(new JvmConstant("java/lang/Object"))));
+                .addConstant(new JvmConstant(superClassName.replace('.', '/')))));
 
         // Create default constructor
         final JvmMethodWriter mw = this.createMethod("<init>", "()V",
-                Modifier.PRIVATE);
+                ctorAccess);
 
         mw.aload(0);
-        mw.invokeSpecial("java.lang.Object", "<init>", "()V");
+        mw.invokeSpecial(superClassName, "<init>", "()V");
         mw.addOp(JvmOp.RETURN);
     }
 
@@ -115,6 +150,206 @@ final class JvmClassWriter
         return mw;
     }
 
+    /**
+     * Creates a field.
+     * 
+     * @param fieldName
+     *            The name of the field.
+     * @param descriptor
+     *            The descriptor.
+     * @param access
+     *            The access modifiers.
+     */
+    public void createField(final String fieldName, final String descriptor,
+            final int access)
+    {
+        this.fields.add(new int[]
+        { access, this.addConstant(new JvmConstant(fieldName)),
+                this.addConstant(new JvmConstant(descriptor)) });
+    }
+
+    /**
+     * Adds an element to the private static final array of the given class.
+     * The array field is created on first use and the array gets allocated,
+     * with all elements <code>null</code>, when this class gets initialized.
+     * 
+     * @param clazz
+     *            The full class name of the array elements.
+     * @return The index of the new element.
+     * @see #getStaticArray(String)
+     */
+    public int addStaticArrayElement(final String clazz)
+    {
+        Object[] sa = this.staticArrays.get(clazz);
+        if(sa == null)
+        {
+            final String descriptor = "[L" + clazz.replace('.', '/') + ";";
+            sa = this.createStaticField(descriptor, new int[1]);
+            this.staticArrays.put(clazz, sa);
+        }
+        return ((int[])sa[2])[0]++;
+    }
+
+    /**
+     * Gets the name of the static array field of the given class.
+     * 
+     * @param clazz
+     *            The full class name of the array elements.
+     * @return The name of the field.
+     * @see #addStaticArrayElement(String)
+     */
+    public String getStaticArray(final String clazz)
+    {
+        return (String)this.staticArrays.get(clazz)[0];
+    }
+
+    /**
+     * Creates a private static final field which gets initialized with the
+     * value the given instruction leaves on the operand stack when this class
+     * gets initialized.
+     * 
+     * @param descriptor
+     *            The field descriptor.
+     * @param init
+     *            The initializing instruction.
+     * @return The name of the field.
+     */
+    public String createStaticField(final String descriptor, final Instr init)
+    {
+        return (String) this.createStaticField(descriptor, (Object) init)[0];
+    }
+
+    /**
+     * Creates a private static final field.
+     * 
+     * @param descriptor
+     *            The field descriptor.
+     * @param init
+     *            The array size or initializing instruction.
+     * @return The field entry (field name, descriptor, initializer).
+     */
+    private Object[] createStaticField(final String descriptor,
+            final Object init)
+    {
+        final String name = "$static$" + this.staticInstances.size();
+        this.createField(name, descriptor, Modifier.PRIVATE | Modifier.STATIC
+                | Modifier.FINAL);
+        final Object[] si = new Object[]
+        { name, descriptor, init };
+        this.staticInstances.add(si);
+        return si;
+    }
+
+    /**
+     * Writes the static initializer for all fields created by
+     * {@link #addStaticArrayElement(String)} and
+     * {@link #createStaticField(String, Instr)}.
+     */
+    private void writeStaticInitializer()
+    {
+        if(this.staticInstances.isEmpty())
+            return;
+
+        final JvmMethodWriter mw = this.createMethod("<clinit>", "()V",
+                Modifier.STATIC);
+        for(final Object[] si : this.staticInstances)
+        {
+            if(si[2] instanceof Instr)
+            {
+                ((Instr)si[2]).write(mw);
+            }
+            else
+            {
+                final String desc = (String)si[1];
+                mw.ldc(((int[])si[2])[0]);
+                mw.newArray(desc.substring(2, desc.length() - 1));
+            }
+            mw.putStatic(this.className, (String)si[0], (String)si[1]);
+        }
+        mw.addOp(JvmOp.RETURN);
+        this.staticInstances.clear();
+        this.staticArrays.clear();
+    }
+
+    /**
+     * Adds an implemented interface.
+     * 
+     * @param iface
+     *            The full interface name.
+     */
+    public void addInterface(final String iface)
+    {
+        this.interfaces.add(this.addConstant(new JvmConstant(
+                JvmConstant.CONSTANT_Class, this.addConstant(new JvmConstant(
+                        iface.replace('.', '/'))))));
+    }
+
+    /**
+     * Enables invokedynamic for this class. This raises the class file version
+     * to 51.0 which requires stack map frames for all methods. These get
+     * generated in {@link #build()}, assuming that the operand stack is empty
+     * and the locals are unchanged at every jump target (which is always true
+     * for Weel code).
+     */
+    public void enableInvokeDynamic()
+    {
+        this.invokeDynamic = true;
+    }
+
+    /**
+     * Checks if this class uses invokedynamic.
+     * 
+     * @return <code>true</code> if so.
+     */
+    public boolean usesInvokeDynamic()
+    {
+        return this.invokeDynamic;
+    }
+
+    /**
+     * Adds an invokedynamic constant using a static bootstrap method taking
+     * one additional int argument.
+     * 
+     * @param bsmClass
+     *            The full class name of the bootstrap method.
+     * @param bsmName
+     *            The name of the bootstrap method.
+     * @param bsmDescriptor
+     *            The descriptor of the bootstrap method.
+     * @param argument
+     *            The static int argument.
+     * @param name
+     *            The call site name.
+     * @param descriptor
+     *            The call site descriptor.
+     * @return The index of this constant in the constant pool.
+     */
+    public int addInvokeDynamicConstant(final String bsmClass,
+            final String bsmName, final String bsmDescriptor,
+            final int argument, final String name, final String descriptor)
+    {
+        final int mh = this.addConstant(new JvmConstant(
+                JvmConstant.CONSTANT_MethodHandle,
+                JvmConstant.REF_invokeStatic, this.addMethodRefConstant(
+                        bsmClass, bsmName, bsmDescriptor)));
+        final int arg = this.addConstant(new JvmConstant(argument));
+        final String key = mh + ":" + arg;
+        Integer bsm = this.mapBootstrapMethods.get(key);
+        if(bsm == null)
+        {
+            bsm = this.bootstrapMethods.size();
+            this.bootstrapMethods.add(new int[]
+            { mh, arg });
+            this.mapBootstrapMethods.put(key, bsm);
+        }
+        return this.addConstant(new JvmConstant(
+                JvmConstant.CONSTANT_InvokeDynamic, bsm, this
+                        .addConstant(new JvmConstant(
+                                JvmConstant.CONSTANT_NameAndType, this
+                                        .addConstant(new JvmConstant(name)),
+                                this.addConstant(new JvmConstant(descriptor))))));
+    }
+
     /**
      * Adds a constant.
      * 
@@ -136,6 +371,30 @@ final class JvmClassWriter
         return idx;
     }
 
+    /**
+     * Adds a field reference constant.
+     * 
+     * @param className
+     *            The full class name.
+     * @param name
+     *            The field name.
+     * @param type
+     *            The field descriptor.
+     * @return The index of this constant in the constant pool.
+     */
+    public int addFieldRefConstant(final String className, final String name,
+            final String type)
+    {
+        final int c = this.addConstant(new JvmConstant(
+                JvmConstant.CONSTANT_Class, this.addConstant(new JvmConstant(
+                        className.replace('.', '/')))));
+        return this.addConstant(new JvmConstant(JvmConstant.CONSTANT_Fieldref,
+                c, this.addConstant(new JvmConstant(
+                        JvmConstant.CONSTANT_NameAndType, this
+                                .addConstant(new JvmConstant(name)), this
+                                .addConstant(new JvmConstant(type))))));
+    }
+
     public int addMethodRefConstant(final String className, final String name,
             final String type)
     {
@@ -158,12 +417,21 @@ final class JvmClassWriter
     {
         final ByteList bytes = new ByteList();
 
+        this.writeStaticInitializer();
+
+        final int version = this.invokeDynamic ? CLASS_VERSION_INDY
+                : CLASS_VERSION;
+        final int stackMapTable = this.invokeDynamic ? this
+                .addConstant(new JvmConstant("StackMapTable")) : 0;
+        final int bootstrapMethodsAttr = !this.bootstrapMethods.isEmpty() ? this
+                .addConstant(new JvmConstant("BootstrapMethods")) : 0;
+
         try
         {
             // .class header
             bytes.addInteger(0xcafebabe);
-            bytes.addShort(CLASS_VERSION);
-            bytes.addShort(CLASS_VERSION >> 16);
+            bytes.addShort(version);
+            bytes.addShort(version >> 16);
 
             // write constants
             bytes.addShort(this.constants.size());
@@ -209,9 +477,14 @@ final class JvmClassWriter
                 case JvmConstant.CONSTANT_InterfaceMethodref:
                 case JvmConstant.CONSTANT_Methodref:
                 case JvmConstant.CONSTANT_NameAndType:
+                case JvmConstant.CONSTANT_InvokeDynamic:
                     bytes.addShort(c.index0);
                     bytes.addShort(c.index1);
                     break;
+                case JvmConstant.CONSTANT_MethodHandle:
+                    bytes.add(c.index0);
+                    bytes.addShort(c.index1);
+                    break;
                 }
             }
 
@@ -219,8 +492,19 @@ final class JvmClassWriter
             bytes.addShort(Modifier.PUBLIC | Modifier.FINAL);
             bytes.addShort(2); // this
             bytes.addShort(5); // super class
-            bytes.addShort(0); // interfaces
-            bytes.addShort(0); // fields
+            bytes.addShort(this.interfaces.size()); // interfaces
+            for(final int i : this.interfaces)
+                bytes.addShort(i);
+
+            // write fields
+            bytes.addShort(this.fields.size());
+            for(final int[] f : this.fields)
+            {
+                bytes.addShort(f[0]); // access
+                bytes.addShort(f[1]); // name
+                bytes.addShort(f[2]); // descriptor
+                bytes.addShort(0); // attributes
+            }
 
             // write methods
             bytes.addShort(this.methods.size());
@@ -233,17 +517,49 @@ final class JvmClassWriter
                 bytes.addShort(1); // attributes
                 bytes.addShort(3); // "Code"
                 final byte[] code = mw.code.toArray();
-                bytes.addInteger(12 + code.length); // size
+                final ByteList frames = this.invokeDynamic ? mw
+                        .buildStackMapFrames() : null;
+                final boolean hasFrames = frames != null && frames.size() > 0;
+                bytes.addInteger(12 + code.length
+                        + (hasFrames ? 6 + frames.size() : 0)); // size
                 bytes.addShort(mw.maxStack);
                 bytes.addShort(mw.maxLocals);
                 bytes.addInteger(code.length);
                 for(int n = 0; n < code.length; n++)
                     bytes.add(code[n]);
                 bytes.addShort(0); // exception table
-                bytes.addShort(0); // attributes
+                if(hasFrames)
+                {
+                    bytes.addShort(1); // attributes
+                    bytes.addShort(stackMapTable);
+                    bytes.addInteger(frames.size());
+                    final byte[] f = frames.toArray();
+                    for(int n = 0; n < f.length; n++)
+                        bytes.add(f[n]);
+                }
+                else
+                {
+                    bytes.addShort(0); // attributes
+                }
             }
 
-            bytes.addShort(0); // attributes
+            if(this.bootstrapMethods.isEmpty())
+            {
+                bytes.addShort(0); // attributes
+            }
+            else
+            {
+                bytes.addShort(1); // attributes
+                bytes.addShort(bootstrapMethodsAttr);
+                bytes.addInteger(2 + this.bootstrapMethods.size() * 6); // size
+                bytes.addShort(this.bootstrapMethods.size());
+                for(final int[] bsm : this.bootstrapMethods)
+                {
+                    bytes.addShort(bsm[0]); // method handle
+                    bytes.addShort(1); // arguments
+                    bytes.addShort(bsm[1]);
+                }
+            }
         }
         catch(UnsupportedEncodingException e)
         {
@@ -285,10 +601,12 @@ final class JvmClassWriter
                 sb.append('D');
             else if(c == boolean.class)
                 sb.append('Z');
+            else if(c.isArray())
+                sb.append(c.getName().replace('.', '/'));
             else
             {
                 sb.append('L');
-                sb.append(c.getCanonicalName().replace('.', '/'));
+                sb.append(c.getName().replace('.', '/'));
                 sb.append(';');
             }
         }
@@ -33,6 +33,10 @@ final class JvmConstant
     public final static int CONSTANT_Double = 6;
     public final static int CONSTANT_NameAndType = 12;
     public final static int CONSTANT_Utf8 = 1;
+    public final static int CONSTANT_MethodHandle = 15;
+    public final static int CONSTANT_InvokeDynamic = 18;
+
+    public final static int REF_invokeStatic = 6;
 
     /** This constant's type. */
     public final int type;
@@ -158,6 +162,8 @@ final class JvmConstant
         case CONSTANT_InterfaceMethodref:
         case CONSTANT_Methodref:
         case CONSTANT_NameAndType:
+        case CONSTANT_MethodHandle:
+        case CONSTANT_InvokeDynamic:
             hash = ((hash * 31) + this.index0) * 31 + this.index1;
             break;
         }
@@ -192,6 +198,8 @@ final class JvmConstant
         case CONSTANT_InterfaceMethodref:
         case CONSTANT_Methodref:
         case CONSTANT_NameAndType:
+        case CONSTANT_MethodHandle:
+        case CONSTANT_InvokeDynamic:
             return this.index0 == c.index0 && this.index1 == c.index1;
         }
         return false;
@@ -17,6 +17,7 @@ package com.github.rjeschke.weel;
 
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.TreeSet;
 
 /**
  * Method writer specialized for Weel.
@@ -49,6 +50,12 @@ final class JvmMethodWriter
     ArrayList<Integer> jumps = new ArrayList<Integer>();
     /** Registered labels. */
     ArrayList<Integer> labels = new ArrayList<Integer>();
+    /** Code positions following unconditional jumps and returns. */
+    ArrayList<Integer> afterGotos = new ArrayList<Integer>();
+    /** Number of double locals following the parameters. */
+    int doubleLocals = 0;
+    /** Constant pool indices of the parameter classes. */
+    int[] parameterClasses;
     
     /**
      * Constructor.
@@ -153,6 +160,17 @@ final class JvmMethodWriter
             case 'D':
                 spp += 2;
                 break;
+            case '[':
+                while(descriptor.charAt(i) == '[')
+                {
+                    i++;
+                }
+                if(descriptor.charAt(i) != 'L')
+                {
+                    spp++;
+                    break;
+                }
+                //$FALL-THROUGH$
             case 'L':
                 while(descriptor.charAt(i) != ';')
                 {
@@ -182,6 +200,40 @@ final class JvmMethodWriter
         this.add(spm);
     }
 
+    /**
+     * Writes a invokedynamic instruction using a static bootstrap method
+     * which takes one additional int argument.
+     * 
+     * @param bsmClass
+     *            Bootstrap method class name.
+     * @param bsmName
+     *            Bootstrap method name.
+     * @param bsmDescriptor
+     *            Bootstrap method descriptor.
+     * @param argument
+     *            The static argument.
+     * @param method
+     *            Call site name.
+     * @param descriptor
+     *            Call site descriptor, only 'L' arguments and 'V' return
+     *            supported.
+     */
+    public void invokeDynamic(final String bsmClass, final String bsmName,
+            final String bsmDescriptor, final int argument,
+            final String method, final String descriptor)
+    {
+        this.code.add(JvmOp.INVOKEDYNAMIC);
+        this.code.addShort(this.classWriter.addInvokeDynamicConstant(bsmClass,
+                bsmName, bsmDescriptor, argument, method, descriptor));
+        this.code.addShort(0);
+
+        for(int i = 1; descriptor.charAt(i) != ')'; i++)
+        {
+            if(descriptor.charAt(i) == ';')
+                this.curStack--;
+        }
+    }
+
     /**
      * Writes a invokevirtual instruction.
      * 
@@ -246,6 +298,83 @@ final class JvmMethodWriter
         this.invoke(JvmOp.INVOKEINTERFACE, clazz, method, descriptor);
     }
 
+    /**
+     * Writes a getstatic instruction.
+     * 
+     * @param clazz
+     *            Class name.
+     * @param field
+     *            Field name.
+     * @param descriptor
+     *            Descriptor.
+     */
+    public void getStatic(final String clazz, final String field,
+            final String descriptor)
+    {
+        this.code.add(JvmOp.GETSTATIC);
+        this.code.addShort(this.classWriter.addFieldRefConstant(clazz, field,
+                descriptor));
+        this.add(descriptor.equals("D") || descriptor.equals("J") ? 2 : 1);
+    }
+
+    /**
+     * Writes a putstatic instruction.
+     * 
+     * @param clazz
+     *            Class name.
+     * @param field
+     *            Field name.
+     * @param descriptor
+     *            Descriptor.
+     */
+    public void putStatic(final String clazz, final String field,
+            final String descriptor)
+    {
+        this.code.add(JvmOp.PUTSTATIC);
+        this.code.addShort(this.classWriter.addFieldRefConstant(clazz, field,
+                descriptor));
+        this.curStack -= descriptor.equals("D") || descriptor.equals("J") ? 2
+                : 1;
+    }
+
+    /**
+     * Writes a new instruction.
+     * 
+     * @param clazz
+     *            Class name.
+     */
+    public void newObject(final String clazz)
+    {
+        this.code.add(JvmOp.NEW);
+        this.code.addShort(this.classWriter.addConstant(new JvmConstant(
+                JvmConstant.CONSTANT_Class, this.classWriter
+                        .addConstant(new JvmConstant(clazz.replace('.', '/'))))));
+        this.add(1);
+    }
+
+    /**
+     * Writes an anewarray instruction.
+     * 
+     * @param clazz
+     *            The full class name of the array elements.
+     */
+    public void newArray(final String clazz)
+    {
+        this.code.add(JvmOp.ANEWARRAY);
+        this.code.addShort(this.classWriter.addConstant(new JvmConstant(
+                JvmConstant.CONSTANT_Class, this.classWriter
+                        .addConstant(new JvmConstant(clazz.replace('.', '/'))))));
+    }
+
+    /**
+     * Writes a dup instruction.
+     */
+    public void dup()
+    {
+        this.code.add(JvmOp.DUP);
+        this.add(1);
+    }
+
     /**
      * Loads a String constant.
      * 
@@ -385,6 +514,135 @@ final class JvmMethodWriter
         this.add(1);
     }
 
+    /**
+     * Writes an astore.
+     * 
+     * @param i
+     *            Index.
+     */
+    public void astore(final int i)
+    {
+        this.code.add(JvmOp.ASTORE);
+        this.code.add(i);
+        this.maxLocals = Math.max(this.maxLocals, i + 1);
+        this.curStack--;
+    }
+
+    /**
+     * Writes a dload.
+     * 
+     * @param i
+     *            Index.
+     */
+    public void dload(final int i)
+    {
+        this.code.add(JvmOp.DLOAD);
+        this.code.add(i);
+        this.maxLocals = Math.max(this.maxLocals, i + 2);
+        this.add(2);
+    }
+
+    /**
+     * Writes a dstore.
+     * 
+     * @param i
+     *            Index.
+     */
+    public void dstore(final int i)
+    {
+        this.code.add(JvmOp.DSTORE);
+        this.code.add(i);
+        this.maxLocals = Math.max(this.maxLocals, i + 2);
+        this.curStack -= 2;
+    }
+
+    /**
+     * Declares double locals which directly follow the parameters. These
+     * locals must be initialized at method entry, they are then part of every
+     * stack map frame. Parameters must be object references.
+     * 
+     * @param count
+     *            Number of double locals.
+     */
+    void setDoubleLocals(final int count)
+    {
+        final ArrayList<Integer> classes = new ArrayList<Integer>();
+        for(int i = 1; this.descriptor.charAt(i) != ')'; i++)
+        {
+            if(this.descriptor.charAt(i) != 'L')
+                throw new WeelException("Unsupported parameter type in "
+                        + this.descriptor);
+            final int e = this.descriptor.indexOf(';', i);
+            classes.add(this.classWriter.addConstant(new JvmConstant(
+                    JvmConstant.CONSTANT_Class, this.classWriter
+                            .addConstant(new JvmConstant(this.descriptor
+                                    .substring(i + 1, e))))));
+            i = e;
+        }
+        this.parameterClasses = new int[classes.size()];
+        for(int i = 0; i < this.parameterClasses.length; i++)
+            this.parameterClasses[i] = classes.get(i);
+        this.doubleLocals = count;
+    }
+
+    /**
+     * Loads a local variable of the given type.
+     * 
+     * @param type
+     *            The type.
+     * @param i
+     *            Index.
+     * @return The number of slots used by the type.
+     */
+    public int load(final Class<?> type, final int i)
+    {
+        final int op, size;
+        if(type == long.class)
+        {
+            op = JvmOp.LLOAD;
+            size = 2;
+        }
+        else if(type == double.class)
+        {
+            op = JvmOp.DLOAD;
+            size = 2;
+        }
+        else if(type == float.class)
+        {
+            op = JvmOp.FLOAD;
+            size = 1;
+        }
+        else if(type.isPrimitive())
+        {
+            op = JvmOp.ILOAD;
+            size = 1;
+        }
+        else
+        {
+            op = JvmOp.ALOAD;
+            size = 1;
+        }
+        this.code.add(op);
+        this.code.add(i);
+        this.maxLocals = Math.max(this.maxLocals, i + size);
+        this.add(size);
+        return size;
+    }
+
+    /**
+     * Writes a checkcast instruction.
+     * 
+     * @param clazz
+     *            Class name.
+     */
+    public void checkCast(final String clazz)
+    {
+        this.code.add(JvmOp.CHECKCAST);
+        this.code.addShort(this.classWriter.addConstant(new JvmConstant(
+                JvmConstant.CONSTANT_Class, this.classWriter
+                        .addConstant(new JvmConstant(clazz.replace('.', '/'))))));
+    }
+
     /**
      * Writes a jump instruction.
      * 
@@ -397,8 +655,12 @@ final class JvmMethodWriter
     {
         switch(op)
         {
+        case JvmOp.IFEQ:
         case JvmOp.IFNE:
+        case JvmOp.IFLT:
         case JvmOp.IFGE:
+        case JvmOp.IFGT:
+        case JvmOp.IFLE:
             this.curStack--;
             break;
         default:
@@ -407,6 +669,17 @@ final class JvmMethodWriter
         this.code.add(op);
         this.jumps.add(this.code.size());
         this.code.addShort(label);
+        if(op == JvmOp.GOTO)
+            this.afterGotos.add(this.code.size());
+    }
+
+    /**
+     * Writes a void return.
+     */
+    void writeReturn()
+    {
+        this.code.add(JvmOp.RETURN);
+        this.afterGotos.add(this.code.size());
     }
 
     /**
@@ -429,6 +702,67 @@ final class JvmMethodWriter
         }
     }
     
+    /**
+     * Builds the StackMapTable attribute content for this method (after
+     * labels got resolved). Weel code never keeps values on the operand stack
+     * across jumps and never changes its locals, so every frame is a
+     * 'same_frame', or a 'full_frame' if there are double locals (which
+     * must be set in every frame).
+     * 
+     * @return The attribute content.
+     */
+    ByteList buildStackMapFrames()
+    {
+        final TreeSet<Integer> offsets = new TreeSet<Integer>();
+        for(int i : this.jumps)
+        {
+            offsets.add(i - 1 + (short)this.code.getShort(i));
+        }
+        offsets.addAll(this.afterGotos);
+
+        final ByteList frames = new ByteList();
+        frames.addShort(0);
+        int count = 0, last = -1;
+        for(int o : offsets)
+        {
+            if(o >= this.code.size())
+                break;
+            final int delta = last < 0 ? o : o - last - 1;
+            if(this.doubleLocals > 0)
+            {
+                frames.add(255); // full_frame
+                frames.addShort(delta);
+                frames.addShort(this.parameterClasses.length
+                        + this.doubleLocals);
+                for(final int c : this.parameterClasses)
+                {
+                    frames.add(7); // Object_variable_info
+                    frames.addShort(c);
+                }
+                for(int i = 0; i < this.doubleLocals; i++)
+                {
+                    frames.add(3); // Double_variable_info
+                }
+                frames.addShort(0); // empty stack
+            }
+            else if(delta < 64)
+            {
+                frames.add(delta); // same_frame
+            }
+            else
+            {
+                frames.add(251); // same_frame_extended
+                frames.addShort(delta);
+            }
+            last = o;
+            count++;
+        }
+        if(count == 0)
+            return null;
+        frames.setShort(0, count);
+        return frames;
+    }
+
     public void addLabel(final int index)
     {
         while(this.labels.size() <= index)
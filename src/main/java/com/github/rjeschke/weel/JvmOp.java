@@ -215,7 +215,7 @@ final class JvmOp
     public final static int INVOKESPECIAL = 183;
     public final static int INVOKESTATIC = 184;
     public final static int INVOKEINTERFACE = 185;
-    public final static int XXXUNUSEDXXX1 = 186;
+    public final static int INVOKEDYNAMIC = 186;
     public final static int NEW = 187;
     public final static int NEWARRAY = 188;
     public final static int ANEWARRAY = 189;
@@ -0,0 +1,836 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Compiles numeric locals to JVM double locals.
+ *
+ * <p>
+ * A local qualifies if it is no argument, is not captured by a closure, only
+ * ever gets numbers assigned and is definitely assigned before every read.
+ * This is found by a data flow pass over the Weel stack which tracks if a
+ * stack slot is known to hold a number.
+ * </p>
+ *
+ * <p>
+ * The code block gets then rewritten to keep qualifying locals and the
+ * intermediate results of arithmetic on them on the JVM operand stack. Values
+ * still get written to the Weel stack before anything else touches them, so
+ * the JVM stack is empty at every label and jump.
+ * </p>
+ *
+ * @author René Jeschke <rene_jeschke@yahoo.de>
+ */
+final class NumericLocals
+{
+    /** Maximum number of numeric locals per code block. */
+    private final static int MAX_LOCALS = 100;
+    /** Maximum number of values kept on the JVM stack. */
+    private final static int MAX_DEPTH = 16;
+    /** The Weel. */
+    private final Weel weel;
+    /** The code block. */
+    private final WeelCode code;
+    /** The instructions. */
+    private final ArrayList<Instr> instrs;
+    /** Index of the first local which is no argument. */
+    private final int first;
+    /** Candidate locals. */
+    private final BitSet candidates = new BitSet();
+    /** Locals which failed a check during analysis. */
+    private final BitSet rejected = new BitSet();
+    /** Types of the Weel stack at instruction entry, 'true' for numbers. */
+    private boolean[][] stacks;
+    /** Definitely assigned candidates at instruction entry. */
+    private BitSet[] assigned;
+    /** JVM slots of numeric locals, -1 for normal locals. */
+    int[] slots;
+    /** First temporary JVM slot. */
+    private int temps;
+    /** The rewritten code. */
+    private ArrayList<Instr> out;
+    /** Number of Weel stack top values living on the JVM stack. */
+    private int depth;
+    /** Arguments which are guarded to be numbers, or <code>null</code>. */
+    BitSet numberArgs;
+    /** Label to jump to if the argument guard fails. */
+    int argumentLabel;
+    /** Checked arguments. */
+    int argumentMask;
+    /**
+     * Labels to jump to if the value produced by the instruction at the same
+     * index is no number, -1 for unguarded instructions, or <code>null</code>.
+     */
+    int[] guards;
+    /** Instructions which actually got guarded. */
+    final BitSet guarded = new BitSet();
+
+    /**
+     * Constructor.
+     *
+     * @param weel
+     *            The Weel.
+     * @param code
+     *            The code block.
+     */
+    NumericLocals(final Weel weel, final WeelCode code)
+    {
+        this.weel = weel;
+        this.code = code;
+        this.instrs = code.instrs;
+        this.first = code.function != null ? code.function.getNumArguments()
+                : 0;
+    }
+
+    /**
+     * Runs the analysis and rewrites the code block if any numeric locals were
+     * found.
+     *
+     * @return The number of numeric locals.
+     */
+    int apply()
+    {
+        this.candidates.set(this.first, Math.min(this.code.locals.size(),
+                this.first + MAX_LOCALS));
+        if (this.numberArgs != null)
+        {
+            this.candidates.or(this.numberArgs);
+        }
+        for (final Instr in : this.instrs)
+        {
+            if (in.getType() == Op.CREATECLOSURE)
+            {
+                final int[] env = ((InstrCreateClosure) in).envLocals;
+                for (int i = 0; env != null && i < env.length; i++)
+                {
+                    if (env[i] >= 0)
+                        this.candidates.clear(env[i]);
+                }
+            }
+        }
+
+        while (!this.candidates.isEmpty())
+        {
+            if (!this.analyze())
+                return 0;
+            if (this.rejected.isEmpty())
+                break;
+            this.candidates.andNot(this.rejected);
+        }
+        if (this.candidates.isEmpty())
+            return 0;
+
+        this.slots = new int[this.code.locals.size()];
+        Arrays.fill(this.slots, -1);
+        int slot = 1;
+        for (int i = this.candidates.nextSetBit(0); i >= 0; i = this.candidates
+                .nextSetBit(i + 1))
+        {
+            this.slots[i] = slot;
+            slot += 2;
+        }
+        this.temps = slot;
+        this.rewrite();
+
+        return this.candidates.cardinality();
+    }
+
+    /**
+     * Propagates stack types and assignments through all code paths.
+     *
+     * @return <code>false</code> if the stack layout differs on two
+     *         converging code paths.
+     */
+    private boolean analyze()
+    {
+        final int size = this.instrs.size();
+        this.rejected.clear();
+        this.stacks = new boolean[size][];
+        this.assigned = new BitSet[size];
+        this.stacks[0] = new boolean[0];
+        this.assigned[0] = new BitSet();
+        if (this.numberArgs != null)
+        {
+            this.assigned[0].or(this.numberArgs);
+            this.assigned[0].and(this.candidates);
+        }
+
+        final BitSet work = new BitSet();
+        work.set(0);
+        final TypeStack st = new TypeStack();
+        for (int i = work.nextSetBit(0); i >= 0; i = work.nextSetBit(0))
+        {
+            work.clear(i);
+            st.set(this.stacks[i]);
+            final BitSet as = (BitSet) this.assigned[i].clone();
+            final Instr in = this.instrs.get(i);
+            int target = -1;
+            boolean next = true;
+            boolean[] targetStack = null;
+
+            switch (in.getType())
+            {
+            case ALU2:
+            {
+                final InstrAlu2 alu = (InstrAlu2) in;
+                if (alu.value == null)
+                    st.pop();
+                final boolean left = st.pop();
+                switch (alu.type)
+                {
+                case cmpEq:
+                case cmpNe:
+                case cmpGt:
+                case cmpGe:
+                case cmpLt:
+                case cmpLe:
+                    st.push(true);
+                    break;
+                case strcat:
+                case mapcat:
+                case mapcat2:
+                    st.push(false);
+                    break;
+                default:
+                    st.push(left);
+                    break;
+                }
+                break;
+            }
+            case CMPPOP:
+                st.pop(((InstrCmpPop) in).value == null ? 2 : 1);
+                break;
+            case CMPEQUAL:
+                st.pop(2);
+                break;
+            case LNOT:
+                st.pop();
+                st.push(true);
+                break;
+            case LOAD:
+                st.push(((InstrLoad) in).value.isNumber());
+                break;
+            case POP:
+                st.pop(((InstrPop) in).pops);
+                break;
+            case SDUP:
+                st.push(st.peek(0));
+                break;
+            case SDUP2:
+            {
+                final boolean a = st.peek(1), b = st.peek(0);
+                st.push(a);
+                st.push(b);
+                break;
+            }
+            case SDUPS:
+            {
+                final boolean c = st.pop(), b = st.pop(), a = st.pop();
+                st.push(c);
+                st.push(a);
+                st.push(b);
+                st.push(c);
+                break;
+            }
+            case POPBOOL:
+            case ASSERT:
+                st.pop();
+                break;
+            case VARLOAD:
+            {
+                final InstrVarLoad v = (InstrVarLoad) in;
+                final boolean local = v.type == VarInstrType.LOCAL
+                        && this.candidates.get(v.index);
+                if (local && !as.get(v.index))
+                    this.rejected.set(v.index);
+                st.push(local || this.isGuarded(i));
+                break;
+            }
+            case VARSTORE:
+            {
+                final InstrVarStore v = (InstrVarStore) in;
+                final boolean num = st.pop();
+                if (v.type == VarInstrType.LOCAL
+                        && this.candidates.get(v.index))
+                {
+                    if (!num)
+                        this.rejected.set(v.index);
+                    as.set(v.index);
+                }
+                break;
+            }
+            case BEGINFOR:
+            case ENDFOR:
+            {
+                final int index = in.getType() == Op.BEGINFOR ? ((InstrBeginFor) in).index
+                        : ((InstrEndFor) in).index;
+                if (this.candidates.get(index) && !as.get(index))
+                    this.rejected.set(index);
+                break;
+            }
+            case GETMAP:
+                st.pop(((InstrGetMap) in).key == null ? 2 : 1);
+                st.push(this.isGuarded(i));
+                break;
+            case SETMAP:
+                st.pop(((InstrSetMap) in).key == null ? 3 : 2);
+                break;
+            case GETMAPOOP:
+                st.pop(((InstrGetMapOop) in).key == null ? 2 : 1);
+                st.push(false);
+                st.push(false);
+                break;
+            case APPENDMAP:
+                st.pop(2);
+                break;
+            case CALL:
+            {
+                final WeelFunction func = ((InstrCall) in).func;
+                st.pop(func.arguments);
+                if (func.returnsValue)
+                    st.push(this.isGuarded(i));
+                break;
+            }
+            case STACKCALL:
+            {
+                final InstrStackCall call = (InstrStackCall) in;
+                st.pop(call.paramc + 1);
+                if (call.needsReturn)
+                    st.push(this.isGuarded(i));
+                break;
+            }
+            case SPECIALCALL:
+            {
+                final InstrSpecialCall call = (InstrSpecialCall) in;
+                st.pop(call.paramc + 1);
+                if (call.needsReturn)
+                    st.push(this.isGuarded(i));
+                break;
+            }
+            case LOADFUNC:
+            case CREATEMAP:
+            case CREATECLOSURE:
+                st.push(false);
+                break;
+            case PREPARFOREACH:
+                st.pop();
+                st.push(false);
+                break;
+            case DOFOREACH:
+                st.push(false);
+                st.push(false);
+                break;
+            case IFEQ:
+                target = this.code.lines[((InstrIfEq) in).index];
+                if (i > 0 && this.instrs.get(i - 1).getType() == Op.DOFOREACH)
+                {
+                    st.pop(2);
+                    targetStack = st.toArray();
+                    st.push(false);
+                    st.push(false);
+                }
+                break;
+            case IFNE:
+                target = this.code.lines[((InstrIfNe) in).index];
+                if (i > 0
+                        && (this.instrs.get(i - 1).getType() == Op.TESTPOPF || this.instrs
+                                .get(i - 1).getType() == Op.TESTPOPT))
+                {
+                    targetStack = st.toArray();
+                    st.pop();
+                }
+                break;
+            case GOTO:
+                target = this.code.lines[((InstrGoto) in).index];
+                next = false;
+                break;
+            case CFRAME:
+            case CFRAMERET:
+                next = false;
+                break;
+            default:
+                // NEG, NOT, TESTPOPT, TESTPOPF, BEGASSERT, ENDASSERT, OFRAME,
+                // LABEL, KEY
+                break;
+            }
+
+            if (st.underflow)
+                return false;
+            final boolean[] stack = st.toArray();
+            if (target >= 0
+                    && !this.merge(target, targetStack != null ? targetStack
+                            : stack, as, work))
+                return false;
+            if (next && i + 1 < size && !this.merge(i + 1, stack, as, work))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Merges a state into the entry state of an instruction.
+     *
+     * @param index
+     *            The instruction index.
+     * @param stack
+     *            The stack.
+     * @param as
+     *            The assigned locals.
+     * @param work
+     *            The work list.
+     * @return <code>false</code> if the stack depths differ.
+     */
+    private boolean merge(final int index, final boolean[] stack,
+            final BitSet as, final BitSet work)
+    {
+        final boolean[] old = this.stacks[index];
+        if (old == null)
+        {
+            this.stacks[index] = stack;
+            this.assigned[index] = (BitSet) as.clone();
+            work.set(index);
+            return true;
+        }
+        if (old.length != stack.length)
+            return false;
+        boolean changed = false;
+        for (int i = 0; i < old.length; i++)
+        {
+            if (old[i] && !stack[i])
+            {
+                old[i] = false;
+                changed = true;
+            }
+        }
+        final BitSet as2 = (BitSet) this.assigned[index].clone();
+        as2.and(as);
+        if (!as2.equals(this.assigned[index]))
+        {
+            this.assigned[index] = as2;
+            changed = true;
+        }
+        if (changed)
+            work.set(index);
+        return true;
+    }
+
+    /**
+     * Checks if a numeric local is definitely assigned at the given
+     * instruction.
+     *
+     * @param line
+     *            The instruction index.
+     * @param local
+     *            The local.
+     * @return <code>true</code> if so.
+     */
+    boolean isAssigned(final int line, final int local)
+    {
+        return this.assigned[line] != null && this.assigned[line].get(local);
+    }
+
+    /**
+     * Checks if the value produced by the given instruction gets guarded to
+     * be a number.
+     *
+     * @param line
+     *            The instruction index.
+     * @return <code>true</code> if so.
+     */
+    private boolean isGuarded(final int line)
+    {
+        return this.guards != null && this.guards[line] >= 0;
+    }
+
+    /**
+     * Checks if a value on the Weel stack is known to be a number.
+     *
+     * @param line
+     *            The instruction index.
+     * @param offset
+     *            The offset from the Weel stack top, not counting values on
+     *            the JVM stack.
+     * @return <code>true</code> if it is a number.
+     */
+    private boolean isNumber(final int line, final int offset)
+    {
+        final boolean[] stack = this.stacks[line];
+        if (stack == null)
+            return false;
+        final int i = stack.length - 1 - this.depth - offset;
+        return i >= 0 && stack[i];
+    }
+
+    /**
+     * Ensures that the given number of operands are on the JVM stack, taking
+     * them from the Weel stack if they are known to be numbers.
+     *
+     * @param line
+     *            The instruction index.
+     * @param count
+     *            The operand count (1 or 2).
+     * @return <code>true</code> on success.
+     */
+    private boolean operands(final int line, final int count)
+    {
+        if (this.depth >= count)
+            return true;
+        for (int i = 0; i < count - this.depth; i++)
+        {
+            if (!this.isNumber(line, i))
+                return false;
+        }
+        final int missing = count - this.depth;
+        for (int i = 0; i < missing; i++)
+        {
+            this.out.add(new InstrNumUnbox());
+        }
+        if (count == 2)
+            this.out.add(new InstrNumSwap());
+        this.depth = count;
+        return true;
+    }
+
+    /**
+     * Pushes a value onto the JVM stack.
+     *
+     * @param in
+     *            The instruction creating the value.
+     */
+    private void push(final Instr in)
+    {
+        if (this.depth == MAX_DEPTH)
+            this.flush();
+        this.out.add(in);
+        this.depth++;
+    }
+
+    /**
+     * Moves all values from the JVM stack to the Weel stack.
+     */
+    private void flush()
+    {
+        if (this.depth == 0)
+            return;
+        for (int i = this.depth - 2; i >= 0; i--)
+        {
+            this.out.add(new InstrNumStore(this.temps + 2 * i));
+        }
+        this.out.add(new InstrNumBox());
+        for (int i = 0; i < this.depth - 1; i++)
+        {
+            this.out.add(new InstrNumLoad(this.temps + 2 * i));
+            this.out.add(new InstrNumBox());
+        }
+        this.depth = 0;
+    }
+
+    /**
+     * Rewrites the code block.
+     */
+    private void rewrite()
+    {
+        this.out = new ArrayList<Instr>(this.instrs.size());
+        this.depth = 0;
+        // The JVM verifier wants them to be initialized
+        for (int n = 1; n < this.temps; n += 2)
+        {
+            this.out.add(new InstrNumConst(0));
+            this.out.add(new InstrNumStore(n));
+        }
+        for (int n = this.candidates.nextSetBit(0); n >= 0
+                && n < this.first; n = this.candidates.nextSetBit(n + 1))
+        {
+            this.argumentMask |= 1 << n;
+        }
+        if (this.argumentMask != 0)
+        {
+            this.out.add(new InstrArgGuard(this.code.function.arguments,
+                    this.argumentMask, this.argumentLabel));
+        }
+        for (int i = 0; i < this.instrs.size(); i++)
+        {
+            final Instr in = this.instrs.get(i);
+            switch (in.getType())
+            {
+            case OFRAME:
+                this.out.add(in);
+                // Load guarded arguments
+                for (int n = this.candidates.nextSetBit(0); n >= 0
+                        && n < this.first; n = this.candidates.nextSetBit(n + 1))
+                {
+                    this.out.add(new InstrVarLoad(VarInstrType.LOCAL, n));
+                    this.out.add(new InstrNumUnbox());
+                    this.out.add(new InstrNumStore(this.slots[n]));
+                }
+                continue;
+            case LOAD:
+                if (((InstrLoad) in).value.isNumber())
+                {
+                    this.push(new InstrNumConst(((InstrLoad) in).value
+                            .getNumber()));
+                    continue;
+                }
+                break;
+            case VARLOAD:
+            {
+                final InstrVarLoad v = (InstrVarLoad) in;
+                if (v.type == VarInstrType.LOCAL && this.slots[v.index] >= 0)
+                {
+                    this.push(new InstrNumLoad(this.slots[v.index]));
+                    continue;
+                }
+                break;
+            }
+            case VARSTORE:
+            {
+                final InstrVarStore v = (InstrVarStore) in;
+                if (v.type == VarInstrType.LOCAL && this.slots[v.index] >= 0)
+                {
+                    if (this.depth == 0)
+                        this.out.add(new InstrNumUnbox());
+                    else
+                        this.depth--;
+                    this.out.add(new InstrNumStore(this.slots[v.index]));
+                    continue;
+                }
+                break;
+            }
+            case ALU2:
+            {
+                final InstrAlu2 alu = (InstrAlu2) in;
+                if (isArithmetic(alu.type)
+                        && this.operands(i, alu.value == null ? 2 : 1))
+                {
+                    if (alu.value != null)
+                        this.out.add(new InstrNumConst(alu.value.getNumber()));
+                    this.out.add(new InstrNumAlu(alu.type));
+                    this.depth--;
+                    if (alu.value != null)
+                        this.depth++;
+                    continue;
+                }
+                break;
+            }
+            case NEG:
+            case NOT:
+                if (this.operands(i, 1))
+                {
+                    this.out.add(in.getType() == Op.NEG ? new InstrNumNeg()
+                            : new InstrNumNot());
+                    continue;
+                }
+                break;
+            case SDUP:
+                if (this.depth > 0 && this.depth < MAX_DEPTH)
+                {
+                    this.push(new InstrNumDup());
+                    continue;
+                }
+                break;
+            case POP:
+            {
+                int pops = ((InstrPop) in).pops;
+                while (pops > 0 && this.depth > 0)
+                {
+                    this.out.add(new InstrNumPop());
+                    this.depth--;
+                    pops--;
+                }
+                if (pops > 0)
+                    this.out.add(new InstrPop(pops));
+                continue;
+            }
+            case CMPPOP:
+            {
+                final InstrCmpPop cmp = (InstrCmpPop) in;
+                final Instr jmp = i + 1 < this.instrs.size() ? this.instrs
+                        .get(i + 1) : null;
+                final int count = cmp.value == null ? 2 : 1;
+                if (jmp != null
+                        && (jmp.getType() == Op.IFEQ || jmp.getType() == Op.IFNE)
+                        && this.depth <= count && this.operands(i, count))
+                {
+                    this.out.add(jmp.getType() == Op.IFEQ ? new InstrNumCmpJmp(
+                            cmp, false, ((InstrIfEq) jmp).index)
+                            : new InstrNumCmpJmp(cmp, true, ((InstrIfNe) jmp).index));
+                    this.depth = 0;
+                    i++;
+                    continue;
+                }
+                break;
+            }
+            case BEGINFOR:
+            case ENDFOR:
+            {
+                final boolean end = in.getType() == Op.ENDFOR;
+                final int index = end ? ((InstrEndFor) in).index
+                        : ((InstrBeginFor) in).index;
+                if (this.slots[index] >= 0)
+                {
+                    this.flush();
+                    this.out.add(new InstrNumFor(this.slots[index], end));
+                    continue;
+                }
+                break;
+            }
+            default:
+                break;
+            }
+            this.flush();
+            this.out.add(in);
+            if (this.isGuarded(i))
+            {
+                this.out.add(new InstrGuard(this.guards[i]));
+                this.guarded.set(i);
+            }
+        }
+        this.code.instrs = this.out;
+    }
+
+    /**
+     * Checks if the given ALU operation is pure arithmetic on numbers.
+     *
+     * @param type
+     *            The type.
+     * @return <code>true</code> if so.
+     */
+    private static boolean isArithmetic(final Alu2InstrType type)
+    {
+        switch (type)
+        {
+        case add:
+        case sub:
+        case mul:
+        case div:
+        case mod:
+        case pow:
+        case and:
+        case or:
+        case xor:
+        case shl:
+        case shr:
+        case ushr:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Simple stack of value types.
+     *
+     * @author René Jeschke <rene_jeschke@yahoo.de>
+     */
+    private final static class TypeStack
+    {
+        /** The types, 'true' for numbers. */
+        boolean[] types = new boolean[16];
+        /** The size. */
+        int size;
+        /** Set if more types were popped than pushed. */
+        boolean underflow;
+
+        /**
+         * Constructor.
+         */
+        public TypeStack()
+        {
+            // empty
+        }
+
+        /**
+         * Sets the contents of this stack.
+         *
+         * @param values
+         *            The types.
+         */
+        void set(final boolean[] values)
+        {
+            this.size = 0;
+            this.underflow = false;
+            for (final boolean b : values)
+                this.push(b);
+        }
+
+        /**
+         * Pushes a type.
+         *
+         * @param number
+         *            <code>true</code> for numbers.
+         */
+        void push(final boolean number)
+        {
+            if (this.size == this.types.length)
+                this.types = Arrays.copyOf(this.types, this.size * 2);
+            this.types[this.size++] = number;
+        }
+
+        /**
+         * Pops a type.
+         *
+         * @return <code>true</code> for numbers.
+         */
+        boolean pop()
+        {
+            if (this.size == 0)
+            {
+                this.underflow = true;
+                return false;
+            }
+            return this.types[--this.size];
+        }
+
+        /**
+         * Pops types.
+         *
+         * @param count
+         *            Number of types to pop.
+         */
+        void pop(final int count)
+        {
+            for (int i = 0; i < count; i++)
+                this.pop();
+        }
+
+        /**
+         * Peeks a type.
+         *
+         * @param offset
+         *            The offset from the top.
+         * @return <code>true</code> for numbers.
+         */
+        boolean peek(final int offset)
+        {
+            final int i = this.size - 1 - offset;
+            return i >= 0 && this.types[i];
+        }
+
+        /**
+         * Returns the contents of this stack.
+         *
+         * @return The types.
+         */
+        boolean[] toArray()
+        {
+            return Arrays.copyOf(this.types, this.size);
+        }
+    }
+}
@@ -41,7 +41,17 @@ enum Op
     
     OFRAME(0), CFRAME(0), CFRAMERET(0),
     
-    IFEQ(0), IFNE(0), GOTO(0), LABEL(0), KEY(0);
+    IFEQ(0), IFNE(0), GOTO(0), LABEL(0), KEY(0),
+    
+    NUMLOAD(0), NUMSTORE(0), NUMCONST(0), NUMALU(0), NUMNEG(0), NUMNOT(0),
+    
+    NUMDUP(0), NUMPOP(0), NUMSWAP(0), NUMBOX(1), NUMUNBOX(-1),
+    
+    NUMCMPJMP(0), NUMFOR(0),
+    
+    PROFILE(0), PROFILETYPE(0), GUARD(0), ARGGUARD(0), DEOPT(0), RETURN(0),
+    
+    INCLOC(0), MOVLOC(0), GETMAPLOC(1), CMPLOC(0), ALULOC(0);
     
     private int delta;
     
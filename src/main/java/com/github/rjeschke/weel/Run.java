@@ -17,6 +17,11 @@ package com.github.rjeschke.weel;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -51,6 +56,11 @@ public final class Run
         int cstack = Weel.DEFAULT_CLOSURE_STACK_SIZE;
         boolean debugMode = false;
         boolean dumpCode = false;
+        boolean dynLink = false;
+        boolean tiered = false;
+        boolean lazy = false;
+        int tierUp = Weel.DEFAULT_TIER_UP_THRESHOLD;
+        String bundle = null;
         int as = -1;
         
         try
@@ -74,6 +84,26 @@ public final class Run
                     {
                         dumpCode = true;
                     }
+                    else if(o.equals("dynlink"))
+                    {
+                        dynLink = true;
+                    }
+                    else if(o.equals("tiered"))
+                    {
+                        tiered = true;
+                    }
+                    else if(o.equals("lazy"))
+                    {
+                        lazy = true;
+                    }
+                    else if(o.equals("tierup"))
+                    {
+                        tierUp = Integer.parseInt(args[++i]);
+                    }
+                    else if(o.equals("bundle"))
+                    {
+                        bundle = args[++i];
+                    }
                     else if(o.equals("vstack"))
                     {
                         vstack = parseSize(args[++i]);
@@ -125,14 +155,39 @@ public final class Run
             final Weel weel = new Weel(vstack, fstack, cstack);
             weel.setDebugMode(debugMode);
             weel.enableCodeDump(dumpCode);
+            weel.setDynamicLinking(dynLink);
+            weel.setTieredCompilation(tiered);
+            weel.setTierUpThreshold(tierUp);
+            weel.setLazyCompilation(lazy);
             
-            for(final String filename : input)
+            final String hash = bundle != null ? hashSources(input,
+                    debugMode + ";" + dynLink) : null;
+            boolean loaded = false;
+
+            if(bundle != null && new File(bundle).exists())
             {
-                final FileInputStream fis = new FileInputStream(filename);
-                weel.compile(fis, filename);
+                final FileInputStream fis = new FileInputStream(bundle);
+                loaded = weel.loadBundle(fis, hash);
                 fis.close();
             }
 
+            if(!loaded)
+            {
+                final ArrayList<String> sources = new ArrayList<String>();
+                for(final String filename : input)
+                {
+                    sources.add(readFile(filename));
+                }
+                weel.compileAll(sources, input);
+
+                if(bundle != null && !tiered && !lazy)
+                {
+                    final FileOutputStream fos = new FileOutputStream(bundle);
+                    weel.saveBundle(fos, hash);
+                    fos.close();
+                }
+            }
+
             weel.runStatic();
 
             final Value ret = as != -1 ? weel.runMain(Arrays.copyOfRange(args,
@@ -159,9 +214,51 @@ public final class Run
         System.out.println("Options:");
         System.out.println("--debug    : Enabled debug mode (asserts)");
         System.out.println("--dump     : Dump generated intermediate code");
-        System.out.println("--vstack n : Sets the value stack size to 'n' slots (Default: " + Weel.DEFAULT_VALUE_STACK_SIZE + ")");
-        System.out.println("--fstack n : Sets the frame stack size to 'n' slots (Default: " + Weel.DEFAULT_FRAME_STACK_SIZE + ")");
-        System.out.println("--cstack n : Sets the closure function stack size to 'n' slots (Default: " + Weel.DEFAULT_CLOSURE_STACK_SIZE + ")");
+        System.out.println("--dynlink  : Use dynamic linking, later scripts may redefine functions");
+        System.out.println("--tiered   : Recompile hot functions using runtime type profiles");
+        System.out.println("--lazy     : Compile subs/funcs on their first call");
+        System.out.println("--tierup n : Sets the number of calls before recompilation (Default: " + Weel.DEFAULT_TIER_UP_THRESHOLD + ")");
+        System.out.println("--bundle f : Loads the compiled scripts from bundle 'f', recompiles and rewrites it if outdated");
+        System.out.println("--vstack n : Sets the maximum value stack size to 'n' slots (Default: " + Weel.DEFAULT_VALUE_STACK_SIZE + ")");
+        System.out.println("--fstack n : Sets the maximum frame stack size to 'n' slots (Default: " + Weel.DEFAULT_FRAME_STACK_SIZE + ")");
+        System.out.println("--cstack n : Sets the maximum closure function stack size to 'n' slots (Default: " + Weel.DEFAULT_CLOSURE_STACK_SIZE + ")");
+    }
+    
+    private static String readFile(final String filename) throws IOException
+    {
+        final InputStreamReader in = new InputStreamReader(
+                new FileInputStream(filename), "UTF-8");
+        final StringBuilder sb = new StringBuilder();
+        final char[] buffer = new char[8192];
+        int n;
+        while((n = in.read(buffer)) > 0)
+            sb.append(buffer, 0, n);
+        in.close();
+        return sb.toString();
+    }
+    
+    private static String hashSources(final ArrayList<String> input,
+            final String options) throws IOException, NoSuchAlgorithmException
+    {
+        final MessageDigest md = MessageDigest.getInstance("SHA-1");
+        final byte[] buffer = new byte[8192];
+        md.update(options.getBytes("UTF-8"));
+        md.update((byte) 0);
+        for(final String filename : input)
+        {
+            md.update(filename.getBytes("UTF-8"));
+            md.update((byte) 0);
+            final FileInputStream fis = new FileInputStream(filename);
+            int n;
+            while((n = fis.read(buffer)) > 0)
+                md.update(buffer, 0, n);
+            fis.close();
+            md.update((byte) 0);
+        }
+        final StringBuilder sb = new StringBuilder();
+        for(final byte b : md.digest())
+            sb.append(String.format("%02x", b & 255));
+        return sb.toString();
     }
     
     private static int parseSize(final String sz)
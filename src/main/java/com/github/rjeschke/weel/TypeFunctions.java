@@ -29,14 +29,39 @@ class TypeFunctions
     ArrayList<WeelFunction> functions = new ArrayList<WeelFunction>();
     /** Name to function index mapping. */
     HashMap<String, Integer> mapFunctions = new HashMap<String, Integer>();
+    /**
+     * Functions indexed by slot. Read by runtimes without locking, so it is
+     * never written in place but replaced by an updated copy.
+     */
+    private volatile WeelFunction[] slots = new WeelFunction[16];
+    /** The mother Weel. */
+    private final Weel weel;
 
     /**
      * Constructor.
+     * 
+     * @param weel
+     *            The mother Weel, used for slot allocation.
+     */
+    TypeFunctions(final Weel weel)
+    {
+        this.weel = weel;
+    }
+
+    /**
+     * Gets the function bound to the given slot.
+     * 
+     * @param slot
+     *            The slot.
+     * @return The WeelFunction or <code>null</code> if none was found.
+     * @see Weel#getTypeFunctionSlot(String)
      */
-    TypeFunctions()
+    public WeelFunction getFunction(final int slot)
     {
-        // empty
+        final WeelFunction[] s = this.slots;
+        return slot < s.length ? s[slot] : null;
     }
+
     /**
      * Finds the given function.
      * 
@@ -76,12 +101,24 @@ class TypeFunctions
     void addFunction(final String iname, final WeelFunction func,
             final boolean addToHash)
     {
+        // Don't touch func.index, it points into the Weel's function list
+        final String name = iname.toLowerCase();
         final int index = this.functions.size();
-        func.index = index;
         this.functions.add(func);
         if (addToHash)
         {
-            this.mapFunctions.put(iname, index);
+            this.mapFunctions.put(name, index);
+
+            final int slot = this.weel.getTypeFunctionSlot(name);
+            synchronized (this.weel)
+            {
+                final WeelFunction[] old = this.slots;
+                final WeelFunction[] s = new WeelFunction[slot < old.length
+                        ? old.length : Math.max(slot + 1, old.length * 2)];
+                System.arraycopy(old, 0, s, 0, old.length);
+                s[slot] = func;
+                this.slots = s;
+            }
         }
     }
 }
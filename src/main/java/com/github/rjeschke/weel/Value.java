@@ -136,18 +136,36 @@ public final class Value
      */
     public boolean toBoolean()
     {
-        switch (this.type)
+        return toBoolean(this.type, this.number, this.object);
+    }
+
+    /**
+     * Returns a boolean interpretation of the given value.
+     * 
+     * @param type
+     *            The type.
+     * @param number
+     *            The number.
+     * @param object
+     *            The object.
+     * @return A boolean interpretation of the value.
+     * @see #toBoolean()
+     */
+    static boolean toBoolean(final ValueType type, final double number,
+            final Object object)
+    {
+        switch (type)
         {
         case NULL:
             return false;
         case STRING:
-            return ((String)this.object).length() > 0;
+            return ((String)object).length() > 0;
         case NUMBER:
-            return this.number != 0;
+            return number != 0;
         case MAP:
-            return ((ValueMap)this.object).size != 0;
+            return ((ValueMap)object).size() != 0;
         case OBJECT:
-            return this.object != null;
+            return object != null;
         default:
             return true;
         }
@@ -210,26 +228,44 @@ public final class Value
     @Override
     public String toString()
     {
-        switch (this.type)
+        return toString(this.type, this.number, this.object);
+    }
+
+    /**
+     * Returns a String representation of the given value.
+     * 
+     * @param type
+     *            The type.
+     * @param number
+     *            The number.
+     * @param object
+     *            The object.
+     * @return A String representation of the value.
+     * @see #toString()
+     */
+    static String toString(final ValueType type, final double number,
+            final Object object)
+    {
+        switch (type)
         {
         case NULL:
             return "null";
         case NUMBER:
         {
             // Hack
-            final long temp = (long)this.number;
-            if(temp == this.number)
+            final long temp = (long)number;
+            if(temp == number)
                 return Long.toString(temp);
-            return Double.toString(this.number);
+            return Double.toString(number);
         }
         case STRING:
-            return (String)this.object;
+            return (String)object;
         case MAP:
-            return ((ValueMap)this.object).toString();
+            return ((ValueMap)object).toString();
         case FUNCTION:
-            return ((WeelFunction)this.object).toString();
+            return ((WeelFunction)object).toString();
         case OBJECT:
-            return this.object.toString();
+            return object.toString();
         }
         return "null";
     }
@@ -371,16 +407,34 @@ public final class Value
      */
     public double size()
     {
-        switch (this.type)
+        return size(this.type, this.number, this.object);
+    }
+
+    /**
+     * Returns the size of the given value.
+     * 
+     * @param type
+     *            The type.
+     * @param number
+     *            The number.
+     * @param object
+     *            The object.
+     * @return The size.
+     * @see #size()
+     */
+    static double size(final ValueType type, final double number,
+            final Object object)
+    {
+        switch (type)
         {
         case NUMBER:
-            return Math.abs(this.number);
+            return Math.abs(number);
         case STRING:
-            return ((String)this.object).length();
+            return ((String)object).length();
         case MAP:
-            return ((ValueMap)this.object).size();
+            return ((ValueMap)object).size();
         case FUNCTION:
-            return ((WeelFunction)this.object).arguments;
+            return ((WeelFunction)object).arguments;
         default:
             return 0;
         }
@@ -16,29 +16,85 @@
 package com.github.rjeschke.weel;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map.Entry;
+import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Weel map implementation.
  * 
+ * <p>
+ * A map consists of an array part holding the integer keys
+ * <code>0 .. arraySize - 1</code> and a hash part for all other keys. Ordered
+ * maps only use the array part. Iteration visits the array part first and
+ * then the hash part in insertion order, so keys only get appended to the
+ * array part while the hash part is empty.
+ * </p>
+ * 
  * @author René Jeschke <rene_jeschke@yahoo.de>
  */
-public final class ValueMap
+public class ValueMap
 {
-    /** Integer keys. */
-    private HashMap<Integer, Integer> intKeys = new HashMap<Integer, Integer>();
-    /** String keys. */
-    private HashMap<String, Integer> strKeys = new HashMap<String, Integer>();
+    /** Initial capacity of the key store. */
+    private final static int INITIAL_KEYS = 16;
+    /** Minimum number of entries before compacting removed entries. */
+    private final static int MIN_COMPACT = 32;
+    /** Integer key index of shaped maps, always empty. */
+    private final static IntIndex NO_INT_KEYS = new IntIndex();
+    /** Number storage of empty maps. */
+    private final static double[] NO_NUMBERS = new double[0];
+    /** Integer key index of the hash part. */
+    private IntIndex intKeys;
+    /** String key index of the hash part. */
+    private StringIndex strKeys;
     /** The size. */
     int size;
     /** Is this map ordered? */
     boolean ordered = true;
-    /** The data. */
+    /**
+     * The values of the array part, <code>null</code> for dense maps.
+     * Unordered maps mark removed entries with <code>null</code>, the last
+     * entry is never removed.
+     */
     ArrayList<Value> data;
-    /** The keys. */
-    ArrayList<Value> keys;
+    /**
+     * The values of array parts which only contain numbers (dense maps),
+     * <code>null</code> if the map uses {@link #data}.
+     */
+    double[] numbers;
+    /** The number of positions in the array part. */
+    int arraySize;
+    /**
+     * The values of the hash part, <code>null</code> for ordered maps.
+     * Removed entries are marked with <code>null</code>, the last entry is
+     * never removed.
+     */
+    ArrayList<Value> hash;
+    /** The number of entries in the hash part. */
+    private int hashSize;
+    /** The string keys of the hash part, <code>null</code> for integer keys. */
+    private String[] keyStrings;
+    /** The integer keys of the hash part. */
+    private int[] keyNumbers;
+    /** All positions below this one are removed entries. */
+    private int first;
+    /**
+     * The shared shape of maps with only string keys and no removed entries,
+     * <code>null</code> if this map uses its own key index.
+     */
+    ValueMapShape shape;
+    /**
+     * Are the data and key store shared with other maps? Shared data never
+     * contains maps and gets copied before the first change.
+     */
+    boolean shared;
+    /** May the Values in the data be referenced by other maps? */
+    private boolean borrowed;
+    /** Is this map frozen? Frozen maps are also shared. */
+    private boolean frozen;
+    /** Does this frozen map contain maps? */
+    private boolean nested;
     /** The highest integer key value for unordered maps. */
     int highestIntKey;
 
@@ -47,8 +103,7 @@ public final class ValueMap
      */
     public ValueMap()
     {
-        this.data = new ArrayList<Value>();
-        this.keys = new ArrayList<Value>();
+        this.numbers = NO_NUMBERS;
     }
 
     /**
@@ -88,12 +143,7 @@ public final class ValueMap
      */
     public Value get(final int index)
     {
-        if (this.ordered)
-        {
-            return index >= 0 && index < this.size ? this.data.get(index)
-                    .clone() : new Value();
-        }
-        return this.get(new Value(index));
+        return this.get(index, new Value());
     }
 
     /**
@@ -109,21 +159,12 @@ public final class ValueMap
      */
     public Value get(final int index, final Value out)
     {
-        if (this.ordered)
-        {
-            if (index >= 0 && index < this.size)
-                this.data.get(index).copyTo(out);
-            else
-                out.setNull();
-        }
+        final int pos = this.ordered ? (index >= 0 && index < this.size ? index
+                : -1) : this.find(index);
+        if (pos != -1)
+            this.valueAt(pos, out);
         else
-        {
-            final Integer idx2 = this.intKeys.get(index);
-            if (idx2 != null)
-                this.data.get(idx2).copyTo(out);
-            else
-                out.setNull();
-        }
+            out.setNull();
         return out;
     }
 
@@ -154,18 +195,11 @@ public final class ValueMap
      */
     public Value get(final String index, final Value out)
     {
-        if (this.ordered)
-        {
-            out.setNull();
-        }
+        final int idx = this.ordered ? -1 : this.strKeys.get(index);
+        if (idx != -1)
+            this.hash.get(idx).copyTo(out);
         else
-        {
-            final Integer idx2 = this.strKeys.get(index);
-            if (idx2 != null)
-                this.data.get(idx2).copyTo(out);
-            else
-                out.setNull();
-        }
+            out.setNull();
         return out;
     }
 
@@ -183,31 +217,11 @@ public final class ValueMap
     {
         if (index.type == ValueType.NUMBER)
         {
-            final int idx = (int) index.number;
-            if (this.ordered)
-            {
-                if (idx < 0 || idx >= this.size)
-                    out.setNull();
-                else
-                    this.data.get(idx).copyTo(out);
-
-            }
-            else
-            {
-                final Integer idx2 = this.intKeys.get(idx);
-                if (idx2 != null)
-                    this.data.get(idx2).copyTo(out);
-                else
-                    out.setNull();
-            }
+            this.get((int) index.number, out);
         }
         else if (index.type == ValueType.STRING)
         {
-            final Integer idx = this.strKeys.get(index.object);
-            if (idx != null)
-                this.data.get(idx).copyTo(out);
-            else
-                out.setNull();
+            this.get((String) index.object, out);
         }
         else
         {
@@ -255,30 +269,317 @@ public final class ValueMap
             {
                 return idx >= 0 && idx < this.size;
             }
-            return this.intKeys.containsKey(idx);
+            return this.find(idx) != -1;
         }
         if (key.type == ValueType.STRING)
         {
             if (this.ordered)
                 return false;
-            return this.strKeys.containsKey(key.object);
+            return this.strKeys.get((String) key.object) != -1;
         }
         throw new WeelException("Illegal map index type: " + key.type);
     }
 
     /**
-     * Creates integer key mappings for ordered to unordered transition.
+     * Finds the position of an integer key of an unordered map.
+     * 
+     * @param key
+     *            The key.
+     * @return The position or -1.
+     */
+    private int find(final int key)
+    {
+        if (key >= 0 && key < this.arraySize
+                && (this.numbers != null || this.data.get(key) != null))
+            return key;
+        final int idx = this.intKeys.get(key);
+        return idx != -1 ? this.arraySize + idx : -1;
+    }
+
+    /**
+     * Leaves ordered mode. The current entries stay in the array part, so
+     * this runs in constant time.
      */
     private void unorder()
     {
         this.ordered = false;
-        // There can only be integer keys inside the map right now
-        for (int i = 0; i < this.size; i++)
+        this.hash = new ArrayList<Value>();
+        this.intKeys = new IntIndex();
+        this.strKeys = new StringIndex();
+        this.keyStrings = new String[INITIAL_KEYS];
+        this.keyNumbers = new int[INITIAL_KEYS];
+        this.highestIntKey = this.size - 1;
+    }
+
+    /**
+     * Copies the value at the given position.
+     * 
+     * @param index
+     *            The position.
+     * @param out
+     *            The output Value.
+     * @return out.
+     */
+    Value valueAt(final int index, final Value out)
+    {
+        if (index >= this.arraySize)
         {
-            this.keys.add(new Value(i));
-            this.intKeys.put(i, i);
+            this.hash.get(index - this.arraySize).copyTo(out);
+        }
+        else if (this.numbers != null)
+        {
+            out.type = ValueType.NUMBER;
+            out.number = this.numbers[index];
+            out.object = null;
+        }
+        else
+        {
+            this.data.get(index).copyTo(out);
+        }
+        return out;
+    }
+
+    /**
+     * Checks if the given position holds an entry.
+     * 
+     * @param index
+     *            The position.
+     * @return <code>true</code> if so.
+     */
+    private boolean isLive(final int index)
+    {
+        if (index >= this.arraySize)
+            return this.hash.get(index - this.arraySize) != null;
+        return this.numbers != null || this.data.get(index) != null;
+    }
+
+    /**
+     * Sets or appends a value of the array part.
+     * 
+     * @param index
+     *            The position, at most the size of the array part.
+     * @param value
+     *            The value.
+     */
+    private void setArray(final int index, final Value value)
+    {
+        if (this.numbers != null)
+        {
+            if (value.type == ValueType.NUMBER)
+            {
+                if (index == this.arraySize)
+                {
+                    if (this.arraySize == this.numbers.length)
+                        this.numbers = Arrays.copyOf(this.numbers, Math.max(8,
+                                this.arraySize + (this.arraySize >> 1)));
+                    this.arraySize++;
+                    this.size++;
+                }
+                this.numbers[index] = value.number;
+                return;
+            }
+            this.undense();
+        }
+        if (index == this.arraySize)
+        {
+            this.data.add(value.clone());
+            this.arraySize++;
+            this.size++;
+        }
+        else
+        {
+            this.put(index, value);
+        }
+    }
+
+    /**
+     * Switches a dense array part to Value storage.
+     */
+    private void undense()
+    {
+        if (this.numbers == null)
+            return;
+        this.data = new ArrayList<Value>(Math.max(10, this.arraySize));
+        for (int i = 0; i < this.arraySize; i++)
+        {
+            this.data.add(new Value(this.numbers[i]));
+        }
+        this.numbers = null;
+    }
+
+    /**
+     * Gets the number of value positions, including removed entries.
+     * 
+     * @return The number of positions.
+     */
+    int positions()
+    {
+        return this.hash != null ? this.arraySize + this.hash.size()
+                : this.arraySize;
+    }
+
+    /**
+     * Leaves ordered mode before adding a string key. Empty maps get shaped.
+     */
+    private void unorderString()
+    {
+        if (this.size != 0)
+        {
+            this.unorder();
+            return;
+        }
+        this.ordered = false;
+        this.hash = new ArrayList<Value>();
+        this.setShape(ValueMapShape.EMPTY);
+        this.intKeys = NO_INT_KEYS;
+        this.keyNumbers = null;
+        this.highestIntKey = -1;
+    }
+
+    /**
+     * Sets the shape of this map.
+     * 
+     * @param shape
+     *            The shape.
+     */
+    private void setShape(final ValueMapShape shape)
+    {
+        this.shape = shape;
+        this.strKeys = shape.index;
+        this.keyStrings = shape.keys;
+    }
+
+    /**
+     * Replaces the shared shape by an own key index.
+     */
+    private void unshape()
+    {
+        if (this.shape == null)
+            return;
+        this.keyStrings = Arrays.copyOf(this.shape.keys, Math.max(
+                INITIAL_KEYS, this.hash.size()));
+        this.keyNumbers = new int[this.keyStrings.length];
+        this.strKeys = new StringIndex(this.shape.index);
+        this.intKeys = new IntIndex();
+        this.shape = null;
+    }
+
+    /**
+     * Adds a new string key and value to a shaped map.
+     * 
+     * @param next
+     *            The shape resulting from adding the key.
+     * @param value
+     *            The value.
+     */
+    void add(final ValueMapShape next, final Value value)
+    {
+        this.setShape(next);
+        this.hash.add(value.clone());
+        this.hashSize++;
+        this.size++;
+    }
+
+    /**
+     * Makes room for one more key in the key store.
+     */
+    private void growKeys()
+    {
+        final int n = this.hash.size();
+        if (n == this.keyNumbers.length)
+        {
+            final int cap = n + (n >> 1);
+            this.keyStrings = Arrays.copyOf(this.keyStrings, cap);
+            this.keyNumbers = Arrays.copyOf(this.keyNumbers, cap);
+        }
+    }
+
+    /**
+     * Adds a new integer key and value to an unordered map. The key goes to
+     * the array part if it is the next array position and the hash part is
+     * empty, otherwise it goes to the hash part.
+     * 
+     * @param key
+     *            The key.
+     * @param value
+     *            The value.
+     */
+    private void add(final int key, final Value value)
+    {
+        this.unshape();
+        if (key == this.arraySize && this.hashSize == 0)
+        {
+            this.setArray(key, value);
+            return;
+        }
+        this.growKeys();
+        final int n = this.hash.size();
+        this.intKeys.put(key, n);
+        this.keyStrings[n] = null;
+        this.keyNumbers[n] = key;
+        this.hash.add(value.clone());
+        this.hashSize++;
+        this.size++;
+    }
+
+    /**
+     * Adds a new string key and value to an unordered map.
+     * 
+     * @param key
+     *            The key.
+     * @param value
+     *            The value.
+     */
+    private void add(final String key, final Value value)
+    {
+        if (this.shape != null)
+        {
+            final ValueMapShape next = this.shape.add(key);
+            if (next != null)
+            {
+                this.add(next, value);
+                return;
+            }
+            this.unshape();
+        }
+        this.growKeys();
+        final int n = this.hash.size();
+        this.strKeys.put(key, n);
+        this.keyStrings[n] = key;
+        this.hash.add(value.clone());
+        this.hashSize++;
+        this.size++;
+    }
+
+    /**
+     * Gets the key at the given position (of a live entry).
+     * 
+     * @param index
+     *            The position.
+     * @param out
+     *            The output Value.
+     */
+    void getKey(final int index, final Value out)
+    {
+        final int idx = index - this.arraySize;
+        if (idx < 0)
+        {
+            out.type = ValueType.NUMBER;
+            out.number = index;
+            out.object = null;
+        }
+        else if (this.keyStrings[idx] != null)
+        {
+            out.type = ValueType.STRING;
+            out.number = 0;
+            out.object = this.keyStrings[idx];
+        }
+        else
+        {
+            out.type = ValueType.NUMBER;
+            out.number = this.keyNumbers[idx];
+            out.object = null;
         }
-        this.highestIntKey = this.size - 1;
     }
 
     /**
@@ -293,21 +594,19 @@ public final class ValueMap
      */
     public void set(final String index, final Value value)
     {
+        this.unshare();
         if (this.ordered)
         {
-            this.unorder();
+            this.unorderString();
         }
-        final Integer idx = this.strKeys.get(index);
-        if (idx != null)
+        final int idx = this.strKeys.get(index);
+        if (idx != -1)
         {
-            value.copyTo(this.data.get(idx));
+            this.put(this.arraySize + idx, value);
         }
         else
         {
-            this.strKeys.put(index, this.size);
-            this.keys.add(new Value(index));
-            this.data.add(value.clone());
-            this.size++;
+            this.add(index, value);
         }
     }
 
@@ -323,37 +622,25 @@ public final class ValueMap
      */
     public void set(final int index, final Value value)
     {
-        if (this.ordered && index >= 0 && index <= this.size)
+        this.unshare();
+        if (this.ordered)
         {
-            if (index == this.size)
-            {
-                this.data.add(value.clone());
-                this.size++;
-            }
-            else
+            if (index >= 0 && index <= this.size)
             {
-                value.copyTo(this.data.get(index));
+                this.setArray(index, value);
+                return;
             }
+            this.unorder();
+        }
+        final int pos = this.find(index);
+        if (pos != -1)
+        {
+            this.replace(pos, value);
         }
         else
         {
-            if (this.ordered)
-            {
-                this.unorder();
-            }
-            final Integer index2 = this.intKeys.get(index);
-            if (index2 != null)
-            {
-                value.copyTo(this.data.get(index2));
-            }
-            else
-            {
-                this.intKeys.put(index, this.size);
-                this.keys.add(new Value(index));
-                this.data.add(value.clone());
-                this.highestIntKey = index;
-                this.size++;
-            }
+            this.add(index, value);
+            this.highestIntKey = Math.max(this.highestIntKey, index);
         }
     }
 
@@ -371,58 +658,11 @@ public final class ValueMap
     {
         if (index.type == ValueType.NUMBER)
         {
-            final int idx = (int) index.number;
-            if (this.ordered && idx >= 0 && idx <= this.size)
-            {
-                if (idx == this.size)
-                {
-                    this.data.add(value.clone());
-                    this.size++;
-                }
-                else
-                {
-                    value.copyTo(this.data.get(idx));
-                }
-            }
-            else
-            {
-                if (this.ordered)
-                {
-                    this.unorder();
-                }
-                final Integer idx2 = this.intKeys.get(idx);
-                if (idx2 != null)
-                {
-                    value.copyTo(this.data.get(idx2));
-                }
-                else
-                {
-                    this.intKeys.put(idx, this.size);
-                    this.keys.add(new Value(idx));
-                    this.data.add(value.clone());
-                    this.highestIntKey = idx;
-                    this.size++;
-                }
-            }
+            this.set((int) index.number, value);
         }
         else if (index.type == ValueType.STRING)
         {
-            if (this.ordered)
-            {
-                this.unorder();
-            }
-            final Integer idx = this.strKeys.get(index.object);
-            if (idx != null)
-            {
-                value.copyTo(this.data.get(idx));
-            }
-            else
-            {
-                this.strKeys.put((String)index.object, this.size);
-                this.keys.add(index.clone());
-                this.data.add(value.clone());
-                this.size++;
-            }
+            this.set((String) index.object, value);
         }
         else
         {
@@ -438,17 +678,17 @@ public final class ValueMap
      */
     public void append(final Value value)
     {
+        this.unshare();
         if (this.ordered)
         {
-            this.data.add(value.clone());
+            this.setArray(this.size, value);
         }
         else
         {
-            this.keys.add(new Value(++this.highestIntKey));
-            this.intKeys.put(this.highestIntKey, this.size);
-            this.data.add(value.clone());
+            // No integer key above highestIntKey exists, so this never
+            // replaces a value
+            this.add(++this.highestIntKey, value);
         }
-        this.size++;
     }
 
     /** @see java.lang.Object#clone() */
@@ -456,6 +696,29 @@ public final class ValueMap
     public ValueMap clone()
     {
         final ValueMap ret = new ValueMap();
+        if (this.ordered && this.numbers != null)
+        {
+            ret.numbers = this.size != 0 ? Arrays.copyOf(this.numbers,
+                    this.size) : NO_NUMBERS;
+            ret.size = ret.arraySize = this.size;
+            return ret;
+        }
+        if (this.shape != null)
+        {
+            // Same keys, same shape
+            ret.unorderString();
+            ret.setShape(this.shape);
+            ret.highestIntKey = this.highestIntKey;
+            ret.hash.ensureCapacity(this.size);
+            for (int i = 0; i < this.size; i++)
+            {
+                final Value v = this.hash.get(i);
+                ret.hash.add(v.isMap() ? new Value(v.getMap().clone()) : v
+                        .clone());
+            }
+            ret.size = ret.hashSize = this.size;
+            return ret;
+        }
         final Value k = new Value();
         final Value v = new Value();
         for (final ValueMapIterator i = new ValueMapIterator(this); i
@@ -466,54 +729,399 @@ public final class ValueMap
         return ret;
     }
 
-    private void remap(final int r)
+    /**
+     * Changes the value at the given position, which must not be part of a
+     * dense array part.
+     * 
+     * @param index
+     *            The position.
+     * @param value
+     *            The new value.
+     */
+    void put(final int index, final Value value)
+    {
+        final ArrayList<Value> list = index < this.arraySize ? this.data
+                : this.hash;
+        final int idx = index < this.arraySize ? index : index
+                - this.arraySize;
+        if (this.borrowed)
+            list.set(idx, value.clone());
+        else
+            value.copyTo(list.get(idx));
+    }
+
+    /**
+     * Changes the value of the live entry at the given position.
+     * 
+     * @param index
+     *            The position.
+     * @param value
+     *            The new value.
+     */
+    private void replace(final int index, final Value value)
+    {
+        if (index < this.arraySize)
+            this.setArray(index, value);
+        else
+            this.put(index, value);
+    }
+
+    /**
+     * Checks if the given list contains maps.
+     * 
+     * @param list
+     *            The list.
+     * @return <code>true</code> if so.
+     */
+    private static boolean containsMaps(final ArrayList<Value> list)
+    {
+        for (int i = 0; i < list.size(); i++)
+        {
+            final Value v = list.get(i);
+            if (v != null && v.type == ValueType.MAP)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Creates a copy of this map which shares the data of this map until
+     * either of them gets changed. Falls back to {@link #clone()} if this map
+     * contains maps.
+     * 
+     * @return The copy.
+     */
+    ValueMap cloneShared()
+    {
+        if (this.nested)
+            return this.clone();
+        if (!this.shared)
+        {
+            if ((this.numbers == null && containsMaps(this.data))
+                    || (this.hash != null && containsMaps(this.hash)))
+                return this.clone();
+            this.shared = true;
+        }
+        final ValueMap ret = new ValueMap();
+        ret.data = this.data;
+        ret.numbers = this.numbers;
+        ret.arraySize = this.arraySize;
+        ret.hash = this.hash;
+        ret.hashSize = this.hashSize;
+        ret.size = this.size;
+        ret.ordered = this.ordered;
+        ret.intKeys = this.intKeys;
+        ret.strKeys = this.strKeys;
+        ret.keyStrings = this.keyStrings;
+        ret.keyNumbers = this.keyNumbers;
+        ret.first = this.first;
+        ret.shape = this.shape;
+        ret.highestIntKey = this.highestIntKey;
+        ret.shared = true;
+        return ret;
+    }
+
+    /**
+     * Copies shared data before changing this map. The Values themselves stay
+     * shared, they get replaced instead of changed afterwards.
+     */
+    private void unshare()
+    {
+        if (!this.shared)
+            return;
+        if (this.frozen)
+            throw new WeelException("Can't change a frozen map");
+        this.shared = false;
+        if (this.numbers != null)
+        {
+            if (this.numbers.length != 0)
+                this.numbers = this.numbers.clone();
+        }
+        else
+        {
+            this.data = new ArrayList<Value>(this.data);
+            this.borrowed = true;
+        }
+        if (!this.ordered)
+        {
+            this.hash = new ArrayList<Value>(this.hash);
+            this.borrowed = true;
+            if (this.shape == null)
+            {
+                this.intKeys = new IntIndex(this.intKeys);
+                this.strKeys = new StringIndex(this.strKeys);
+                this.keyStrings = this.keyStrings.clone();
+                this.keyNumbers = this.keyNumbers.clone();
+            }
+        }
+    }
+
+    /**
+     * Makes this map and all maps inside it immutable, so that they can be
+     * read by several threads without locking. Changing a frozen map throws a
+     * WeelException, copies of a frozen map are not frozen.
+     * 
+     * @return This map.
+     * @throws WeelException
+     *             If this map contains a map that can't be frozen.
+     */
+    public ValueMap freeze()
     {
-        for(final Entry<Integer, Integer> e : this.intKeys.entrySet())
+        if (this.frozen)
+            return this;
+        this.frozen = true;
+        this.shared = true;
+        final Value k = new Value();
+        final Value v = new Value();
+        for (final ValueMapIterator i = new ValueMapIterator(this); i
+                .next(k, v);)
         {
-            final int i = e.getValue();
-            if(i > r)
+            if (v.type == ValueType.MAP)
             {
-                this.intKeys.put(e.getKey(), i - 1);
+                this.nested = true;
+                v.getMap().freeze();
             }
         }
-        for(final Entry<String, Integer> e : this.strKeys.entrySet())
+        return this;
+    }
+
+    /**
+     * Checks if this map is frozen.
+     * 
+     * @return <code>true</code> if so.
+     * @see #freeze()
+     */
+    public boolean isFrozen()
+    {
+        return this.frozen;
+    }
+
+    /**
+     * Moves the first position past removed entries, starting at the given
+     * position.
+     * 
+     * @param index
+     *            The position of the removed entry.
+     */
+    private void skipRemoved(final int index)
+    {
+        final int n = this.positions();
+        // The hash part starts at the array size, restart there if it moved
+        if (this.first > n)
+            this.first = this.arraySize;
+        if (index == this.first || this.first == this.arraySize)
+        {
+            while (this.first < n && !this.isLive(this.first))
+                this.first++;
+        }
+    }
+
+    /**
+     * Removes the entry at the given position of the hash part, its key must
+     * already be removed from the index. Inner entries are only marked as
+     * removed, so this runs in constant (amortized) time.
+     * 
+     * @param r
+     *            The position in the hash part.
+     * @return The removed value.
+     */
+    private Value removeAt(final int r)
+    {
+        final Value rem = this.hash.set(r, null);
+        this.keyStrings[r] = null;
+        this.hashSize--;
+        this.size--;
+        int n = this.hash.size();
+        if (r + 1 == n)
         {
-            final int i = e.getValue();
-            if(i > r)
+            // Keep the last entry alive
+            do
             {
-                this.strKeys.put(e.getKey(), i - 1);
+                this.hash.remove(--n);
             }
+            while (n > 0 && this.hash.get(n - 1) == null);
+        }
+        else if (n >= MIN_COMPACT && this.hashSize < (n >> 1))
+        {
+            this.compactHash();
+            return rem;
         }
+        this.skipRemoved(this.arraySize + r);
+        return rem;
     }
-    
+
     /**
-     * Removes the last entry in this map.
+     * Removes the live entry at the given position of the array part of an
+     * unordered map.
+     * 
+     * @param r
+     *            The position.
+     * @return The removed value.
      */
-    public Value removeLast()
+    private Value removeArray(final int r)
     {
-        if(this.size < 1)
-            return new Value();
-        
+        final Value rem;
         this.size--;
-        final Value rem = this.data.remove(this.size);
-        if(!this.ordered)
+        if (r + 1 == this.arraySize)
         {
-            final Value k = this.keys.remove(this.size);
-            this.data.remove(this.size);
-            if(k.type == ValueType.NUMBER)
+            if (this.numbers != null)
             {
-                this.intKeys.remove((int)k.number);
+                rem = new Value(this.numbers[--this.arraySize]);
             }
             else
             {
-                this.strKeys.remove(k.object);
+                rem = this.data.remove(--this.arraySize);
+                // Keep the last entry alive
+                while (this.arraySize > 0
+                        && this.data.get(this.arraySize - 1) == null)
+                {
+                    this.data.remove(--this.arraySize);
+                }
+            }
+            // Hash positions moved down with the array size
+            if (this.first > this.arraySize)
+                this.first = this.arraySize;
+        }
+        else
+        {
+            this.undense();
+            rem = this.data.set(r, null);
+            if (this.arraySize >= MIN_COMPACT
+                    && this.size - this.hashSize < (this.arraySize >> 1))
+            {
+                this.rehash(false);
+                return rem;
             }
         }
+        this.skipRemoved(r);
         return rem;
     }
-    
+
+    /**
+     * Removes all removed entries from the hash part.
+     */
+    private void compactHash()
+    {
+        final int n = this.hash.size();
+        int w = 0;
+        for (int r = 0; r < n; r++)
+        {
+            final Value v = this.hash.get(r);
+            if (v == null)
+                continue;
+            if (w != r)
+            {
+                this.hash.set(w, v);
+                final String k = this.keyStrings[r];
+                this.keyStrings[w] = k;
+                this.keyNumbers[w] = this.keyNumbers[r];
+                if (k != null)
+                    this.strKeys.put(k, w);
+                else
+                    this.intKeys.put(this.keyNumbers[r], w);
+            }
+            w++;
+        }
+        this.hash.subList(w, n).clear();
+        Arrays.fill(this.keyStrings, w, n, null);
+        if (this.first > this.arraySize)
+            this.first = this.arraySize;
+    }
+
+    /**
+     * Moves all entries of an unordered map into a new hash part without
+     * removed entries.
+     * 
+     * @param reverse
+     *            Reverse the iteration order?
+     */
+    private void rehash(final boolean reverse)
+    {
+        this.unshape();
+        final int n = this.size;
+        final int[] live = new int[n];
+        for (int p = this.first, e = this.positions(), c = 0; p < e; p++)
+        {
+            if (this.isLive(p))
+                live[c++] = p;
+        }
+        final ArrayList<Value> values = new ArrayList<Value>(Math.max(10, n));
+        final String[] strings = new String[Math.max(INITIAL_KEYS, n)];
+        final int[] ints = new int[strings.length];
+        final IntIndex ik = new IntIndex();
+        final StringIndex sk = new StringIndex();
+        for (int i = 0; i < n; i++)
+        {
+            final int p = live[reverse ? n - 1 - i : i];
+            final int q = p - this.arraySize;
+            if (q < 0)
+            {
+                values.add(this.numbers != null ? new Value(this.numbers[p])
+                        : this.data.get(p));
+                ints[i] = p;
+                ik.put(p, i);
+            }
+            else
+            {
+                values.add(this.hash.get(q));
+                strings[i] = this.keyStrings[q];
+                ints[i] = this.keyNumbers[q];
+                if (strings[i] != null)
+                    sk.put(strings[i], i);
+                else
+                    ik.put(ints[i], i);
+            }
+        }
+        this.hash = values;
+        this.keyStrings = strings;
+        this.keyNumbers = ints;
+        this.intKeys = ik;
+        this.strKeys = sk;
+        this.hashSize = n;
+        this.data = null;
+        this.numbers = NO_NUMBERS;
+        this.arraySize = 0;
+        this.first = 0;
+    }
+
+    /**
+     * Removes the last entry in this map.
+     */
+    public Value removeLast()
+    {
+        if(this.size < 1)
+            return new Value();
+
+        this.unshare();
+        if(this.ordered)
+        {
+            this.size--;
+            this.arraySize--;
+            if(this.numbers != null)
+                return new Value(this.numbers[this.size]);
+            return this.data.remove(this.size);
+        }
+        if(this.hashSize == 0)
+        {
+            return this.removeArray(this.arraySize - 1);
+        }
+        this.unshape();
+        final int r = this.hash.size() - 1;
+        final String k = this.keyStrings[r];
+        if(k == null)
+        {
+            this.intKeys.remove(this.keyNumbers[r]);
+        }
+        else
+        {
+            this.strKeys.remove(k);
+        }
+        return this.removeAt(r);
+    }
+
     public void remove(final Value index)
     {
+        this.unshare();
         if(index.type == ValueType.NUMBER)
         {
             final int idx = (int) index.number;
@@ -524,34 +1132,36 @@ public final class ValueMap
                 if(idx + 1 == this.size)
                 {
                     this.size--;
-                    this.data.remove(this.size);
+                    this.arraySize--;
+                    if(this.numbers == null)
+                        this.data.remove(this.size);
                     return;
                 }
                 this.unorder();
             }
-            final Integer idx2 = this.intKeys.get(idx);
-            if(idx2 != null)
+            final int pos = this.find(idx);
+            if(pos == -1)
+                return;
+            if(pos < this.arraySize)
+            {
+                this.removeArray(pos);
+            }
+            else
             {
-                final int r = idx2;
-                this.data.remove(r);
-                this.keys.remove(r);
                 this.intKeys.remove(idx);
-                this.remap(r);
+                this.removeAt(pos - this.arraySize);
             }
         }
         else if(index.type == ValueType.STRING)
         {
             if(this.ordered)
                 return;
-            
-            final Integer idx2 = this.strKeys.get(index.object);
-            if(idx2 != null)
+
+            this.unshape();
+            final int r = this.strKeys.remove((String) index.object);
+            if(r != -1)
             {
-                final int r = idx2;
-                this.data.remove(r);
-                this.keys.remove(r);
-                this.strKeys.remove(index.object);
-                this.remap(r);
+                this.removeAt(r);
             }
         }
         else
@@ -559,7 +1169,7 @@ public final class ValueMap
             throw new WeelException("Illegal map index type: " + index.type);
         }
     }
-    
+
     /**
      * Reverses this map.
      * 
@@ -567,13 +1177,170 @@ public final class ValueMap
      */
     public ValueMap reverse()
     {
-        // FIXME ... hä?
-        Collections.reverse(this.data);
-        Collections.reverse(this.keys);
-
+        this.unshare();
+        if (!this.ordered)
+        {
+            this.rehash(true);
+        }
+        else if (this.numbers != null)
+        {
+            for (int i = 0, j = this.size - 1; i < j; i++, j--)
+            {
+                final double d = this.numbers[i];
+                this.numbers[i] = this.numbers[j];
+                this.numbers[j] = d;
+            }
+        }
+        else
+        {
+            Collections.reverse(this.data);
+        }
         return this;
     }
 
+    /**
+     * Gets the last entry in this map.
+     * 
+     * @param key
+     *            The output key.
+     * @param value
+     *            The output value.
+     * @return <code>false</code> if this map is empty.
+     */
+    boolean last(final Value key, final Value value)
+    {
+        if (this.size == 0)
+            return false;
+        final int pos = this.positions() - 1;
+        this.getKey(pos, key);
+        this.valueAt(pos, value);
+        return true;
+    }
+
+    /**
+     * Gets the value of the given key, sets it to the given value if there is
+     * none.
+     * 
+     * @param key
+     *            The key.
+     * @param value
+     *            The value to set.
+     * @return The value of the key.
+     */
+    public Value getOrSet(final Value key, final Value value)
+    {
+        if (this.hasKey(key))
+            return this.get(key);
+        this.set(key, value);
+        return value.clone();
+    }
+
+    /**
+     * Adds the given delta to the numeric value of the given key. Missing
+     * keys count as zero.
+     * 
+     * @param key
+     *            The key.
+     * @param delta
+     *            The delta.
+     * @return The new value.
+     * @throws WeelException
+     *             If the value is not a number.
+     */
+    public double increment(final Value key, final double delta)
+    {
+        final Value v = new Value();
+        this.get(key, v);
+        final double n = add(v, delta);
+        this.set(key, v);
+        return n;
+    }
+
+    /**
+     * Adds a delta to a numeric or NULL Value.
+     * 
+     * @param value
+     *            The Value, gets changed to the result.
+     * @param delta
+     *            The delta.
+     * @return The result.
+     * @throws WeelException
+     *             If the value is not a number.
+     */
+    static double add(final Value value, final double delta)
+    {
+        if (value.type == ValueType.NULL)
+            value.number = 0;
+        else if (value.type != ValueType.NUMBER)
+            throw new WeelException("Can't increment a " + value.type);
+        value.type = ValueType.NUMBER;
+        value.number += delta;
+        return value.number;
+    }
+
+    /**
+     * Replaces the value of the given key by the result of the given
+     * function, which gets called with the current value (or NULL). A NULL
+     * result removes the key.
+     * 
+     * @param runtime
+     *            The runtime.
+     * @param key
+     *            The key.
+     * @param func
+     *            The function.
+     * @return The new value.
+     * @throws WeelException
+     *             If the function does not take one argument and return a
+     *             value.
+     */
+    public Value compute(final WeelRuntime runtime, final Value key,
+            final WeelFunction func)
+    {
+        final Value v = apply(runtime, func, this.get(key));
+        if (v.type == ValueType.NULL)
+            this.remove(key);
+        else
+            this.set(key, v);
+        return v;
+    }
+
+    /**
+     * Calls a function with one argument which returns a value.
+     * 
+     * @param runtime
+     *            The runtime.
+     * @param func
+     *            The function.
+     * @param value
+     *            The argument.
+     * @return The return value.
+     * @throws WeelException
+     *             If the function does not take one argument and return a
+     *             value.
+     */
+    static Value apply(final WeelRuntime runtime, final WeelFunction func,
+            final Value value)
+    {
+        if (func.arguments != 1 || !func.returnsValue)
+            throw new WeelException(
+                    "Function must take one argument and return a value");
+        runtime.load(value);
+        func.invoke(runtime);
+        return runtime.pop();
+    }
+
+    /**
+     * Gets an iterator over the entries of maps which don't use the array and
+     * hash parts.
+     * 
+     * @return The iterator or <code>null</code>.
+     */
+    Iterator<Map.Entry<Object, Value>> entries()
+    {
+        return null;
+    }
+
     /**
      * Creates an iterator.
      * 
@@ -594,8 +1361,10 @@ public final class ValueMap
     {
         /** The ValueMap. */
         private final ValueMap map;
-        /** Current cursor. */
-        private int cursor = 0;
+        /** Current position. */
+        private int cursor;
+        /** The entry iterator of concurrent maps. */
+        private final Iterator<Map.Entry<Object, Value>> entries;
 
         /**
          * Constructor.
@@ -606,6 +1375,8 @@ public final class ValueMap
         ValueMapIterator(final ValueMap map)
         {
             this.map = map;
+            this.cursor = map.first;
+            this.entries = map.entries();
         }
 
         /**
@@ -619,20 +1390,59 @@ public final class ValueMap
          */
         public boolean next(final Value key, final Value value)
         {
-            if (this.cursor < this.map.size)
+            if (this.entries != null)
             {
-                if (this.map.ordered)
+                if (!this.entries.hasNext())
+                    return false;
+                final Map.Entry<Object, Value> e = this.entries.next();
+                final Object k = e.getKey();
+                if (k instanceof String)
                 {
-                    key.type = ValueType.NUMBER;
-                    key.number = this.cursor;
+                    key.type = ValueType.STRING;
+                    key.number = 0;
+                    key.object = k;
                 }
                 else
                 {
-                    this.map.keys.get(this.cursor).copyTo(key);
+                    key.type = ValueType.NUMBER;
+                    key.number = (Integer) k;
+                    key.object = null;
                 }
-                this.map.data.get(this.cursor++).copyTo(value);
+                e.getValue().copyTo(value);
                 return true;
             }
+            final ValueMap map = this.map;
+            while (this.cursor < map.arraySize)
+            {
+                final int p = this.cursor++;
+                if (map.numbers != null)
+                {
+                    map.getKey(p, key);
+                    map.valueAt(p, value);
+                    return true;
+                }
+                final Value v = map.data.get(p);
+                if (v != null)
+                {
+                    map.getKey(p, key);
+                    v.copyTo(value);
+                    return true;
+                }
+            }
+            final ArrayList<Value> hash = map.hash;
+            if (hash == null)
+                return false;
+            while (this.cursor - map.arraySize < hash.size())
+            {
+                final Value v = hash.get(this.cursor - map.arraySize);
+                if (v != null)
+                {
+                    map.getKey(this.cursor++, key);
+                    v.copyTo(value);
+                    return true;
+                }
+                this.cursor++;
+            }
             return false;
         }
     }
@@ -641,17 +1451,18 @@ public final class ValueMap
     @Override
     public String toString()
     {
-        if(this.size == 0)
+        if(this.size() == 0)
             return "{}";
         final StringBuilder sb = new StringBuilder();
         sb.append('{');
         if(this.ordered)
         {
-            sb.append(this.data.get(0).toIntString());
+            final Value v = new Value();
+            sb.append(this.valueAt(0, v).toIntString());
             for(int i = 1; i < this.size; i++)
             {
                 sb.append(',');
-                sb.append(this.data.get(i).toIntString());
+                sb.append(this.valueAt(i, v).toIntString());
             }
         }
         else
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Shape (hidden class) of ValueMaps which only have string keys.
+ * 
+ * <p>
+ * Maps which got the same string keys added in the same order share one
+ * immutable shape mapping keys to value positions, instead of each having a
+ * key index of their own. Shapes form a transition tree rooted at
+ * {@link #EMPTY}. Maps with too many keys, or maps whose shape has too many
+ * transitions, switch to their own index.
+ * </p>
+ * 
+ * <p>
+ * The tree is shared by all Weels, so a shape only holds weak references to
+ * the shapes it leads to. A shape no map or inline cache uses any longer gets
+ * collected, together with everything below it.
+ * </p>
+ * 
+ * @author René Jeschke <rene_jeschke@yahoo.de>
+ * @see WeelMapSite
+ */
+final class ValueMapShape
+{
+    /** Maximum number of keys. */
+    private final static int MAX_KEYS = 64;
+    /** Maximum number of transitions per shape. */
+    private final static int MAX_TRANSITIONS = 32;
+    /** The empty shape. */
+    final static ValueMapShape EMPTY = new ValueMapShape();
+    /** The keys in insertion order. */
+    final String[] keys;
+    /** Key to position index. */
+    final StringIndex index;
+    /** Transitions by added key. */
+    private final HashMap<String, WeakReference<ValueMapShape>> transitions = new HashMap<String, WeakReference<ValueMapShape>>();
+
+    /**
+     * Constructor for the empty shape.
+     */
+    private ValueMapShape()
+    {
+        this.keys = new String[0];
+        this.index = new StringIndex();
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param parent
+     *            The parent shape.
+     * @param key
+     *            The added key.
+     */
+    private ValueMapShape(final ValueMapShape parent, final String key)
+    {
+        final int n = parent.keys.length;
+        this.keys = new String[n + 1];
+        System.arraycopy(parent.keys, 0, this.keys, 0, n);
+        this.keys[n] = key;
+        this.index = new StringIndex(parent.index);
+        this.index.put(key, n);
+    }
+
+    /**
+     * Gets the shape resulting from adding the given key.
+     * 
+     * @param key
+     *            The new key.
+     * @return The shape or <code>null</code> if a map with this shape should
+     *         use its own index instead.
+     */
+    ValueMapShape add(final String key)
+    {
+        if (this.keys.length == MAX_KEYS)
+            return null;
+        synchronized (this.transitions)
+        {
+            final WeakReference<ValueMapShape> ref = this.transitions.get(key);
+            ValueMapShape next = ref != null ? ref.get() : null;
+            if (next == null)
+            {
+                if (this.transitions.size() >= MAX_TRANSITIONS)
+                {
+                    this.removeCollected();
+                    if (this.transitions.size() >= MAX_TRANSITIONS)
+                        return null;
+                }
+                next = new ValueMapShape(this, key);
+                this.transitions.put(key, new WeakReference<ValueMapShape>(
+                        next));
+            }
+            return next;
+        }
+    }
+
+    /**
+     * Removes the transitions to shapes which got collected.
+     */
+    private void removeCollected()
+    {
+        final Iterator<WeakReference<ValueMapShape>> i = this.transitions
+                .values().iterator();
+        while (i.hasNext())
+        {
+            if (i.next().get() == null)
+                i.remove();
+        }
+    }
+}
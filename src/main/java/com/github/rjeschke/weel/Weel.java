@@ -17,11 +17,22 @@ package com.github.rjeschke.weel;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.github.rjeschke.weel.annotations.WeelClass;
@@ -55,12 +66,20 @@ import com.github.rjeschke.weel.jclass.WeelWriter;
  */
 public final class Weel
 {
-    /** Default size of the operand stack. */
-    public final static int DEFAULT_VALUE_STACK_SIZE = 8192;
-    /** Default size of the function frame stack. */
-    public final static int DEFAULT_FRAME_STACK_SIZE = 4096;
-    /** Default size of the closure function stack. */
-    public final static int DEFAULT_CLOSURE_STACK_SIZE = 256;
+    /** Weel version, bundles of other versions don't get loaded. */
+    public final static String VERSION = "0.5";
+    /** Default maximum size of the operand stack. */
+    public final static int DEFAULT_VALUE_STACK_SIZE = 1 << 20;
+    /** Default maximum size of the function frame stack. */
+    public final static int DEFAULT_FRAME_STACK_SIZE = 1 << 16;
+    /** Default maximum size of the closure function stack. */
+    public final static int DEFAULT_CLOSURE_STACK_SIZE = 1 << 16;
+    /** Default maximum number of idle runtimes kept for reuse. */
+    public final static int DEFAULT_RUNTIME_POOL_SIZE = 64;
+    /** Default maximum number of cached runtime compiled functions. */
+    public final static int DEFAULT_COMPILE_CACHE_SIZE = 256;
+    /** Default number of calls before a function gets optimized. */
+    public final static int DEFAULT_TIER_UP_THRESHOLD = 1000;
     /** Global variables. */
     final ArrayList<Value> globals = new ArrayList<Value>();
     /** Private variables. */
@@ -74,25 +93,55 @@ public final class Weel
     /** Name to exact function index mapping. */
     final HashMap<String, Integer> mapFunctionsExact = new HashMap<String, Integer>();
     /** Weel class loader. */
-    final WeelLoader classLoader = new WeelLoader();
+    final WeelLoader classLoader = new WeelLoader(this);
     /** Compiled script classes. */
     final ArrayList<String> scriptClasses = new ArrayList<String>();
     /** Type bound support functions. */
     final TypeFunctions[] typeFunctions = new TypeFunctions[6];
-    /** Counter for wrapper classes. */
-    final static AtomicLong wrapperCounter = new AtomicLong();
+    /** Type bound function internal name to slot mapping. */
+    private final HashMap<String, Integer> mapTypeFunctionSlots = new HashMap<String, Integer>();
+    /** Type bound function slot names. */
+    private final ArrayList<String> typeFunctionSlotNames = new ArrayList<String>();
+    /**
+     * Counter for wrapper classes. Per Weel, so library functions get the
+     * same class names in each Weel importing the same libraries.
+     */
+    final AtomicLong wrapperCounter = new AtomicLong();
     /** Counter for script classes. */
     final static AtomicLong scriptCounter = new AtomicLong();
+    /** Counter for invoker classes. */
+    final static AtomicLong invokerCounter = new AtomicLong();
+    /** Counter for interface binding classes. */
+    final static AtomicLong bindingCounter = new AtomicLong();
     /** Debug mode flag. */
     boolean debugMode = false;
     /** Debug mode flag. */
     boolean dumpCode = false;
-    /** Default size of the operand stack. */
+    /** Dynamic linking flag. */
+    boolean dynamicLinking = false;
+    /** Tiered compilation flag. */
+    boolean tieredCompilation = false;
+    /** Lazy compilation flag. */
+    boolean lazyCompilation = false;
+    /** Number of calls before a function gets optimized. */
+    int tierUpThreshold = DEFAULT_TIER_UP_THRESHOLD;
+    /** Profiles of functions compiled in tiered mode. */
+    final ArrayList<WeelProfile> profiles = new ArrayList<WeelProfile>();
+    /** Maximum size of the operand stack. */
     final int valueStackSize;
-    /** Default size of the function frame stack. */
+    /** Maximum size of the function frame stack. */
     final int frameStackSize;
-    /** Default size of the closure function stack. */
+    /** Maximum size of the closure function stack. */
     final int closureStackSize;
+    /** Idle runtimes for {@link #acquireRuntime()}. */
+    private final ConcurrentLinkedQueue<WeelRuntime> runtimePool = new ConcurrentLinkedQueue<WeelRuntime>();
+    /** Number of idle runtimes in the pool. */
+    private final AtomicInteger pooledRuntimes = new AtomicInteger();
+    /** Maximum number of idle runtimes in the pool. */
+    private volatile int runtimePoolSize = DEFAULT_RUNTIME_POOL_SIZE;
+    /** Cache for {@link #compileFunction(String)}. */
+    private final WeelCompileCache compileCache = new WeelCompileCache(
+            DEFAULT_COMPILE_CACHE_SIZE);
 
     private final static Class<?>[] STDLIB =
     { WeelLibMath.class, WeelLibString.class, WeelLibCon.class,
@@ -105,6 +154,18 @@ public final class Weel
             WeelSyncVar.class, WeelIo.class, WeelReader.class, WeelWriter.class,
             WeelStack.class};
 
+    /** Order of imported methods. */
+    private final static Comparator<Method> METHOD_ORDER = new Comparator<Method>()
+    {
+        /** @see java.util.Comparator#compare(Object, Object) */
+        @Override
+        public int compare(final Method a, final Method b)
+        {
+            final int c = a.getName().compareTo(b.getName());
+            return c != 0 ? c : a.toString().compareTo(b.toString());
+        }
+    };
+
     /** ThreadLocal variable for Weel Runtimes associated with this Weel class. */
     private final ThreadLocal<WeelRuntime> runtime = new ThreadLocal<WeelRuntime>()
     {
@@ -128,12 +189,17 @@ public final class Weel
     /**
      * Constructor.
      * 
+     * <p>
+     * The stacks of each runtime start small and grow on demand up to the
+     * given sizes.
+     * </p>
+     * 
      * @param stackSize
-     *            Size of the operand stack in slots.
+     *            Maximum size of the operand stack in slots.
      * @param fStackSize
-     *            Size of the frame stack in slots.
+     *            Maximum size of the frame stack in slots.
      * @param cStackSize
-     *            Size of the closure function stack in slots.
+     *            Maximum size of the closure function stack in slots.
      */
     public Weel(final int stackSize, final int fStackSize, final int cStackSize)
     {
@@ -154,7 +220,7 @@ public final class Weel
         // Initialize type functions
         for(int i = 0; i < this.typeFunctions.length; i++)
         {
-            this.typeFunctions[i] = new TypeFunctions();
+            this.typeFunctions[i] = new TypeFunctions(this);
         }
     }
 
@@ -181,6 +247,162 @@ public final class Weel
         this.dumpCode = enable;
     }
 
+    /**
+     * Enables or disables dynamic linking for code compiled after this call.
+     * 
+     * <p>
+     * With dynamic linking, static calls are compiled to
+     * <code>invokedynamic</code> instead of <code>invokestatic</code>, and
+     * compiling a script which declares an already existing public sub/func
+     * replaces that function instead of failing with a 'Duplicate function'
+     * error. All dynamically linked call sites get relinked to the new code
+     * and stay inlinable for the JIT until the function gets redefined again.
+     * Code compiled without dynamic linking keeps calling the old function.
+     * </p>
+     * <p>
+     * A redefinition has to keep the sub/func type and the number of
+     * arguments. Requires Java 7 or later.
+     * </p>
+     * 
+     * @param enable
+     *            On or off?
+     * @throws WeelException
+     *             if the running JVM doesn't support invokedynamic.
+     */
+    public void setDynamicLinking(final boolean enable)
+    {
+        if(enable)
+        {
+            try
+            {
+                Class.forName("java.lang.invoke.MutableCallSite");
+            }
+            catch(ClassNotFoundException e)
+            {
+                throw new WeelException("Dynamic linking needs Java 7 or later");
+            }
+        }
+        this.dynamicLinking = enable;
+    }
+
+    /**
+     * Enables or disables tiered compilation for code compiled after this
+     * call.
+     * 
+     * <p>
+     * In tiered mode, functions count their calls and record the types of
+     * their arguments, variable loads, call and map results. After
+     * {@link #setTierUpThreshold(int)} calls a function gets recompiled
+     * assuming that values which only ever were numbers stay numbers. These
+     * assumptions are checked by type guards, a failing guard continues the
+     * current call in unoptimized code. Functions whose guards keep failing
+     * get recompiled without the failing assumptions.
+     * </p>
+     * 
+     * @param enable
+     *            On or off?
+     */
+    public void setTieredCompilation(final boolean enable)
+    {
+        this.tieredCompilation = enable;
+    }
+
+    /**
+     * Enables or disables lazy compilation for code compiled after this call.
+     * 
+     * <p>
+     * In lazy mode, subs and funcs get parsed and checked when compiling a
+     * script, but they get optimized and turned into bytecode on their first
+     * call. This speeds up compiling large scripts of which only few
+     * functions get used. Anonymous functions are always compiled right away.
+     * </p>
+     * 
+     * @param enable
+     *            On or off?
+     */
+    public void setLazyCompilation(final boolean enable)
+    {
+        this.lazyCompilation = enable;
+    }
+
+    /**
+     * Sets the number of calls after which a function gets optimized in
+     * tiered mode.
+     * 
+     * @param calls
+     *            Number of calls.
+     * @see #setTieredCompilation(boolean)
+     */
+    public void setTierUpThreshold(final int calls)
+    {
+        if (calls < 1)
+            throw new WeelException("Illegal tier up threshold: " + calls);
+        this.tierUpThreshold = calls;
+    }
+
+    /**
+     * Sets the maximum number of idle runtimes kept for reuse by
+     * {@link #acquireRuntime()}.
+     * 
+     * @param size
+     *            The pool size, <code>0</code> disables pooling.
+     */
+    public void setRuntimePoolSize(final int size)
+    {
+        if (size < 0)
+            throw new WeelException("Illegal runtime pool size: " + size);
+        this.runtimePoolSize = size;
+        while (this.pooledRuntimes.get() > size
+                && this.runtimePool.poll() != null)
+            this.pooledRuntimes.decrementAndGet();
+    }
+
+    /**
+     * Sets the maximum number of runtime compiled functions kept by
+     * {@link #compileFunction(String)}.
+     * 
+     * @param size
+     *            The cache size, <code>0</code> disables caching.
+     */
+    public void setCompileCacheSize(final int size)
+    {
+        if (size < 0)
+            throw new WeelException("Illegal compile cache size: " + size);
+        this.compileCache.setMaxSize(size);
+    }
+
+    /**
+     * Removes all functions from the compile cache.
+     * 
+     * @see #compileFunction(String)
+     */
+    public void clearCompileCache()
+    {
+        this.compileCache.clear();
+    }
+
+    /**
+     * Gets the number of calls to {@link #compileFunction(String)} which
+     * returned a cached function.
+     * 
+     * @return The number of cache hits.
+     */
+    public long getCompileCacheHits()
+    {
+        return this.compileCache.hits.get();
+    }
+
+    /**
+     * Gets the number of calls to {@link #compileFunction(String)} which
+     * had to compile the function.
+     * 
+     * @return The number of cache misses.
+     */
+    public long getCompileCacheMisses()
+    {
+        return this.compileCache.misses.get();
+    }
+
     /**
      * Invokes the Weel function with the given name and arguments.
      * 
@@ -224,6 +446,52 @@ public final class Weel
         return this.getRuntime().invoke(function, args);
     }
 
+    /**
+     * Creates an implementation of the given Java interface which calls the
+     * Weel functions with the same name and number of arguments as its
+     * methods.
+     * 
+     * <p>
+     * Arguments and return values are converted according to the method
+     * signature, so calls don't need an Object array or boxing for primitives,
+     * Strings, ValueMaps, WeelFunctions or Values. Arguments of type Object are
+     * converted like in {@link #invoke(String, Object...)} and returned Weel
+     * numbers are Doubles for return type Object. The returned instance can be
+     * used from any thread and always uses the current thread's runtime.
+     * </p>
+     * 
+     * @param iface
+     *            A public interface visible to Weel's class loader.
+     * @return The implementation.
+     * @throws WeelException
+     *             if a function is missing or a sub would have to return a
+     *             value.
+     */
+    public <T> T bind(final Class<T> iface)
+    {
+        return WeelBindingFactory.bind(this, iface);
+    }
+
+    /**
+     * Creates an implementation of the given single method Java interface
+     * (like <code>java.util.function.Function</code> or
+     * <code>java.lang.Runnable</code>) which calls the given function.
+     * 
+     * @param function
+     *            The function.
+     * @param iface
+     *            A public interface with exactly one abstract method, taking
+     *            as many arguments as the function.
+     * @return The implementation.
+     * @throws WeelException
+     *             if the interface doesn't fit the function.
+     * @see #bind(Class)
+     */
+    public <T> T bind(final WeelFunction function, final Class<T> iface)
+    {
+        return WeelBindingFactory.bind(this, function, iface);
+    }
+
     /**
      * Compiles the given input String.
      * 
@@ -276,6 +544,128 @@ public final class Weel
         compiler.compile(input, filename);
     }
 
+    /**
+     * Compiles the given input Strings, using as many threads as there are
+     * processors.
+     * 
+     * @param inputs
+     *            The input Strings.
+     * @param filenames
+     *            The filenames used in error messages, may be
+     *            <code>null</code>.
+     * @see #compileAll(List, List, ExecutorService)
+     */
+    public void compileAll(final List<String> inputs,
+            final List<String> filenames)
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool(Math
+                .max(1, Math.min(inputs.size(), Runtime.getRuntime()
+                        .availableProcessors())));
+        try
+        {
+            this.compileAll(inputs, filenames, executor);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Compiles the given input Strings in parallel.
+     * 
+     * <p>
+     * The result is the same as compiling the inputs one after another using
+     * {@link #compile(String, String)}: functions and variables get declared
+     * in input order and each input sees the declarations of all earlier
+     * ones. Parsing therefore happens on the calling thread, while
+     * optimization and bytecode generation of each input run on the given
+     * executor, overlapping with parsing the following inputs. The compiled
+     * classes get loaded in input order.
+     * </p>
+     * 
+     * @param inputs
+     *            The input Strings.
+     * @param filenames
+     *            The filenames used in error messages, may be
+     *            <code>null</code>.
+     * @param executor
+     *            The executor to use, it doesn't get shut down.
+     * @throws WeelException
+     *             the error of the first failing input.
+     */
+    public void compileAll(final List<String> inputs,
+            final List<String> filenames, final ExecutorService executor)
+    {
+        final ArrayList<Compiler> compilers = new ArrayList<Compiler>();
+        final ArrayList<Future<Void>> tasks = new ArrayList<Future<Void>>();
+        WeelException error = null;
+
+        try
+        {
+            for(int i = 0; i < inputs.size(); i++)
+            {
+                final Compiler compiler = new Compiler(this);
+                compiler.parse(inputs.get(i), filenames != null ? filenames
+                        .get(i) : null);
+                if(this.dumpCode)
+                {
+                    // Keep dumps in order
+                    compiler.generate();
+                    compilers.add(compiler);
+                    tasks.add(null);
+                    continue;
+                }
+                compilers.add(compiler);
+                tasks.add(executor.submit(new Callable<Void>()
+                {
+                    /** @see java.util.concurrent.Callable#call() */
+                    @Override
+                    public Void call()
+                    {
+                        compiler.generate();
+                        return null;
+                    }
+                }));
+            }
+        }
+        catch(WeelException e)
+        {
+            error = e;
+        }
+
+        for(int i = 0; i < compilers.size(); i++)
+        {
+            final Future<Void> task = tasks.get(i);
+            try
+            {
+                if(task != null)
+                    task.get();
+            }
+            catch(InterruptedException e)
+            {
+                throw new WeelException(e);
+            }
+            catch(ExecutionException e)
+            {
+                if(e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new WeelException(e.getCause());
+            }
+            compilers.get(i).load();
+        }
+
+        // Functions of a failed input never get loaded
+        if(error != null)
+            throw error;
+
+        // Invokers need the classes of all declared functions
+        for(final Compiler compiler : compilers)
+        {
+            compiler.link();
+        }
+    }
+
     /**
      * Compiles a file given as a Java resource.
      * 
@@ -298,17 +688,94 @@ public final class Weel
         }
     }
 
+    /**
+     * Writes all compiled scripts to a pre-compiled bundle.
+     * 
+     * <p>
+     * Loading the bundle using {@link #loadBundle(InputStream, String)} into
+     * a new Weel is much faster than compiling the scripts again. Code
+     * compiled in tiered mode can't be saved.
+     * </p>
+     * 
+     * @param output
+     *            The output stream.
+     * @param sourceHash
+     *            A hash of the script sources, used to detect outdated
+     *            bundles.
+     * @throws WeelException
+     *             if an I/O error occurred or tiered compilation was used.
+     */
+    public void saveBundle(final OutputStream output, final String sourceHash)
+    {
+        try
+        {
+            WeelBundle.write(this, output, sourceHash);
+        }
+        catch(IOException e)
+        {
+            throw new WeelException(e);
+        }
+    }
+
+    /**
+     * Loads a pre-compiled bundle written by
+     * {@link #saveBundle(OutputStream, String)}.
+     * 
+     * <p>
+     * This Weel must not contain any compiled scripts and has to import the
+     * same libraries (in the same order) as the Weel which saved the bundle.
+     * Call {@link #runStatic()} afterwards, just like after compiling.
+     * </p>
+     * 
+     * @param input
+     *            The input stream.
+     * @param sourceHash
+     *            The hash of the current script sources.
+     * @return <code>false</code> if the bundle is outdated (different source
+     *         hash or Weel version), nothing gets loaded in this case.
+     * @throws WeelException
+     *             if an I/O error occurred or the bundle doesn't match this
+     *             Weel.
+     */
+    public boolean loadBundle(final InputStream input, final String sourceHash)
+    {
+        try
+        {
+            return WeelBundle.read(this, input, sourceHash);
+        }
+        catch(IOException e)
+        {
+            throw new WeelException(e);
+        }
+    }
+
     /**
      * Compiles the given input String (which must be an anonymous function).
      * 
+     * <p>
+     * Compiled functions are cached, compiling the same input again (with
+     * the same debug mode, dynamic linking and tiered compilation settings)
+     * returns the same function. Each function gets its own class loader, so
+     * its code gets unloaded once neither the function nor the cache refer
+     * to it. Runtime compiled functions don't get optimized in tiered mode.
+     * </p>
+     * 
      * @param input
      *            The input String.
      * @return The compiled function.
+     * @see #setCompileCacheSize(int)
      */
     public WeelFunction compileFunction(final String input)
     {
-        final Compiler compiler = new Compiler(this);
-        return compiler.compileFunction(input);
+        final String key = WeelCompileCache.key(this, input);
+        WeelFunction func = this.compileCache.get(key);
+        if (func == null)
+        {
+            final Compiler compiler = new Compiler(this);
+            func = compiler.compileFunction(input);
+            this.compileCache.put(key, func);
+        }
+        return func;
     }
 
     /**
@@ -396,6 +863,11 @@ public final class Weel
     /**
      * Gets a Runtime object local to the current Thread.
      * 
+     * <p>
+     * Threads which only run Weel code once in a while (e.g. executor or
+     * request threads) should use {@link #acquireRuntime()} instead.
+     * </p>
+     * 
      * @return A Runtime.
      * @see com.github.rjeschke.weel.WeelRuntime
      * @see java.lang.ThreadLocal
@@ -405,6 +877,57 @@ public final class Weel
         return this.runtime.get();
     }
 
+    /**
+     * Takes a Runtime object from the pool, creating a new one if the pool is
+     * empty.
+     * 
+     * <p>
+     * Unlike {@link #getRuntime()} the Runtime is not bound to the current
+     * Thread, it may be handed over to other Threads as long as only one of
+     * them uses it at a time. It has to be given back using
+     * {@link WeelRuntime#release()} when it is no longer needed:
+     * </p>
+     * 
+     * <pre>
+     * final WeelRuntime runtime = weel.acquireRuntime();
+     * try
+     * {
+     *     runtime.invoke(function, args);
+     * }
+     * finally
+     * {
+     *     runtime.release();
+     * }
+     * </pre>
+     * 
+     * @return A Runtime.
+     * @see #setRuntimePoolSize(int)
+     */
+    public WeelRuntime acquireRuntime()
+    {
+        WeelRuntime runtime = this.runtimePool.poll();
+        if (runtime != null)
+            this.pooledRuntimes.decrementAndGet();
+        else
+            runtime = new WeelRuntime(this);
+        runtime.acquired = true;
+        return runtime;
+    }
+
+    /**
+     * Puts a released Runtime back into the pool if the pool is not full.
+     * 
+     * @param runtime
+     *            The cleared Runtime.
+     */
+    void releaseRuntime(final WeelRuntime runtime)
+    {
+        if (this.pooledRuntimes.incrementAndGet() <= this.runtimePoolSize)
+            this.runtimePool.offer(runtime);
+        else
+            this.pooledRuntimes.decrementAndGet();
+    }
+
     /**
      * Gets a temporary Runtime object for optimization purposes.
      * 
@@ -494,6 +1017,48 @@ public final class Weel
         return this.mapGlobals.containsKey(name.toLowerCase());
     }
 
+    /**
+     * Gets the dispatch slot of a type bound function, creating a new one if
+     * necessary. Slots are shared by all types.
+     * 
+     * @param iname
+     *            The internal name (<code>name#args</code>).
+     * @return The slot.
+     */
+    synchronized int getTypeFunctionSlot(final String iname)
+    {
+        final String name = iname.toLowerCase();
+        final Integer slot = this.mapTypeFunctionSlots.get(name);
+        if(slot != null)
+            return slot;
+        final int index = this.typeFunctionSlotNames.size();
+        this.typeFunctionSlotNames.add(name);
+        this.mapTypeFunctionSlots.put(name, index);
+        return index;
+    }
+
+    /**
+     * Gets the internal name of a type bound function slot.
+     * 
+     * @param slot
+     *            The slot.
+     * @return The internal name (<code>name#args</code>).
+     */
+    synchronized String getTypeFunctionSlotName(final int slot)
+    {
+        return this.typeFunctionSlotNames.get(slot);
+    }
+
+    /**
+     * Gets the number of type bound function slots.
+     * 
+     * @return The number of slots.
+     */
+    synchronized int getTypeFunctionSlotCount()
+    {
+        return this.typeFunctionSlotNames.size();
+    }
+
     /**
      * Finds the given function.
      * 
@@ -570,6 +1135,9 @@ public final class Weel
     public void importFunctions(Class<?> clazz)
     {
         final Method[] methods = clazz.getDeclaredMethods();
+        // The JVM returns methods in no particular order, sort them to get
+        // the same function indices in each Weel (see saveBundle())
+        Arrays.sort(methods, METHOD_ORDER);
         final WeelClass wclass = clazz.getAnnotation(WeelClass.class);
         ValueMap map;
         final String prefix;
@@ -696,7 +1264,7 @@ public final class Weel
                 if(mw == null)
                 {
                     mw = new MethodWrapper("Wrap$" + clazz.getSimpleName()
-                            + "$" + wrapperCounter.getAndIncrement());
+                            + "$" + this.wrapperCounter.getAndIncrement());
                 }
 
                 final String fname = (nice.name().length() > 0 ? nice.name()
@@ -738,7 +1306,7 @@ public final class Weel
         for(final WeelFunction func : this.functions)
         {
             if(func.invoker == null)
-                func.invoker = WeelInvokerFactory.create();
+                func.invoker = WeelInvokerFactory.create(this, func);
             func.initialize(this);
         }
     }
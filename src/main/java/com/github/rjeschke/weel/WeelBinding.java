@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+/**
+ * Base class for generated Java interface bindings.
+ * 
+ * <p>
+ * This class is public because generated bindings live in their own class
+ * loader and therefore can't extend package private classes. It is not
+ * intended for any other use.
+ * </p>
+ * 
+ * @author René Jeschke <rene_jeschke@yahoo.de>
+ * @see Weel#bind(Class)
+ * @see Weel#bind(WeelFunction, Class)
+ */
+public abstract class WeelBinding
+{
+    /** The Weel. */
+    private Weel weel;
+    /** The bound functions, indexed by generated methods. */
+    private WeelFunction[] functions;
+
+    /**
+     * Constructor.
+     */
+    protected WeelBinding()
+    {
+        // empty
+    }
+
+    /**
+     * Initializes this binding.
+     * 
+     * @param weel
+     *            The Weel.
+     * @param functions
+     *            The bound functions.
+     */
+    final void initialize(final Weel weel, final WeelFunction[] functions)
+    {
+        this.weel = weel;
+        this.functions = functions;
+    }
+
+    /**
+     * Gets the runtime of the current thread.
+     * 
+     * @return The runtime.
+     */
+    protected final WeelRuntime runtime()
+    {
+        return this.weel.getRuntime();
+    }
+
+    /**
+     * Invokes a bound function. The arguments have to be on the runtime's
+     * stack.
+     * 
+     * @param runtime
+     *            The runtime.
+     * @param index
+     *            The function index.
+     */
+    protected final void invoke(final WeelRuntime runtime, final int index)
+    {
+        this.functions[index].invoke(runtime);
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Java interface binding factory.
+ * 
+ * <p>
+ * Creates a class implementing a Java interface, where every method pushes
+ * its typed arguments directly onto the Weel stack, calls a Weel function and
+ * pops a typed result. This is the opposite of {@link MethodWrapper}.
+ * </p>
+ * 
+ * <p>
+ * Supported types are all primitives, String, ValueMap, WeelFunction and
+ * Value. Object, boxed primitives and CharSequences are converted like
+ * {@link Weel#invoke(String, Object...)} does, other classes are passed as
+ * Weel objects.
+ * </p>
+ * 
+ * @author René Jeschke <rene_jeschke@yahoo.de>
+ */
+final class WeelBindingFactory
+{
+    /** Name of the binding base class. */
+    private final static String BASE_CLASS = WeelBinding.class.getName();
+    /** Name of the runtime class. */
+    private final static String RUNTIME = WeelRuntime.class.getName();
+
+    /**
+     * Binds all abstract methods of the given interface to the Weel functions
+     * with the same name and number of arguments.
+     * 
+     * @param weel
+     *            The Weel.
+     * @param iface
+     *            The interface.
+     * @return The binding.
+     */
+    public final static <T> T bind(final Weel weel, final Class<T> iface)
+    {
+        final ArrayList<Method> methods = getMethods(iface);
+        final WeelFunction[] functions = new WeelFunction[methods.size()];
+        for (int i = 0; i < functions.length; i++)
+        {
+            final Method m = methods.get(i);
+            functions[i] = weel.findFunction(m.getName(),
+                    m.getParameterTypes().length);
+            if (functions[i] == null)
+            {
+                throw new WeelException("Unknown function '" + m.getName()
+                        + "'(" + m.getParameterTypes().length + ") for "
+                        + m.toGenericString());
+            }
+        }
+        return create(weel, iface, methods, functions);
+    }
+
+    /**
+     * Binds the single abstract method of the given interface to the given
+     * function.
+     * 
+     * @param weel
+     *            The Weel.
+     * @param function
+     *            The function.
+     * @param iface
+     *            The interface.
+     * @return The binding.
+     */
+    public final static <T> T bind(final Weel weel,
+            final WeelFunction function, final Class<T> iface)
+    {
+        final ArrayList<Method> methods = getMethods(iface);
+        if (methods.size() != 1)
+        {
+            throw new WeelException(iface.getName()
+                    + " does not have exactly one abstract method");
+        }
+        if (methods.get(0).getParameterTypes().length != function.arguments)
+        {
+            throw new WeelException("Argument count mismatch, "
+                    + methods.get(0).toGenericString() + " can't call "
+                    + function);
+        }
+        return create(weel, iface, methods, new WeelFunction[]
+        { function });
+    }
+
+    /**
+     * Gets all abstract methods of the given interface, ignoring methods
+     * declared by Object.
+     * 
+     * @param iface
+     *            The interface.
+     * @return The methods.
+     */
+    private static ArrayList<Method> getMethods(final Class<?> iface)
+    {
+        if (!iface.isInterface() || !Modifier.isPublic(iface.getModifiers()))
+        {
+            throw new WeelException(iface.getName()
+                    + " is not a public interface");
+        }
+        final ArrayList<Method> methods = new ArrayList<Method>();
+        final HashSet<String> seen = new HashSet<String>();
+        for (final Method m : iface.getMethods())
+        {
+            if (!Modifier.isAbstract(m.getModifiers()) || isObjectMethod(m))
+                continue;
+            if (seen.add(m.getName() + getDescriptor(m)))
+                methods.add(m);
+        }
+        return methods;
+    }
+
+    /**
+     * Checks if the given method is declared by Object.
+     * 
+     * @param m
+     *            The method.
+     * @return <code>true</code> if so.
+     */
+    private static boolean isObjectMethod(final Method m)
+    {
+        try
+        {
+            Object.class.getMethod(m.getName(), m.getParameterTypes());
+            return true;
+        }
+        catch (NoSuchMethodException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Gets the descriptor of the given method.
+     * 
+     * @param m
+     *            The method.
+     * @return The descriptor.
+     */
+    private static String getDescriptor(final Method m)
+    {
+        return "(" + JvmClassWriter.buildDescriptor(m.getParameterTypes())
+                + ")" + JvmClassWriter.buildDescriptor(m.getReturnType());
+    }
+
+    /**
+     * Creates the binding class and instance.
+     * 
+     * @param weel
+     *            The Weel.
+     * @param iface
+     *            The interface.
+     * @param methods
+     *            The methods to implement.
+     * @param functions
+     *            The functions to call, same order as methods.
+     * @return The binding.
+     */
+    private static <T> T create(final Weel weel, final Class<T> iface,
+            final ArrayList<Method> methods, final WeelFunction[] functions)
+    {
+        final JvmClassWriter cw = new JvmClassWriter(
+                "com.github.rjeschke.weel.bindings.Binding"
+                        + Weel.bindingCounter.getAndIncrement(), BASE_CLASS,
+                Modifier.PUBLIC);
+        cw.addInterface(iface.getName());
+
+        for (int i = 0; i < functions.length; i++)
+        {
+            final Method m = methods.get(i);
+            final WeelFunction func = functions[i];
+            if (!func.returnsValue && m.getReturnType() != void.class)
+            {
+                throw new WeelException("Sub " + func + " can't implement "
+                        + m.toGenericString());
+            }
+            writeMethod(cw, m, func, i);
+        }
+
+        try
+        {
+            // Each binding gets its own class loader, so its class gets
+            // unloaded once the binding is no longer used
+            final WeelBinding binding = (WeelBinding) new WeelLoader(
+                    weel.classLoader).addClass(cw).getDeclaredConstructor()
+                    .newInstance();
+            binding.initialize(weel, functions);
+            return iface.cast(binding);
+        }
+        catch (WeelException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new WeelException(e);
+        }
+    }
+
+    /**
+     * Writes an interface method implementation.
+     * 
+     * @param cw
+     *            The class writer.
+     * @param m
+     *            The method.
+     * @param func
+     *            The function.
+     * @param index
+     *            The function index.
+     */
+    private static void writeMethod(final JvmClassWriter cw, final Method m,
+            final WeelFunction func, final int index)
+    {
+        final Class<?>[] params = m.getParameterTypes();
+        final JvmMethodWriter mw = cw.createMethod(m.getName(),
+                getDescriptor(m), Modifier.PUBLIC | Modifier.FINAL);
+
+        int rt = 1;
+        for (final Class<?> t : params)
+        {
+            rt += t == long.class || t == double.class ? 2 : 1;
+        }
+
+        mw.aload(0);
+        mw.invokeVirtual(BASE_CLASS, "runtime",
+                "()Lcom/github/rjeschke/weel/WeelRuntime;");
+        mw.astore(rt);
+
+        for (int i = 0, p = 1; i < params.length; i++)
+        {
+            final Class<?> t = params[i];
+            mw.aload(rt);
+            p += mw.load(t, p);
+            if (t == double.class)
+            {
+                mw.invokeVirtual(RUNTIME, "load", "(D)V");
+            }
+            else if (t == long.class)
+            {
+                mw.addOp(JvmOp.L2D);
+                mw.invokeVirtual(RUNTIME, "load", "(D)V");
+            }
+            else if (t == float.class)
+            {
+                mw.invokeVirtual(RUNTIME, "load", "(F)V");
+            }
+            else if (t == boolean.class)
+            {
+                mw.invokeVirtual(RUNTIME, "load", "(Z)V");
+            }
+            else if (t.isPrimitive())
+            {
+                mw.invokeVirtual(RUNTIME, "load", "(I)V");
+            }
+            else if (t == String.class)
+            {
+                mw.invokeVirtual(RUNTIME, "load", "(Ljava/lang/String;)V");
+            }
+            else if (t == ValueMap.class)
+            {
+                mw.invokeVirtual(RUNTIME, "load",
+                        "(Lcom/github/rjeschke/weel/ValueMap;)V");
+            }
+            else if (t == WeelFunction.class)
+            {
+                mw.invokeVirtual(RUNTIME, "load",
+                        "(Lcom/github/rjeschke/weel/WeelFunction;)V");
+            }
+            else if (t == Value.class)
+            {
+                mw.invokeVirtual(RUNTIME, "load",
+                        "(Lcom/github/rjeschke/weel/Value;)V");
+            }
+            else if (t == Object.class || t == Boolean.class
+                    || t == Character.class
+                    || Number.class.isAssignableFrom(t)
+                    || CharSequence.class.isAssignableFrom(t))
+            {
+                mw.invokeVirtual(RUNTIME, "loadBoxed", "(Ljava/lang/Object;)V");
+            }
+            else
+            {
+                mw.invokeVirtual(RUNTIME, "load", "(Ljava/lang/Object;)V");
+            }
+        }
+
+        mw.aload(0);
+        mw.aload(rt);
+        mw.ldc(index);
+        mw.invokeVirtual(BASE_CLASS, "invoke",
+                "(Lcom/github/rjeschke/weel/WeelRuntime;I)V");
+
+        final Class<?> t = m.getReturnType();
+        if (t == void.class)
+        {
+            if (func.returnsValue)
+            {
+                mw.aload(rt);
+                mw.invokeVirtual(RUNTIME, "pop1", "()V");
+            }
+            mw.addOp(JvmOp.RETURN);
+            return;
+        }
+
+        mw.aload(rt);
+        if (t == boolean.class)
+        {
+            mw.invokeVirtual(RUNTIME, "popBoolean", "()Z");
+            mw.addOp(JvmOp.IRETURN);
+        }
+        else if (t.isPrimitive())
+        {
+            mw.invokeVirtual(RUNTIME, "popNumber", "()D");
+            if (t == double.class)
+            {
+                mw.addOp(JvmOp.DRETURN);
+            }
+            else if (t == long.class)
+            {
+                mw.addOp(JvmOp.D2L);
+                mw.addOp(JvmOp.LRETURN);
+            }
+            else if (t == float.class)
+            {
+                mw.addOp(JvmOp.D2F);
+                mw.addOp(JvmOp.FRETURN);
+            }
+            else
+            {
+                mw.addOp(JvmOp.D2I);
+                if (t == byte.class)
+                    mw.addOp(JvmOp.I2B);
+                else if (t == char.class)
+                    mw.addOp(JvmOp.I2C);
+                else if (t == short.class)
+                    mw.addOp(JvmOp.I2S);
+                mw.addOp(JvmOp.IRETURN);
+            }
+        }
+        else
+        {
+            if (t == String.class)
+            {
+                mw.invokeVirtual(RUNTIME, "popString", "()Ljava/lang/String;");
+            }
+            else if (t == ValueMap.class)
+            {
+                mw.invokeVirtual(RUNTIME, "popMap",
+                        "()Lcom/github/rjeschke/weel/ValueMap;");
+            }
+            else if (t == WeelFunction.class)
+            {
+                mw.invokeVirtual(RUNTIME, "popFunction",
+                        "()Lcom/github/rjeschke/weel/WeelFunction;");
+            }
+            else if (t == Value.class)
+            {
+                mw.invokeVirtual(RUNTIME, "pop",
+                        "()Lcom/github/rjeschke/weel/Value;");
+            }
+            else
+            {
+                mw.invokeVirtual(RUNTIME, "popBoxed", "()Ljava/lang/Object;");
+                if (t != Object.class)
+                {
+                    mw.checkCast(t.getName());
+                }
+            }
+            mw.addOp(JvmOp.ARETURN);
+        }
+    }
+}
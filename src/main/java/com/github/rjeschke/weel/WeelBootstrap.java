@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+/**
+ * Bootstrap for dynamically linked static calls.
+ * 
+ * <p>
+ * Every function gets one MutableCallSite shared by all of its call sites.
+ * The target is the compiled static method, so the JIT can inline it like an
+ * <code>invokestatic</code>. Redefining a function retargets the call site.
+ * </p>
+ * 
+ * <p>
+ * This class is public because it is referenced by compiled scripts, which
+ * live in their own class loader. It is not intended for any other use and
+ * is only loaded when dynamic linking is enabled.
+ * </p>
+ * 
+ * @author René Jeschke <rene_jeschke@yahoo.de>
+ * @see Weel#setDynamicLinking(boolean)
+ */
+public final class WeelBootstrap
+{
+    /** The bootstrap method descriptor. */
+    final static String DESCRIPTOR = "(Ljava/lang/invoke/MethodHandles$Lookup;"
+            + "Ljava/lang/String;Ljava/lang/invoke/MethodType;I)"
+            + "Ljava/lang/invoke/CallSite;";
+    /** Type of compiled Weel functions. */
+    private final static MethodType TYPE = MethodType.methodType(void.class,
+            WeelRuntime.class);
+
+    /**
+     * Constructor.
+     */
+    private WeelBootstrap()
+    {
+        // empty
+    }
+
+    /**
+     * Bootstrap method.
+     * 
+     * @param lookup
+     *            The caller's lookup.
+     * @param name
+     *            The call site name.
+     * @param type
+     *            The call site type.
+     * @param index
+     *            The Weel function index.
+     * @return The call site of the function.
+     */
+    public static CallSite bootstrap(final MethodHandles.Lookup lookup,
+            final String name, final MethodType type, final int index)
+    {
+        final Weel weel = ((WeelLoader) lookup.lookupClass().getClassLoader()).weel;
+        final WeelFunction func = weel.functions.get(index);
+        synchronized (func)
+        {
+            if (func.callSite == null)
+            {
+                func.callSite = new MutableCallSite(target(weel, func));
+            }
+            return (CallSite) func.callSite;
+        }
+    }
+
+    /**
+     * Retargets the call site of the given function.
+     * 
+     * @param weel
+     *            The Weel.
+     * @param func
+     *            The function.
+     */
+    static void relink(final Weel weel, final WeelFunction func)
+    {
+        final MutableCallSite site = (MutableCallSite) func.callSite;
+        site.setTarget(target(weel, func));
+        MutableCallSite.syncAll(new MutableCallSite[]
+        { site });
+    }
+
+    /**
+     * Gets the method handle to call for the given function. Falls back to
+     * the function's invoker if the compiled method is not accessible.
+     * 
+     * @param weel
+     *            The Weel.
+     * @param func
+     *            The function.
+     * @return The method handle.
+     */
+    private static MethodHandle target(final Weel weel, final WeelFunction func)
+    {
+        final ClassLoader loader = func.loader != null ? func.loader
+                : weel.classLoader;
+        try
+        {
+            return MethodHandles.publicLookup().findStatic(
+                    Class.forName(func.clazz, true, loader), func.javaName,
+                    TYPE);
+        }
+        catch (Exception e)
+        {
+            try
+            {
+                return MethodHandles.publicLookup().findVirtual(
+                        WeelFunction.class, "invoke", TYPE).bindTo(func);
+            }
+            catch (Exception e1)
+            {
+                throw new WeelException(e1);
+            }
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Reads and writes pre-compiled Weel bundles.
+ * 
+ * <p>
+ * A bundle contains the bytecode of all compiled script classes together with
+ * the function, global variable, private variable and type function slot
+ * tables they were compiled against. Library functions and globals are only
+ * referenced by name, so a bundle can only be loaded into a Weel which
+ * imported the same libraries in the same order.
+ * </p>
+ * 
+ * @author René Jeschke <rene_jeschke@yahoo.de>
+ */
+final class WeelBundle
+{
+    /** Bundle magic ('WEEL'). */
+    private final static int MAGIC = 0x5745454c;
+    /** Bundle format version. */
+    private final static int FORMAT = 1;
+    /** Library function entry. */
+    private final static int LIBRARY = 0;
+    /** Script function entry. */
+    private final static int SCRIPT = 1;
+    /** Script function entry which is not in the function name maps. */
+    private final static int HIDDEN = 2;
+
+    /** The Weel. */
+    private final Weel weel;
+    /** Functions read from the bundle. */
+    private final ArrayList<WeelFunction> functions = new ArrayList<WeelFunction>();
+    /** Entry types of the functions read from the bundle. */
+    private final ArrayList<Integer> kinds = new ArrayList<Integer>();
+    /** Global variable names in index order. */
+    private final ArrayList<String> globals = new ArrayList<String>();
+    /** Type function slot names in slot order. */
+    private final ArrayList<String> slots = new ArrayList<String>();
+    /** Script classes. */
+    private final ArrayList<WeelLoader.ClassData> classes = new ArrayList<WeelLoader.ClassData>();
+    /** Number of private variables. */
+    private int privates;
+    /** Dynamic linking flag. */
+    private boolean dynamicLinking;
+
+    /**
+     * Constructor.
+     * 
+     * @param weel
+     *            The Weel.
+     */
+    private WeelBundle(final Weel weel)
+    {
+        this.weel = weel;
+    }
+
+    /**
+     * Writes all compiled scripts of the given Weel to a bundle.
+     * 
+     * @param weel
+     *            The Weel.
+     * @param output
+     *            The output stream.
+     * @param sourceHash
+     *            The hash of the script sources.
+     * @throws IOException
+     *             if an I/O error occurred.
+     */
+    static void write(final Weel weel, final OutputStream output,
+            final String sourceHash) throws IOException
+    {
+        if (!weel.profiles.isEmpty())
+        {
+            throw new WeelException(
+                    "Can't save a bundle of tiered compiled code");
+        }
+
+        for (final WeelFunction func : weel.functions)
+        {
+            if (func.lazy != null || func.loader != null)
+            {
+                throw new WeelException(
+                        "Can't save a bundle of lazily compiled code");
+            }
+        }
+
+        final DataOutputStream out = new DataOutputStream(output);
+        final HashSet<String> scripts = new HashSet<String>(
+                weel.scriptClasses);
+
+        out.writeInt(MAGIC);
+        out.writeShort(FORMAT);
+        out.writeUTF(Weel.VERSION);
+        out.writeUTF(sourceHash);
+        out.writeBoolean(weel.dynamicLinking);
+
+        out.writeInt(weel.functions.size());
+        for (final WeelFunction func : weel.functions)
+        {
+            final String iname = func.name + "#" + func.arguments;
+            if (!scripts.contains(func.clazz))
+            {
+                out.writeByte(LIBRARY);
+                out.writeUTF(iname);
+                out.writeUTF(func.clazz);
+                continue;
+            }
+            final Integer index = weel.mapFunctionsExact.get(iname);
+            out.writeByte(index != null && index == func.index ? SCRIPT
+                    : HIDDEN);
+            out.writeUTF(func.name);
+            out.writeInt(func.arguments);
+            out.writeBoolean(func.returnsValue);
+            out.writeUTF(func.clazz);
+            out.writeUTF(func.javaName);
+            if (func.envLocals == null)
+            {
+                out.writeInt(-1);
+            }
+            else
+            {
+                out.writeInt(func.envLocals.length);
+                for (final int var : func.envLocals)
+                    out.writeInt(var);
+            }
+        }
+
+        final String[] names = new String[weel.globals.size()];
+        for (final Map.Entry<String, Integer> e : weel.mapGlobals.entrySet())
+        {
+            names[e.getValue()] = e.getKey();
+        }
+        out.writeInt(names.length);
+        for (final String name : names)
+            out.writeUTF(name);
+
+        out.writeInt(weel.privates.size());
+
+        final int slots = weel.getTypeFunctionSlotCount();
+        out.writeInt(slots);
+        for (int i = 0; i < slots; i++)
+            out.writeUTF(weel.getTypeFunctionSlotName(i));
+
+        final ArrayList<WeelLoader.ClassData> classes = new ArrayList<WeelLoader.ClassData>();
+        for (final WeelLoader.ClassData cd : weel.classLoader.classData)
+        {
+            if (scripts.contains(cd.name))
+                classes.add(cd);
+        }
+        out.writeInt(classes.size());
+        for (final WeelLoader.ClassData cd : classes)
+        {
+            out.writeUTF(cd.name);
+            out.writeInt(cd.code.length);
+            out.write(cd.code);
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Loads a bundle into the given Weel.
+     * 
+     * @param weel
+     *            The Weel.
+     * @param input
+     *            The input stream.
+     * @param sourceHash
+     *            The expected hash of the script sources.
+     * @return <code>false</code> if the bundle was created from different
+     *         sources or by a different Weel version.
+     * @throws IOException
+     *             if an I/O error occurred.
+     */
+    static boolean read(final Weel weel, final InputStream input,
+            final String sourceHash) throws IOException
+    {
+        if (!weel.scriptClasses.isEmpty())
+        {
+            throw new WeelException(
+                    "Bundles can only be loaded into a Weel without scripts");
+        }
+
+        final DataInputStream in = new DataInputStream(input);
+
+        if (in.readInt() != MAGIC || in.readShort() != FORMAT)
+        {
+            throw new WeelException("Not a Weel bundle");
+        }
+        if (!in.readUTF().equals(Weel.VERSION)
+                || !in.readUTF().equals(sourceHash))
+        {
+            return false;
+        }
+
+        final WeelBundle bundle = new WeelBundle(weel);
+        bundle.read(in);
+        bundle.check();
+        bundle.apply();
+
+        return true;
+    }
+
+    /**
+     * Reads the tables and classes.
+     * 
+     * @param in
+     *            The input stream.
+     * @throws IOException
+     *             if an I/O error occurred.
+     */
+    private void read(final DataInputStream in) throws IOException
+    {
+        this.dynamicLinking = in.readBoolean();
+
+        final int nfuncs = in.readInt();
+        for (int i = 0; i < nfuncs; i++)
+        {
+            final int kind = in.readByte();
+            final WeelFunction func = new WeelFunction();
+            func.index = i;
+            if (kind == LIBRARY)
+            {
+                func.name = in.readUTF();
+                func.clazz = in.readUTF();
+            }
+            else
+            {
+                func.name = in.readUTF();
+                func.arguments = in.readInt();
+                func.returnsValue = in.readBoolean();
+                func.clazz = in.readUTF();
+                func.javaName = in.readUTF();
+                final int nenv = in.readInt();
+                if (nenv >= 0)
+                {
+                    func.envLocals = new int[nenv];
+                    for (int n = 0; n < nenv; n++)
+                        func.envLocals[n] = in.readInt();
+                }
+            }
+            this.kinds.add(kind);
+            this.functions.add(func);
+        }
+
+        final int nglobals = in.readInt();
+        for (int i = 0; i < nglobals; i++)
+            this.globals.add(in.readUTF());
+
+        this.privates = in.readInt();
+
+        final int nslots = in.readInt();
+        for (int i = 0; i < nslots; i++)
+            this.slots.add(in.readUTF());
+
+        final int nclasses = in.readInt();
+        for (int i = 0; i < nclasses; i++)
+        {
+            final String name = in.readUTF();
+            final byte[] code = new byte[in.readInt()];
+            in.readFully(code);
+            this.classes.add(new WeelLoader.ClassData(name, code));
+        }
+    }
+
+    /**
+     * Checks that the Weel provides the libraries the bundle was compiled
+     * against.
+     */
+    private void check()
+    {
+        final Weel weel = this.weel;
+
+        for (int i = 0; i < this.functions.size(); i++)
+        {
+            final WeelFunction func = this.functions.get(i);
+            if (i < weel.functions.size())
+            {
+                final WeelFunction f = weel.functions.get(i);
+                if (this.kinds.get(i) != LIBRARY
+                        || !func.name.equals(f.name + "#" + f.arguments)
+                        || !func.clazz.equals(f.clazz))
+                {
+                    throw new WeelException("Bundle function '" + func.name
+                            + "' doesn't match " + f);
+                }
+            }
+            else if (this.kinds.get(i) == LIBRARY)
+            {
+                throw new WeelException("Missing library function '"
+                        + func.name + "' for bundle");
+            }
+        }
+
+        for (int i = 0; i < this.globals.size(); i++)
+        {
+            final Integer index = weel.mapGlobals.get(this.globals.get(i));
+            if (i < weel.globals.size() ? index == null || index != i
+                    : index != null)
+            {
+                throw new WeelException("Bundle global '"
+                        + this.globals.get(i) + "' doesn't match");
+            }
+        }
+
+        if (weel.privates.size() > this.privates)
+        {
+            throw new WeelException("Bundle private variables don't match");
+        }
+
+        for (int i = 0; i < weel.getTypeFunctionSlotCount(); i++)
+        {
+            if (i >= this.slots.size()
+                    || !this.slots.get(i).equals(
+                            weel.getTypeFunctionSlotName(i)))
+            {
+                throw new WeelException("Bundle type function slots don't match");
+            }
+        }
+    }
+
+    /**
+     * Registers the tables and defines the script classes.
+     */
+    private void apply()
+    {
+        final Weel weel = this.weel;
+
+        if (this.dynamicLinking)
+        {
+            weel.setDynamicLinking(true);
+        }
+
+        for (int i = weel.functions.size(); i < this.functions.size(); i++)
+        {
+            final WeelFunction func = this.functions.get(i);
+            weel.addFunction(func.name + "#" + func.arguments, func,
+                    this.kinds.get(i) == SCRIPT);
+        }
+
+        for (int i = weel.globals.size(); i < this.globals.size(); i++)
+            weel.addGlobal(this.globals.get(i));
+
+        while (weel.privates.size() < this.privates)
+            weel.registerPrivate();
+
+        for (final String slot : this.slots)
+            weel.getTypeFunctionSlot(slot);
+
+        long next = 0;
+        for (final WeelLoader.ClassData cd : this.classes)
+        {
+            weel.classLoader.addClass(cd.name, cd.code);
+            weel.scriptClasses.add(cd.name);
+            final String n = cd.name.substring(cd.name.lastIndexOf('.') + 1);
+            if (n.startsWith("Script"))
+            {
+                next = Math.max(next, Long.parseLong(n.substring(6)) + 1);
+            }
+        }
+
+        // Don't reuse the names of loaded classes
+        long counter;
+        while ((counter = Weel.scriptCounter.get()) < next
+                && !Weel.scriptCounter.compareAndSet(counter, next))
+        {
+            // retry
+        }
+
+        weel.initAllInvokers();
+    }
+}
@@ -16,6 +16,7 @@
 package com.github.rjeschke.weel;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 
 import com.github.rjeschke.weel.Variable.Type;
@@ -27,6 +28,8 @@ import com.github.rjeschke.weel.Variable.Type;
  */
 class WeelCode
 {
+    /** Maximum number of entries of a map literal built at class load time. */
+    private final static int MAX_CONSTANT_MAP = 256;
     /** The Weel. */
     private final Weel weel;
     /** List of used locals. */
@@ -52,12 +55,23 @@ class WeelCode
      * Relevant only for automatically typed anonymous functions.
      */
     boolean hasExit;
+    /**
+     * Flag indicating that our function is compiled at runtime and lives in
+     * its own class loader, so it doesn't get profiled in tiered mode.
+     */
+    boolean isRuntimeCompiled;
+    /** Flag indicating that only a stub gets written (lazy compilation). */
+    boolean isLazy;
     /** Maximum stack depth. */
     private int maxStack;
     /** Label counter */
     private int labels = 0;
     /** Label lines. */
-    private int[] lines;
+    int[] lines;
+    /** Number of locals compiled to JVM doubles. */
+    int numericLocals;
+    /** Runtime profile (tiered mode only). */
+    WeelProfile profile;
     /** Starting position in source code. */
     String source = null;
 
@@ -72,6 +86,23 @@ class WeelCode
         this.weel = weel;
     }
 
+    /**
+     * Copy constructor.
+     * 
+     * @param code
+     *            The code block to copy.
+     */
+    private WeelCode(final WeelCode code)
+    {
+        this.weel = code.weel;
+        this.locals = new ArrayList<Boolean>(code.locals);
+        this.instrs = new ArrayList<Instr>(code.instrs);
+        this.function = code.function;
+        this.isAnonymousFunction = code.isAnonymousFunction;
+        this.labels = code.labels;
+        this.source = code.source;
+    }
+
     /**
      * Adds an instruction to this code block.
      * 
@@ -159,22 +190,7 @@ class WeelCode
         // Remove asserts if !debugMode
         if (!debugMode)
         {
-            int i = 0;
-            while (i < this.instrs.size())
-            {
-                if (this.instrs.get(i).getType() == Op.BEGASSERT)
-                {
-                    while (this.instrs.get(i).getType() != Op.ENDASSERT)
-                    {
-                        this.instrs.remove(i);
-                    }
-                    this.instrs.remove(i);
-                }
-                else
-                {
-                    i++;
-                }
-            }
+            this.removeAsserts();
         }
 
         // Resolve labels
@@ -186,33 +202,368 @@ class WeelCode
         this.resolveLabels();
 
         // Calculate maximum stack depth, check for return value
-        this.maxStack = 0;
-        final boolean allReturn = this.recurse(0, 0) == 1;
-        if (this.function != null && this.function.returnsValue && !allReturn)
-        {
-            throw new WeelException("Not all code paths of '" + this.function
-                    + "' return a value" + this.source);
-        }
+        this.checkReturns();
 
         this.refactorTailCalls();
 
         // Create frame
         this.insertInstr(0, this.function != null ? new InstrOframe(
                 this.function.getNumArguments(), this.locals.size()
-                        - this.function.getNumArguments()) : new InstrOframe(0,
-                this.locals.size()));
+                        - this.function.getNumArguments(), this.maxStack)
+                : new InstrOframe(0, this.locals.size(), this.maxStack));
         this.instrs.add(new InstrCframe(this.maxStack, this.function != null
                 && this.function.returnsValue));
 
         // Finally resolve labels again
         this.resolveLabels();
 
+        if (this.weel.tieredCompilation && this.function != null
+                && !this.isRuntimeCompiled)
+        {
+            this.insertProfiling();
+        }
+
+        // Keep numeric locals in JVM locals
+        this.numericLocals = new NumericLocals(this.weel, this).apply();
+
+        // Fuse what is left of local variable accesses
+        this.fuseLocals();
+
         if (dumpCode)
         {
             this.dump();
         }
     }
 
+    /**
+     * Performs the checks of {@link #closeBlock(boolean, boolean)} without
+     * changing this block, used for lazily compiled functions.
+     * 
+     * @param debugMode
+     *            Flag indicating that we're in debug mode.
+     * @see Weel#setLazyCompilation(boolean)
+     */
+    void validate(final boolean debugMode)
+    {
+        final WeelCode code = new WeelCode(this);
+        if (!debugMode)
+        {
+            code.removeAsserts();
+        }
+        code.resolveLabels();
+        code.checkReturns();
+    }
+
+    /**
+     * Removes all asserts.
+     */
+    private void removeAsserts()
+    {
+        int i = 0;
+        while (i < this.instrs.size())
+        {
+            if (this.instrs.get(i).getType() == Op.BEGASSERT)
+            {
+                while (this.instrs.get(i).getType() != Op.ENDASSERT)
+                {
+                    this.instrs.remove(i);
+                }
+                this.instrs.remove(i);
+            }
+            else
+            {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Calculates the maximum stack depth and checks that a function returns
+     * a value on all code paths.
+     */
+    private void checkReturns()
+    {
+        this.maxStack = 0;
+        final boolean allReturn = this.recurse(0, 0) == 1;
+        if (this.function != null && this.function.returnsValue && !allReturn)
+        {
+            throw new WeelException("Not all code paths of '" + this.function
+                    + "' return a value" + this.source);
+        }
+    }
+
+    /**
+     * Replaces calls of the given function by calls of another one.
+     * 
+     * @param func
+     *            The function.
+     * @param target
+     *            The function to call instead.
+     */
+    void retarget(final WeelFunction func, final WeelFunction target)
+    {
+        for (int i = 0; i < this.instrs.size(); i++)
+        {
+            final Instr in = this.instrs.get(i);
+            if (in.getType() == Op.CALL && ((InstrCall) in).func == func)
+            {
+                this.instrs.set(i, new InstrCall(target, false));
+            }
+        }
+    }
+
+    /**
+     * Replaces common sequences of local variable instructions by
+     * superinstructions, saving runtime calls and stack copies.
+     */
+    private void fuseLocals()
+    {
+        for (int i = 0; i < this.instrs.size() - 1; i++)
+        {
+            final Instr a = this.instrs.get(i);
+            if (a.getType() != Op.VARLOAD
+                    || ((InstrVarLoad) a).type != VarInstrType.LOCAL)
+                continue;
+            final int var = ((InstrVarLoad) a).index;
+            final Instr b = this.instrs.get(i + 1);
+            final Instr c = i + 2 < this.instrs.size() ? this.instrs.get(i + 2)
+                    : null;
+            switch (b.getType())
+            {
+            case ALU2:
+            {
+                // LLOC a, ADD/SUB n, SLOC a
+                final InstrAlu2 alu = (InstrAlu2) b;
+                if (alu.value != null
+                        && (alu.type == Alu2InstrType.add || alu.type == Alu2InstrType.sub)
+                        && c != null && c.getType() == Op.VARSTORE
+                        && ((InstrVarStore) c).type == VarInstrType.LOCAL
+                        && ((InstrVarStore) c).index == var)
+                {
+                    final double v = alu.value.getNumber();
+                    this.instrs.set(i, new InstrIncLocal(var,
+                            alu.type == Alu2InstrType.add ? v : -v));
+                    this.instrs.remove(i + 1);
+                    this.instrs.remove(i + 1);
+                }
+                // LLOC a, ADD/SUB/MUL/DIV/MOD/POW
+                else if (alu.value == null)
+                {
+                    switch (alu.type)
+                    {
+                    case add:
+                    case sub:
+                    case mul:
+                    case div:
+                    case mod:
+                    case pow:
+                        this.instrs.set(i, new InstrAluLocal(alu.type, var));
+                        this.instrs.remove(i + 1);
+                        break;
+                    default:
+                        break;
+                    }
+                }
+                break;
+            }
+            case VARSTORE:
+                // LLOC a, SLOC b
+                if (((InstrVarStore) b).type == VarInstrType.LOCAL)
+                {
+                    this.instrs.set(i, new InstrMovLocal(var,
+                            ((InstrVarStore) b).index));
+                    this.instrs.remove(i + 1);
+                }
+                break;
+            case VARLOAD:
+            {
+                // LLOC a, LLOC b, [KEY], GETMAP
+                final int n = c != null && c.getType() == Op.KEY ? i + 3 : i + 2;
+                if (((InstrVarLoad) b).type == VarInstrType.LOCAL
+                        && n < this.instrs.size()
+                        && this.instrs.get(n).getType() == Op.GETMAP
+                        && ((InstrGetMap) this.instrs.get(n)).key == null)
+                {
+                    this.instrs.set(i, new InstrGetMapLocal(var,
+                            ((InstrVarLoad) b).index));
+                    this.instrs.subList(i + 1, n + 1).clear();
+                }
+                break;
+            }
+            case CMPPOP:
+            {
+                // LLOC a, CMPxxPOP n
+                final InstrCmpPop cmp = (InstrCmpPop) b;
+                if (cmp.value != null)
+                {
+                    this.instrs.set(i, new InstrCmpLocal(cmp.type, var,
+                            cmp.value));
+                    this.instrs.remove(i + 1);
+                }
+                break;
+            }
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * Creates this block's profile and inserts the profiling instructions.
+     */
+    private void insertProfiling()
+    {
+        final ArrayList<Integer> sites = new ArrayList<Integer>();
+        for (int i = 0; i < this.instrs.size(); i++)
+        {
+            final Instr in = this.instrs.get(i);
+            switch (in.getType())
+            {
+            case VARLOAD:
+            {
+                final InstrVarLoad v = (InstrVarLoad) in;
+                if (v.type != VarInstrType.LOCAL
+                        || v.index < this.function.getNumArguments())
+                    sites.add(i);
+                break;
+            }
+            case CALL:
+                if (((InstrCall) in).func.returnsValue)
+                    sites.add(i);
+                break;
+            case STACKCALL:
+                if (((InstrStackCall) in).needsReturn)
+                    sites.add(i);
+                break;
+            case SPECIALCALL:
+                if (((InstrSpecialCall) in).needsReturn)
+                    sites.add(i);
+                break;
+            case GETMAP:
+                sites.add(i);
+                break;
+            default:
+                break;
+            }
+        }
+
+        this.profile = new WeelProfile(this.weel, new WeelCode(this), sites);
+
+        for (int i = sites.size() - 1; i >= 0; i--)
+        {
+            this.insertInstr(sites.get(i) + 1, new InstrProfileType(
+                    this.profile.id, i));
+        }
+        this.insertInstr(0, new InstrProfile(this.profile.id, this
+                .registerLabel()));
+        this.resolveLabels();
+    }
+
+    /**
+     * Creates optimized code from this (unoptimized) block using the given
+     * profile.
+     * 
+     * <p>
+     * Arguments and instructions which only ever produced numbers are
+     * guarded and compiled as such. The unoptimized code gets appended with
+     * all labels shifted, a failing guard writes back numeric locals and
+     * continues there.
+     * </p>
+     * 
+     * @param prof
+     *            The profile.
+     * @param target
+     *            The function describing the new code, used for recursive
+     *            calls.
+     * @return The optimized code.
+     */
+    WeelCode optimize(final WeelProfile prof, final WeelFunction target)
+    {
+        final WeelCode code = new WeelCode(this);
+        code.retarget(this.function, target);
+        final ArrayList<Instr> generic = new ArrayList<Instr>(code.instrs);
+        final int offset = code.labels;
+        code.labels += offset;
+
+        final NumericLocals nl = new NumericLocals(this.weel, code);
+        nl.numberArgs = prof.getNumberArguments();
+        nl.argumentLabel = code.registerLabel();
+        nl.guards = new int[code.instrs.size()];
+        Arrays.fill(nl.guards, -1);
+        for (int i = 0; i < prof.sites.length; i++)
+        {
+            if (prof.isNumber(i))
+                nl.guards[prof.sites[i]] = code.registerLabel();
+        }
+        code.resolveLabels();
+        code.numericLocals = nl.apply();
+
+        if (nl.argumentMask == 0 && nl.guarded.isEmpty())
+        {
+            code.fuseLocals();
+            return code;
+        }
+
+        // Guard failures
+        final int entry = code.registerLabel();
+        final int[] resume = new int[generic.size()];
+        Arrays.fill(resume, -1);
+        code.instrs.add(new InstrReturn());
+        if (nl.argumentMask != 0)
+        {
+            code.instrs.add(new InstrLabel(nl.argumentLabel));
+            code.instrs.add(new InstrDeopt(prof.id, -1));
+            code.instrs.add(new InstrGoto(entry));
+        }
+        for (int i = 0; i < prof.sites.length; i++)
+        {
+            final int line = prof.sites[i];
+            if (!nl.guarded.get(line))
+                continue;
+            code.instrs.add(new InstrLabel(nl.guards[line]));
+            code.instrs.add(new InstrDeopt(prof.id, i));
+            for (int n = 0; n < nl.slots.length; n++)
+            {
+                if (nl.slots[n] < 0 || !nl.isAssigned(line, n))
+                    continue;
+                code.instrs.add(new InstrNumLoad(nl.slots[n]));
+                code.instrs.add(new InstrNumBox());
+                code.instrs.add(new InstrVarStore(VarInstrType.LOCAL, n));
+            }
+            resume[line + 1] = code.registerLabel();
+            code.instrs.add(new InstrGoto(resume[line + 1]));
+        }
+
+        // Unoptimized code
+        code.instrs.add(new InstrLabel(entry));
+        for (int i = 0; i < generic.size(); i++)
+        {
+            if (resume[i] >= 0)
+                code.instrs.add(new InstrLabel(resume[i]));
+            final Instr in = generic.get(i);
+            switch (in.getType())
+            {
+            case IFEQ:
+                code.instrs.add(new InstrIfEq(((InstrIfEq) in).index + offset));
+                break;
+            case IFNE:
+                code.instrs.add(new InstrIfNe(((InstrIfNe) in).index + offset));
+                break;
+            case GOTO:
+                code.instrs.add(new InstrGoto(((InstrGoto) in).index + offset));
+                break;
+            case LABEL:
+                code.instrs.add(new InstrLabel(((InstrLabel) in).index + offset));
+                break;
+            default:
+                code.instrs.add(in);
+                break;
+            }
+        }
+        code.fuseLocals();
+        return code;
+    }
+
     /**
      * Dumps the contents of this block to stdout.
      */
@@ -645,6 +996,136 @@ class WeelCode
         }
     }
     
+    /**
+     * Replaces the leading constant entries of map literals by a frozen map
+     * which gets built once when the class is loaded.
+     */
+    private void refactorConstantMaps()
+    {
+        // Backwards, so nested literals are folded first
+        for (int c = this.instrs.size() - 1; c >= 0; c--)
+        {
+            if (this.opAt(c) != Op.CREATEMAP
+                    || ((InstrCreateMap) this.instrs.get(c)).constant != null)
+                continue;
+            final ValueMap map = new ValueMap();
+            int weight = 0;
+            int i = c + 1;
+            while (this.opAt(i) == Op.SDUP)
+            {
+                int p = i + 1;
+                Value key = null;
+                boolean keyed = false;
+                if (this.opAt(p) == Op.LOAD && this.opAt(p + 1) == Op.KEY)
+                {
+                    key = ((InstrLoad) this.instrs.get(p)).value;
+                    keyed = true;
+                    p += 2;
+                }
+                else if (this.opAt(p) == Op.KEY)
+                {
+                    keyed = true;
+                    p++;
+                }
+                final Value value = this.constantValue(p++);
+                if (value == null)
+                    break;
+                if (keyed)
+                {
+                    if (this.opAt(p) != Op.SETMAP)
+                        break;
+                    final Value k = ((InstrSetMap) this.instrs.get(p)).key;
+                    if (k != null)
+                    {
+                        if (key != null)
+                            break;
+                        key = k;
+                    }
+                    if (key == null
+                            || (key.type != ValueType.NUMBER && key.type != ValueType.STRING))
+                        break;
+                }
+                else if (this.opAt(p) != Op.APPENDMAP)
+                {
+                    break;
+                }
+                weight += value.type == ValueType.MAP ? 1 + weight(value
+                        .getMap()) : 1;
+                if (weight > MAX_CONSTANT_MAP)
+                    break;
+                if (keyed)
+                    map.set(key, value);
+                else
+                    map.append(value);
+                i = p + 1;
+            }
+            if (i > c + 1)
+            {
+                ((InstrCreateMap) this.instrs.get(c)).constant = map;
+                this.instrs.subList(c + 1, i).clear();
+            }
+        }
+    }
+
+    /**
+     * Gets the type of the instruction at the given line.
+     * 
+     * @param line
+     *            The line.
+     * @return The Op or <code>null</code> if out of range.
+     */
+    private Op opAt(final int line)
+    {
+        return line >= 0 && line < this.instrs.size() ? this.instrs.get(line)
+                .getType() : null;
+    }
+
+    /**
+     * Gets the constant value pushed by the instruction at the given line.
+     * 
+     * @param line
+     *            The line.
+     * @return The value or <code>null</code> if it is not a constant.
+     */
+    private Value constantValue(final int line)
+    {
+        switch (this.opAt(line))
+        {
+        case LOAD:
+        {
+            final Value v = ((InstrLoad) this.instrs.get(line)).value;
+            return v.type == ValueType.FUNCTION ? null : v.clone();
+        }
+        case CREATEMAP:
+        {
+            // Map literals which aren't completely constant are followed by SDUP
+            final ValueMap m = ((InstrCreateMap) this.instrs.get(line)).constant;
+            return new Value(m != null ? m : new ValueMap());
+        }
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Counts the entries of the given map and all maps inside it.
+     * 
+     * @param map
+     *            The map.
+     * @return The number of entries.
+     */
+    private static int weight(final ValueMap map)
+    {
+        int ret = 0;
+        final Value k = new Value(), v = new Value();
+        for (final ValueMap.ValueMapIterator it = map.createIterator(); it
+                .next(k, v);)
+        {
+            ret += v.type == ValueType.MAP ? 1 + weight(v.getMap()) : 1;
+        }
+        return ret;
+    }
+
     /**
      * Refactors this block's code, by replacing/reordering/removing common
      * compilation 'artifacts'.
@@ -656,6 +1137,7 @@ class WeelCode
         // I think I could join these two
         this.refactorMapsAndJumps();
         this.refactorCmp();
+        this.refactorConstantMaps();
     }
 
     /**
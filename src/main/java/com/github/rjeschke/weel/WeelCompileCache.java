@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache for runtime compiled functions.
+ * 
+ * <p>
+ * Maps the source of a function (together with the compiler flags which
+ * change the generated code) to the compiled function, so compiling the same
+ * source twice returns the same function instead of creating a new class and
+ * class loader.
+ * </p>
+ * 
+ * @author René Jeschke <rene_jeschke@yahoo.de>
+ * @see Weel#compileFunction(String)
+ */
+final class WeelCompileCache
+{
+    /** The cached functions, least recently used first. */
+    private final LinkedHashMap<String, WeelFunction> functions = new LinkedHashMap<String, WeelFunction>(
+            16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** @see java.util.LinkedHashMap#removeEldestEntry(Map.Entry) */
+        @Override
+        protected boolean removeEldestEntry(
+                final Map.Entry<String, WeelFunction> eldest)
+        {
+            return this.size() > WeelCompileCache.this.maxSize;
+        }
+    };
+    /** Maximum number of cached functions. */
+    private int maxSize;
+    /** Number of cache hits. */
+    final AtomicLong hits = new AtomicLong();
+    /** Number of cache misses. */
+    final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructor.
+     * 
+     * @param maxSize
+     *            Maximum number of cached functions.
+     */
+    WeelCompileCache(final int maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Creates the cache key for the given source.
+     * 
+     * @param weel
+     *            The Weel.
+     * @param input
+     *            The source.
+     * @return The key.
+     */
+    static String key(final Weel weel, final String input)
+    {
+        final StringBuilder sb = new StringBuilder(input.length() + 4);
+        sb.append(weel.debugMode ? 'd' : '-');
+        sb.append(weel.dynamicLinking ? 'l' : '-');
+        sb.append(weel.tieredCompilation ? 't' : '-');
+        sb.append(':');
+        sb.append(input);
+        return sb.toString();
+    }
+
+    /**
+     * Gets a cached function and counts the hit or miss.
+     * 
+     * @param key
+     *            The key.
+     * @return The function or <code>null</code>.
+     */
+    synchronized WeelFunction get(final String key)
+    {
+        final WeelFunction func = this.functions.get(key);
+        if (func != null)
+            this.hits.incrementAndGet();
+        else
+            this.misses.incrementAndGet();
+        return func;
+    }
+
+    /**
+     * Adds a function to this cache, evicting the least recently used one if
+     * the cache is full.
+     * 
+     * @param key
+     *            The key.
+     * @param func
+     *            The function.
+     */
+    synchronized void put(final String key, final WeelFunction func)
+    {
+        if (this.maxSize > 0)
+            this.functions.put(key, func);
+    }
+
+    /**
+     * Sets the maximum number of cached functions, evicting the least
+     * recently used ones if necessary.
+     * 
+     * @param maxSize
+     *            The size, <code>0</code> disables caching.
+     */
+    synchronized void setMaxSize(final int maxSize)
+    {
+        this.maxSize = maxSize;
+        while (this.functions.size() > maxSize)
+        {
+            this.functions.remove(this.functions.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Removes all functions from this cache.
+     */
+    synchronized void clear()
+    {
+        this.functions.clear();
+    }
+}
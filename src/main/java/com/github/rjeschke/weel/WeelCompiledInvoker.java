@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+/**
+ * Base class for generated direct-call invokers.
+ *
+ * <p>
+ * This class is public because generated invokers live in their own class
+ * loader and therefore can't extend package private classes. It is not
+ * intended for any other use.
+ * </p>
+ *
+ * @author René Jeschke <rene_jeschke@yahoo.de>
+ * @see WeelInvokerFactory
+ */
+public abstract class WeelCompiledInvoker implements WeelInvoker
+{
+    /**
+     * Constructor.
+     */
+    protected WeelCompiledInvoker()
+    {
+        // empty
+    }
+
+    /** @see com.github.rjeschke.weel.WeelInvoker#initialize(Weel, WeelFunction) */
+    @Override
+    public final void initialize(final Weel weel, final WeelFunction function)
+    {
+        // Generated invokers are bound on creation
+    }
+
+    /** @see com.github.rjeschke.weel.WeelInvoker#invoke(WeelRuntime) */
+    @Override
+    public abstract void invoke(final WeelRuntime runtime);
+
+    /**
+     * @see com.github.rjeschke.weel.WeelInvoker#invoke(WeelRuntime,
+     *      WeelFunction)
+     */
+    @Override
+    public final void invoke(final WeelRuntime runtime,
+            final WeelFunction function)
+    {
+        runtime.initVirtual(function);
+        this.invoke(runtime);
+        runtime.exitVirtual();
+    }
+}
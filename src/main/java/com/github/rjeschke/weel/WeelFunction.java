@@ -47,6 +47,15 @@ public class WeelFunction
     WeelInvoker invoker;
     /** Class loader for runtime compiled functions. */
     WeelLoader loader;
+    /**
+     * Call site for dynamically linked calls, a MutableCallSite. Declared as
+     * Object to keep this class loadable on Java 6.
+     */
+    Object callSite;
+    /** Code to compile on the first call (lazy compilation). */
+    volatile WeelLazyCode lazy;
+    /** Overload cache for stack calls, created on the first mismatch. */
+    WeelOverloadCache overloads;
     
     /**
      * Constructor.
@@ -101,6 +110,34 @@ public class WeelFunction
         this.invoker.initialize(weel, this);
     }
 
+    /**
+     * Redefines this function using the code of the given function and
+     * relinks all dynamically linked call sites.
+     * 
+     * @param weel
+     *            The Weel.
+     * @param func
+     *            The new function.
+     * @see Weel#setDynamicLinking(boolean)
+     */
+    void redefine(final Weel weel, final WeelFunction func)
+    {
+        synchronized (this)
+        {
+            this.clazz = func.clazz;
+            this.javaName = func.javaName;
+            this.loader = func.loader;
+            final WeelInvoker inv = WeelInvokerFactory.create(weel, this);
+            inv.initialize(weel, this);
+            this.invoker = inv;
+            if (this.callSite != null)
+            {
+                WeelBootstrap.relink(weel, this);
+            }
+            this.lazy = func.lazy;
+        }
+    }
+
     /**
      * Invokes this method.
      * 
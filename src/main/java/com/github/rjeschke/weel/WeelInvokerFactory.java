@@ -15,20 +15,99 @@
  */
 package com.github.rjeschke.weel;
 
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
 /**
  * WeelInvoker factory.
- * 
+ *
+ * <p>
+ * Creates a small class per function which calls the compiled static method
+ * directly. Functions whose Java method is not accessible from a generated
+ * class fall back to the reflection invoker.
+ * </p>
+ *
  * @author René Jeschke <rene_jeschke@yahoo.de>
  */
 final class WeelInvokerFactory
 {
+    /** Name of the invoker base class. */
+    private final static String BASE_CLASS = WeelCompiledInvoker.class
+            .getName();
+
+    /**
+     * Creates an invoker for the given function.
+     *
+     * @param weel
+     *            The Weel.
+     * @param function
+     *            The function.
+     * @return A WeelInvoker.
+     */
+    public final static WeelInvoker create(final Weel weel,
+            final WeelFunction function)
+    {
+        final WeelLoader loader = function.loader == null ? weel.classLoader
+                : function.loader;
+
+        if (!isAccessible(loader, function))
+        {
+            return new WeelReflectionInvoker();
+        }
+
+        final JvmClassWriter cw = new JvmClassWriter(
+                "com.github.rjeschke.weel.invokers.Invoker"
+                        + Weel.invokerCounter.getAndIncrement(), BASE_CLASS,
+                Modifier.PUBLIC);
+        final JvmMethodWriter mw = cw.createMethod("invoke",
+                "(Lcom/github/rjeschke/weel/WeelRuntime;)V", Modifier.PUBLIC
+                        | Modifier.FINAL);
+        mw.aload(1);
+        mw.invokeStatic(function.clazz, function.javaName,
+                "(Lcom/github/rjeschke/weel/WeelRuntime;)V");
+        mw.addOp(JvmOp.RETURN);
+
+        try
+        {
+            return (WeelInvoker) loader.addClass(cw).getDeclaredConstructor()
+                    .newInstance();
+        }
+        catch (Exception e)
+        {
+            throw new WeelException(e);
+        }
+    }
+
     /**
-     * Currently returns the default invoker only.
-     * 
-     * @return Default WeelInvoker.
+     * Checks if the target method of the given function can be called from a
+     * generated class.
+     *
+     * @param loader
+     *            The class loader.
+     * @param function
+     *            The function.
+     * @return <code>true</code> if the method is public and static and
+     *         declared in a public class.
      */
-    public final static WeelInvoker create()
+    private static boolean isAccessible(final WeelLoader loader,
+            final WeelFunction function)
     {
-        return new WeelReflectionInvoker();
+        try
+        {
+            final Class<?> clazz = loader.loadClass(function.clazz);
+            final Method m = clazz.getDeclaredMethod(function.javaName,
+                    WeelRuntime.class);
+            final int mods = m.getModifiers();
+            return Modifier.isPublic(clazz.getModifiers())
+                    && Modifier.isPublic(mods) && Modifier.isStatic(mods);
+        }
+        catch (WeelException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new WeelException(e);
+        }
     }
 }
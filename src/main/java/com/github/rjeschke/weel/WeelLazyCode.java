@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+/**
+ * Parsed but not yet compiled code of a function in lazy mode.
+ * 
+ * <p>
+ * The script class only contains a stub for the function, which calls
+ * {@link WeelRuntime#lazyCall(int)}. The first call optimizes the code,
+ * creates its class and redefines the function, which replaces its invoker
+ * and relinks dynamically linked call sites. Static calls compiled before
+ * keep going through the stub.
+ * </p>
+ * 
+ * @author René Jeschke <rene_jeschke@yahoo.de>
+ * @see Weel#setLazyCompilation(boolean)
+ */
+final class WeelLazyCode
+{
+    /** The Weel. */
+    private final Weel weel;
+    /** The function index. */
+    private final int index;
+    /** The parsed code, <code>null</code> once compiled. */
+    private WeelCode code;
+    /** Class name of the stub. */
+    private final String clazz;
+    /** Method name of the stub. */
+    private final String javaName;
+    /** Debug mode flag. */
+    private final boolean debugMode;
+    /** Dynamic linking flag. */
+    private final boolean dynamicLinking;
+
+    /**
+     * Constructor.
+     * 
+     * @param weel
+     *            The Weel.
+     * @param code
+     *            The validated but unoptimized code of a named function.
+     * @param debugMode
+     *            Flag indicating that asserts should be compiled.
+     * @param dynamicLinking
+     *            Flag indicating that calls may be dynamically linked.
+     */
+    WeelLazyCode(final Weel weel, final WeelCode code,
+            final boolean debugMode, final boolean dynamicLinking)
+    {
+        this.weel = weel;
+        this.code = code;
+        this.index = code.function.index;
+        this.clazz = code.function.clazz;
+        this.javaName = code.function.javaName;
+        this.debugMode = debugMode;
+        this.dynamicLinking = dynamicLinking;
+    }
+
+    /**
+     * Compiles the code unless this already happened.
+     */
+    synchronized void compile()
+    {
+        final WeelCode code = this.code;
+        if (code == null)
+            return;
+
+        final WeelFunction func = this.weel.functions.get(this.index);
+        if (func.clazz.equals(this.clazz) && func.javaName.equals(this.javaName))
+        {
+            final JvmClassWriter cw = new JvmClassWriter(
+                    "com.github.rjeschke.weel.scripts.Script"
+                            + Weel.scriptCounter.getAndIncrement());
+            if (this.dynamicLinking)
+            {
+                cw.enableInvokeDynamic();
+            }
+
+            final WeelFunction target = new WeelFunction();
+            target.index = func.index;
+            target.name = func.name;
+            target.arguments = func.arguments;
+            target.returnsValue = func.returnsValue;
+            target.clazz = cw.className;
+            target.javaName = this.javaName;
+            target.loader = new WeelLoader(this.weel.classLoader);
+
+            code.closeBlock(this.debugMode, this.weel.dumpCode);
+            // Recursive calls go straight to the new code
+            code.retarget(code.function, target);
+            code.retarget(func, target);
+
+            final JvmMethodWriter mw = cw.createMethod(target.javaName,
+                    "(Lcom/github/rjeschke/weel/WeelRuntime;)V");
+            if (code.numericLocals > 0)
+            {
+                mw.setDoubleLocals(code.numericLocals);
+            }
+            for (final Instr in : code.instrs)
+            {
+                in.write(mw);
+            }
+            mw.addOp(JvmOp.RETURN);
+            mw.resolveLabels();
+
+            if (code.profile != null)
+            {
+                code.profile.clazz = target.clazz;
+                code.profile.javaName = target.javaName;
+            }
+
+            target.loader.addClass(cw);
+            func.redefine(this.weel, target);
+        }
+        // else: Redefined in the meantime
+
+        this.code = null;
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.github.rjeschke.weel;
 
+import com.github.rjeschke.weel.ValueMap.ValueMapIterator;
 import com.github.rjeschke.weel.annotations.WeelRawMethod;
 
 /**
@@ -38,9 +39,10 @@ public final class WeelLibMap
     {
         final ValueMap in = runtime.popMap();
         final ValueMap out = new ValueMap();
-        for(int i = 0; i < in.size; i++)
+        final Value k = new Value(), v = new Value();
+        for(final ValueMapIterator it = in.createIterator(); it.next(k, v);)
         {
-            out.append(in.data.get(i));
+            out.append(v);
         }
         runtime.load(out);
     }
@@ -151,12 +153,11 @@ public final class WeelLibMap
     public final static void mapLastk(WeelRuntime runtime)
     {
         final ValueMap map = runtime.popMap();
-        if(map.size == 0)
-            runtime.load();
-        else if(map.ordered)
-            runtime.load(map.size - 1);
+        final Value key = new Value();
+        if(map.last(key, new Value()))
+            runtime.load(key);
         else
-            runtime.load(map.keys.get(map.size - 1));
+            runtime.load();
     }
     
     /**
@@ -172,9 +173,143 @@ public final class WeelLibMap
     public final static void mapLastv(WeelRuntime runtime)
     {
         final ValueMap map = runtime.popMap();
-        if(map.size == 0)
+        final Value value = new Value();
+        if(map.last(new Value(), value))
+            runtime.load(value);
+        else
             runtime.load();
-        else 
-            runtime.load(map.data.get(map.size - 1));
+    }
+
+    /**
+     * <code>freeze(m)</code>
+     * <p>
+     * Makes 'm' and all maps inside it immutable and returns 'm'. Frozen maps
+     * can be read by several threads without locking.
+     * </p>
+     * 
+     * @param runtime
+     *            The runtime.
+     */
+    @WeelRawMethod(args = 1, returnsValue = true)
+    public final static void freeze(WeelRuntime runtime)
+    {
+        runtime.load(runtime.popMap().freeze());
+    }
+
+    /**
+     * <code>isFrozen(m)</code>
+     * <p>
+     * Returns true if 'm' is frozen.
+     * </p>
+     * 
+     * @param runtime
+     *            The runtime.
+     */
+    @WeelRawMethod(args = 1, returnsValue = true)
+    public final static void isFrozen(WeelRuntime runtime)
+    {
+        runtime.load(runtime.popMap().isFrozen());
+    }
+
+    /**
+     * <code>mapConcurrent()</code>
+     * <p>
+     * Creates a new thread-safe map. Its iteration order is undefined.
+     * </p>
+     * 
+     * @param runtime
+     *            The runtime.
+     */
+    @WeelRawMethod(args = 0, returnsValue = true)
+    public final static void mapConcurrent(WeelRuntime runtime)
+    {
+        runtime.load(new ConcurrentValueMap());
+    }
+
+    /**
+     * <code>mapConcurrent(m)</code>
+     * <p>
+     * Creates a new thread-safe map containing the entries of 'm'.
+     * </p>
+     * 
+     * @param runtime
+     *            The runtime.
+     */
+    @WeelRawMethod(name = "mapConcurrent", args = 1, returnsValue = true)
+    public final static void mapConcurrent1(WeelRuntime runtime)
+    {
+        runtime.load(new ConcurrentValueMap(runtime.popMap()));
+    }
+
+    /**
+     * <code>mapGetOrSet(m, k, v)</code>
+     * <p>
+     * Returns the value of key 'k' in 'm', sets it to 'v' first if 'm' does
+     * not contain 'k'. Atomic on concurrent maps.
+     * </p>
+     * 
+     * @param runtime
+     *            The runtime.
+     */
+    @WeelRawMethod(args = 3, returnsValue = true)
+    public final static void mapGetOrSet(WeelRuntime runtime)
+    {
+        final Value value = runtime.pop();
+        final Value key = runtime.pop();
+        runtime.load(runtime.popMap().getOrSet(key, value));
+    }
+
+    /**
+     * <code>mapCompute(m, k, f)</code>
+     * <p>
+     * Sets the value of key 'k' in 'm' to <code>f(v)</code>, where 'v' is the
+     * current value or null, and returns it. A null result removes 'k'.
+     * Atomic on concurrent maps.
+     * </p>
+     * 
+     * @param runtime
+     *            The runtime.
+     */
+    @WeelRawMethod(args = 3, returnsValue = true)
+    public final static void mapCompute(WeelRuntime runtime)
+    {
+        final WeelFunction func = runtime.popFunction();
+        final Value key = runtime.pop();
+        runtime.load(runtime.popMap().compute(runtime, key, func));
+    }
+
+    /**
+     * <code>mapIncrement(m, k)</code>
+     * <p>
+     * Increments the number at key 'k' in 'm' (missing keys count as 0) and
+     * returns the new value. Atomic on concurrent maps.
+     * </p>
+     * 
+     * @param runtime
+     *            The runtime.
+     */
+    @WeelRawMethod(args = 2, returnsValue = true)
+    public final static void mapIncrement(WeelRuntime runtime)
+    {
+        final Value key = runtime.pop();
+        runtime.load(runtime.popMap().increment(key, 1));
+    }
+
+    /**
+     * <code>mapIncrement(m, k, d)</code>
+     * <p>
+     * Adds 'd' to the number at key 'k' in 'm' (missing keys count as 0) and
+     * returns the new value. Atomic on concurrent maps.
+     * </p>
+     * 
+     * @param runtime
+     *            The runtime.
+     */
+    @WeelRawMethod(name = "mapIncrement", args = 3, returnsValue = true)
+    public final static void mapIncrement3(WeelRuntime runtime)
+    {
+        final double delta = runtime.popNumber();
+        final Value key = runtime.pop();
+        runtime.load(runtime.popMap().increment(key, delta));
     }
 }
@@ -17,6 +17,7 @@ package com.github.rjeschke.weel;
 
 import java.util.Locale;
 
+import com.github.rjeschke.weel.ValueMap.ValueMapIterator;
 import com.github.rjeschke.weel.annotations.WeelRawMethod;
 
 /**
@@ -578,14 +579,16 @@ public final class WeelLibString
      */
     final static String format(final Locale locale, final String fmt, final ValueMap l)
     {
-        if (l.size == 0)
+        if (l.size() == 0)
         {
             return fmt;
         }
 
         try
         {
-            final Object[] objs = new Object[l.size];
+            final Object[] objs = new Object[l.size()];
+            final ValueMapIterator it = l.createIterator();
+            final Value v = new Value();
             for (int i = 0, p = 0; i < fmt.length(); i++)
             {
                 final char c = fmt.charAt(i);
@@ -601,21 +604,21 @@ public final class WeelLibString
                         case 'e':
                         case 'f':
                         case 'g':
-                            objs[p] = l.data.get(p++).getNumber();
+                            objs[p] = next(it, v, p++).getNumber();
                             done = true;
                             break;
                         case 'd':
                         case 'o':
                         case 'x':
-                            objs[p] = (int) l.data.get(p++).getNumber();
+                            objs[p] = (int) next(it, v, p++).getNumber();
                             done = true;
                             break;
                         case 'c':
-                            objs[p] = (char) l.data.get(p++).getNumber();
+                            objs[p] = (char) next(it, v, p++).getNumber();
                             done = true;
                             break;
                         case 's':
-                            objs[p] = l.data.get(p++).toString();
+                            objs[p] = next(it, v, p++).toString();
                             done = true;
                             break;
                         case '%':
@@ -636,4 +639,25 @@ public final class WeelLibString
             return "***ERR***" + fmt;
         }
     }
+
+    /**
+     * Gets the next format argument.
+     * 
+     * @param it
+     *            The iterator.
+     * @param v
+     *            The output Value.
+     * @param p
+     *            The argument index.
+     * @return v.
+     * @throws IndexOutOfBoundsException
+     *             If there are no more arguments.
+     */
+    private static Value next(final ValueMapIterator it, final Value v,
+            final int p)
+    {
+        if (!it.next(new Value(), v))
+            throw new IndexOutOfBoundsException("Missing argument " + p);
+        return v;
+    }
 }
@@ -18,6 +18,7 @@ package com.github.rjeschke.weel;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 
 import com.github.rjeschke.weel.ValueMap.ValueMapIterator;
 import com.github.rjeschke.weel.annotations.WeelRawMethod;
@@ -508,12 +509,28 @@ public final class WeelLibSys
                 - Runtime.getRuntime().freeMemory());
     }
 
+    /**
+     * <code>gc()</code>
+     * <p>
+     * Runs the garbage collector.
+     * </p>
+     * 
+     * @param runtime
+     *            The runtime.
+     */
+    @WeelRawMethod
+    public final static void gc(final WeelRuntime runtime)
+    {
+        System.gc();
+    }
+
     /**
      * <code>compile(str)</code>
      * <p>
      * Compiles a Weel function contained in 'str' and returns it. Runtime
      * compiled functions are designed to get garbage collected if there are no
-     * more references pointing at them.
+     * more references pointing at them. Compiling the same string again
+     * returns the cached function (see {@link Weel#compileFunction(String)}).
      * </p>
      * <p>
      * Remember: Compiled script classes use a long counter to avoid naming
@@ -528,8 +545,7 @@ public final class WeelLibSys
     public final static void compile(final WeelRuntime runtime)
     {
         final String code = runtime.popString();
-        Compiler compiler = new Compiler(runtime.getMother());
-        runtime.load(compiler.compileFunction(code));
+        runtime.load(runtime.getMother().compileFunction(code));
     }
 
     @WeelRawMethod(args = 1)
@@ -560,7 +576,7 @@ public final class WeelLibSys
         catch (Exception e)
         {
             runtime.npop(runtime.getStackPointer() - sp + argc + 1);
-            runtime.fp = fp;
+            runtime.unwindFrames(fp);
             ret.append(new Value(0));
             if (e instanceof WeelException)
             {
@@ -696,13 +712,16 @@ public final class WeelLibSys
     private final static ValueMap pexec(final ValueMap args)
     {
         final ValueMap ret = new ValueMap();
-        if (args != null && args.size > 0)
+        if (args != null && args.size() > 0)
         {
-            final String[] cmda = new String[args.size];
-            for (int i = 0; i < args.size; i++)
+            final ArrayList<String> cmd = new ArrayList<String>();
+            final Value k = new Value(), v = new Value();
+            for (final ValueMapIterator it = args.createIterator(); it.next(k,
+                    v);)
             {
-                cmda[i] = args.data.get(i).toString();
+                cmd.add(v.toString());
             }
+            final String[] cmda = cmd.toArray(new String[cmd.size()]);
 
             try
             {
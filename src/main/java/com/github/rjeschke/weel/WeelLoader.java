@@ -29,13 +29,19 @@ final class WeelLoader extends ClassLoader
     private WeakHashMap<String, Class<?>> classes = new WeakHashMap<String, Class<?>>();
     /** Class data. */
     ArrayList<ClassData> classData = new ArrayList<ClassData>();
+    /** The Weel this loader belongs to. */
+    final Weel weel;
 
     /**
      * Constructor.
+     * 
+     * @param weel
+     *            The Weel this loader belongs to.
      */
-    public WeelLoader()
+    public WeelLoader(final Weel weel)
     {
         super(WeelLoader.class.getClassLoader());
+        this.weel = weel;
     }
     
     /**
@@ -44,6 +50,7 @@ final class WeelLoader extends ClassLoader
     WeelLoader(final WeelLoader loader)
     {
         super(loader);
+        this.weel = loader.weel;
     }
 
     /**
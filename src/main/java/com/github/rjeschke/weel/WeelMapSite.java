@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+/**
+ * Inline cache for map accesses using a constant string key.
+ * 
+ * <p>
+ * Each GETMAP, SETMAP and GETMAPOOP instruction with a constant string key
+ * owns an element of a static site array of its class. The site gets created
+ * when the instruction first sees a shaped map, so code which never touches
+ * shaped maps costs no more than one array per class. A site remembers the
+ * value positions of the key for the map shapes it has seen, so accesses to
+ * maps of a known shape don't need to hash the key. A site caches at most
+ * {@link #MAX_ENTRIES} shapes.
+ * </p>
+ * 
+ * <p>
+ * This class is public because it is referenced by compiled scripts, which
+ * live in their own class loader. It is not intended for any other use.
+ * </p>
+ * 
+ * @author René Jeschke <rene_jeschke@yahoo.de>
+ * @see ValueMapShape
+ */
+public final class WeelMapSite
+{
+    /** Maximum number of cached shapes per site. */
+    final static int MAX_ENTRIES = 4;
+    /** The cache entries. */
+    private Entry entries = null;
+
+    /**
+     * Constructor.
+     */
+    private WeelMapSite()
+    {
+        // empty
+    }
+
+    /**
+     * Gets the value of the given shaped map.
+     * 
+     * @param map
+     *            The map.
+     * @return The value or <code>null</code> on a cache miss.
+     */
+    Value get(final ValueMap map)
+    {
+        final ValueMapShape shape = map.shape;
+        for (Entry e = this.entries; e != null; e = e.next)
+        {
+            if (e.shape == shape)
+                return map.hash.get(e.slot);
+        }
+        return null;
+    }
+
+    /**
+     * Sets the value of the given shaped map.
+     * 
+     * @param map
+     *            The map.
+     * @param value
+     *            The value.
+     * @return <code>false</code> on a cache miss.
+     */
+    boolean set(final ValueMap map, final Value value)
+    {
+        if (map.shared)
+            return false;
+        final ValueMapShape shape = map.shape;
+        for (Entry e = this.entries; e != null; e = e.next)
+        {
+            if (e.shape == shape)
+            {
+                if (e.transition != null)
+                    map.add(e.transition, value);
+                else
+                    map.put(e.slot, value);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Caches the position of the given key in the given shape.
+     * 
+     * @param sites
+     *            The sites of the calling class.
+     * @param site
+     *            The site index.
+     * @param shape
+     *            The shape, may be <code>null</code>.
+     * @param key
+     *            The key.
+     */
+    static void cache(final WeelMapSite[] sites, final int site,
+            final ValueMapShape shape, final String key)
+    {
+        if (shape == null)
+            return;
+        final int slot = shape.index.get(key);
+        if (slot != -1)
+            get(sites, site).cache(shape, slot, null);
+    }
+
+    /**
+     * Caches the transition from one shape to another.
+     * 
+     * @param sites
+     *            The sites of the calling class.
+     * @param site
+     *            The site index.
+     * @param shape
+     *            The shape before adding the key, may be <code>null</code>.
+     * @param transition
+     *            The shape after adding the key, may be <code>null</code>.
+     */
+    static void cacheTransition(final WeelMapSite[] sites, final int site,
+            final ValueMapShape shape, final ValueMapShape transition)
+    {
+        if (shape != null && transition != null && shape != transition)
+            get(sites, site).cache(shape, shape.keys.length, transition);
+    }
+
+    /**
+     * Gets a site, creating it if necessary.
+     * 
+     * @param sites
+     *            The sites of the calling class.
+     * @param site
+     *            The site index.
+     * @return The site.
+     */
+    private static WeelMapSite get(final WeelMapSite[] sites, final int site)
+    {
+        WeelMapSite s = sites[site];
+        if (s == null)
+            s = sites[site] = new WeelMapSite();
+        return s;
+    }
+
+    /**
+     * Adds a cache entry.
+     * 
+     * @param shape
+     *            The shape.
+     * @param slot
+     *            The value position.
+     * @param transition
+     *            The shape after adding the key or <code>null</code>.
+     */
+    private void cache(final ValueMapShape shape, final int slot,
+            final ValueMapShape transition)
+    {
+        final Entry first = this.entries;
+        int count = 0;
+        for (Entry e = first; e != null; e = e.next, count++)
+        {
+            if (e.shape == shape)
+                return;
+        }
+        if (count < MAX_ENTRIES)
+            this.entries = new Entry(shape, slot, transition, first);
+    }
+
+    /**
+     * Immutable cache entry.
+     * 
+     * @author René Jeschke <rene_jeschke@yahoo.de>
+     */
+    private final static class Entry
+    {
+        /** The shape. */
+        final ValueMapShape shape;
+        /** The value position. */
+        final int slot;
+        /** The shape after adding the key, <code>null</code> if present. */
+        final ValueMapShape transition;
+        /** Next entry. */
+        final Entry next;
+
+        /**
+         * Constructor.
+         * 
+         * @param shape
+         *            The shape.
+         * @param slot
+         *            The value position.
+         * @param transition
+         *            The shape after adding the key.
+         * @param next
+         *            Next entry.
+         */
+        Entry(final ValueMapShape shape, final int slot,
+                final ValueMapShape transition, final Entry next)
+        {
+            this.shape = shape;
+            this.slot = slot;
+            this.transition = transition;
+            this.next = next;
+        }
+    }
+}
@@ -73,7 +73,7 @@ public final class WeelOop
     public final static ValueMap newClass(final WeelRuntime runtime,
             final ValueMap base, final Value... args)
     {
-        final ValueMap clazz = base.clone();
+        final ValueMap clazz = base.cloneShared();
         final Value ctor = clazz.get("ctor");
         final int ac = args.length + 1;
         if (ctor.type == ValueType.FUNCTION)
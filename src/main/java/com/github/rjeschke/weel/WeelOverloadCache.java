@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+/**
+ * Overload cache for stack calls.
+ * 
+ * <p>
+ * A function gets its cache on the first stack call whose argument count
+ * doesn't match its own. The cache remembers the overloads resolved for the
+ * argument counts it has seen, at most {@link #MAX_ENTRIES}; other counts
+ * fall back to the function hash lookup.
+ * </p>
+ * 
+ * @author René Jeschke <rene_jeschke@yahoo.de>
+ * @see WeelRuntime#stackCall(int, boolean)
+ */
+final class WeelOverloadCache
+{
+    /** Maximum number of cached overloads. */
+    final static int MAX_ENTRIES = 4;
+    /** The cache entries. */
+    private Entry entries = null;
+
+    /**
+     * Resolves the overload of the given function for the given argument
+     * count.
+     * 
+     * @param weel
+     *            The Weel.
+     * @param function
+     *            The function on the stack.
+     * @param args
+     *            The number of arguments.
+     * @return The overloaded function or <code>null</code> if none was found.
+     */
+    WeelFunction resolve(final Weel weel, final WeelFunction function,
+            final int args)
+    {
+        final Entry first = this.entries;
+        int count = 0;
+        for(Entry e = first; e != null; e = e.next, count++)
+        {
+            if(e.args == args)
+                return e.target;
+        }
+
+        final WeelFunction target = weel.findFunction(function.name, args);
+        // Redefinitions update a WeelFunction in place, so a found overload
+        // stays valid. Failed lookups aren't cached, a later compilation may
+        // still add the overload.
+        if(target != null && count < MAX_ENTRIES)
+        {
+            this.entries = new Entry(args, target, first);
+        }
+        return target;
+    }
+
+    /**
+     * Immutable cache entry.
+     * 
+     * @author René Jeschke <rene_jeschke@yahoo.de>
+     */
+    private final static class Entry
+    {
+        /** The argument count. */
+        final int args;
+        /** The resolved overload. */
+        final WeelFunction target;
+        /** Next entry. */
+        final Entry next;
+
+        /**
+         * Constructor.
+         * 
+         * @param args
+         *            The argument count.
+         * @param target
+         *            The resolved overload.
+         * @param next
+         *            Next entry.
+         */
+        Entry(final int args, final WeelFunction target, final Entry next)
+        {
+            this.args = args;
+            this.target = target;
+            this.next = next;
+        }
+    }
+}
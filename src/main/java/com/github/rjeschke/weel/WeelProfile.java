@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2011 René Jeschke <rene_jeschke@yahoo.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rjeschke.weel;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * Runtime profile of a function compiled in tiered mode.
+ *
+ * @author René Jeschke <rene_jeschke@yahoo.de>
+ * @see Weel#setTieredCompilation(boolean)
+ */
+final class WeelProfile
+{
+    /** Type bit of numbers. */
+    private final static int NUMBER = 1 << ValueType.NUMBER.ordinal();
+    /** Number of failed guards before a function gets recompiled. */
+    private final static int DEOPT_LIMIT = 100;
+    /** Maximum number of recompilations. */
+    private final static int MAX_RECOMPILES = 4;
+    /** The Weel. */
+    private final Weel weel;
+    /** The profile id. */
+    final int id;
+    /** The function. */
+    final WeelFunction function;
+    /** The unoptimized code of the function. */
+    private final WeelCode code;
+    /** Profiled instructions (indices into the unoptimized code). */
+    final int[] sites;
+    /** Observed types per argument, one bit per ValueType. */
+    final int[] arguments;
+    /** Observed types per profiled instruction, one bit per ValueType. */
+    final int[] types;
+    /** Call counter. */
+    private int calls;
+    /** Failed guard counter. */
+    private int deopts;
+    /** Recompilation counter. */
+    private int recompiles;
+    /** Class name of this profile's current code. */
+    String clazz;
+    /** Method name of this profile's current code. */
+    String javaName;
+    /** Invoker of the optimized code. */
+    volatile WeelInvoker optimized;
+
+    /**
+     * Constructor. Registers this profile.
+     *
+     * @param weel
+     *            The Weel.
+     * @param code
+     *            The unoptimized code, it must not be changed afterwards.
+     * @param sites
+     *            Instructions to profile.
+     */
+    WeelProfile(final Weel weel, final WeelCode code,
+            final ArrayList<Integer> sites)
+    {
+        this.weel = weel;
+        this.code = code;
+        this.function = code.function;
+        this.arguments = new int[Math.min(this.function.arguments, 31)];
+        this.sites = new int[sites.size()];
+        for (int i = 0; i < this.sites.length; i++)
+            this.sites[i] = sites.get(i);
+        this.types = new int[this.sites.length];
+        synchronized (weel.profiles)
+        {
+            this.id = weel.profiles.size();
+            weel.profiles.add(this);
+        }
+    }
+
+    /**
+     * Counts a call.
+     *
+     * @param runtime
+     *            The runtime.
+     * @return <code>true</code> if the function got optimized and the call
+     *         was handled.
+     */
+    boolean enter(final WeelRuntime runtime)
+    {
+        if (++this.calls != this.weel.tierUpThreshold || !this.compile())
+            return false;
+        this.optimized.invoke(runtime);
+        return true;
+    }
+
+    /**
+     * Counts a failed guard, recompiles if there were too many.
+     */
+    void deoptimized()
+    {
+        if (++this.deopts == DEOPT_LIMIT && this.recompiles < MAX_RECOMPILES)
+        {
+            this.deopts = 0;
+            this.recompiles++;
+            this.compile();
+        }
+    }
+
+    /**
+     * Gets the arguments which only ever were numbers.
+     *
+     * @return The arguments.
+     */
+    BitSet getNumberArguments()
+    {
+        final BitSet ret = new BitSet();
+        for (int i = 0; i < this.arguments.length; i++)
+        {
+            if (this.arguments[i] == NUMBER)
+                ret.set(i);
+        }
+        return ret;
+    }
+
+    /**
+     * Checks if a profiled instruction only ever produced numbers.
+     *
+     * @param site
+     *            The profiled instruction.
+     * @return <code>true</code> if so.
+     */
+    boolean isNumber(final int site)
+    {
+        return this.types[site] == NUMBER;
+    }
+
+    /**
+     * Compiles optimized code using the current profile and installs it.
+     *
+     * @return <code>true</code> on success.
+     */
+    private synchronized boolean compile()
+    {
+        final WeelFunction func = this.function;
+        if (func.clazz == null || !func.clazz.equals(this.clazz)
+                || !func.javaName.equals(this.javaName))
+        {
+            // Redefined in the meantime
+            return false;
+        }
+
+        final JvmClassWriter cw = new JvmClassWriter(
+                "com.github.rjeschke.weel.scripts.Script"
+                        + Weel.scriptCounter.getAndIncrement());
+        if (this.weel.dynamicLinking)
+        {
+            cw.enableInvokeDynamic();
+        }
+
+        final WeelFunction target = new WeelFunction();
+        target.index = func.index;
+        target.name = func.name;
+        target.arguments = func.arguments;
+        target.returnsValue = func.returnsValue;
+        target.clazz = cw.className;
+        target.javaName = this.javaName + "$opt" + this.recompiles;
+        target.loader = new WeelLoader(func.loader != null ? func.loader
+                : this.weel.classLoader);
+
+        final WeelCode opt = this.code.optimize(this, target);
+        final JvmMethodWriter mw = cw.createMethod(target.javaName,
+                "(Lcom/github/rjeschke/weel/WeelRuntime;)V");
+        if (opt.numericLocals > 0)
+        {
+            mw.setDoubleLocals(opt.numericLocals);
+        }
+        for (final Instr in : opt.instrs)
+        {
+            in.write(mw);
+        }
+        mw.addOp(JvmOp.RETURN);
+        mw.resolveLabels();
+
+        if (this.weel.dumpCode)
+        {
+            opt.dump();
+        }
+
+        target.loader.addClass(cw);
+        func.redefine(this.weel, target);
+        this.clazz = target.clazz;
+        this.javaName = target.javaName;
+        this.optimized = func.invoker;
+        return true;
+    }
+}
@@ -40,26 +40,53 @@ public final class WeelRuntime
 {
     /** The creating Weel instance. */
     final Weel mother;
-    /** The Weel stack. */
-    private final Value[] stack;
-    /** Weel function frame start. */
-    private final int[] frameStart;
+    /** Value type tags, these match the ordinals of ValueType. */
+    private final static byte T_NULL = 0, T_NUMBER = 1, T_STRING = 2,
+            T_MAP = 3, T_FUNCTION = 4, T_OBJECT = 5;
+    /** ValueTypes by type tag. */
+    private final static ValueType[] TYPES = ValueType.values();
+    /** Initial size of the Weel stack. */
+    private final static int INITIAL_STACK_SIZE = 256;
+    /** Initial size of the frame stack. */
+    private final static int INITIAL_FRAME_STACK_SIZE = 32;
+    /** Initial size of the closure function stack. */
+    private final static int INITIAL_CLOSURE_STACK_SIZE = 16;
+    /** Stack size above which the Weel stack gets shrunk after a call. */
+    private final static int SHRINK_STACK_SIZE = 4096;
+    /** Spare stack slots for values pushed by Java code. */
+    private final static int STACK_SLACK = 16;
+    /** The Weel stack, value types. */
+    private byte[] types;
+    /** The Weel stack, numbers. */
+    private double[] numbers;
+    /** The Weel stack, objects. */
+    private Object[] objects;
+    /** Saved frame starts of the calling functions. */
+    private int[] frameStart;
     /** Weel function frame size. */
-    private final int[] frameSize;
+    private int[] frameSize;
     /** Weel closure function stack. */
-    private final WeelFunction[] closureFunctions;
+    private WeelFunction[] closureFunctions;
     /** The Weel stack pointer. */
     private int sp = -1;
     /** The Weel frame pointer. */
     int fp = -1;
+    /** Start of the current function frame on the Weel stack. */
+    private int base;
     /** The Weel virtual function pointer. */
     private int vp = -1;
+    /** Flag indicating that this runtime was taken from the pool. */
+    boolean acquired;
     /** Global variables. */
     private final ArrayList<Value> globals;
     /** Private variables. */
     private final ArrayList<Value> privates;
     /** Type bound support functions. */
     private final TypeFunctions[] typeFunctions;
+    /** Scratch key Value used for map access. */
+    private final Value tmpKey = new Value();
+    /** Scratch Value used for map access. */
+    private final Value tmpValue = new Value();
 
     /**
      * Constructor.
@@ -74,15 +101,25 @@ public final class WeelRuntime
         this.privates = weel.privates;
         this.typeFunctions = weel.typeFunctions;
 
-        this.stack = new Value[weel.valueStackSize];
-        this.frameStart = new int[weel.frameStackSize];
-        this.frameSize = new int[weel.frameStackSize];
-        this.closureFunctions = new WeelFunction[weel.closureStackSize];
+        this.allocateStacks();
+    }
 
-        for (int i = 0; i < this.stack.length; i++)
-        {
-            this.stack[i] = new Value();
-        }
+    /**
+     * Allocates the stacks using their initial sizes. The stacks grow on
+     * demand up to the limits given by the mother Weel.
+     */
+    private void allocateStacks()
+    {
+        final int size = Math.min(INITIAL_STACK_SIZE,
+                this.mother.valueStackSize);
+        this.types = new byte[size];
+        this.numbers = new double[size];
+        this.objects = new Object[size];
+        this.frameStart = new int[Math.min(INITIAL_FRAME_STACK_SIZE,
+                this.mother.frameStackSize)];
+        this.frameSize = new int[this.frameStart.length];
+        this.closureFunctions = new WeelFunction[Math.min(
+                INITIAL_CLOSURE_STACK_SIZE, this.mother.closureStackSize)];
     }
 
     /**
@@ -91,13 +128,96 @@ public final class WeelRuntime
     public void reset()
     {
         this.sp = this.fp = this.vp = -1;
-        for(int i = 0; i < this.stack.length; i++)
+        this.base = 0;
+        this.allocateStacks();
+    }
+
+    /**
+     * Gives this runtime back to the pool of its Weel. Only the used part of
+     * the stack gets wiped, unless a call was aborted by an exception. The
+     * runtime must not be used afterwards.
+     * 
+     * @throws WeelException
+     *             If this runtime was not acquired from the pool.
+     * @see Weel#acquireRuntime()
+     */
+    public void release()
+    {
+        if (!this.acquired)
+            throw new WeelException("Runtime was not acquired from the pool");
+        this.acquired = false;
+        if (this.fp >= 0 || this.vp >= 0)
+        {
+            this.reset();
+        }
+        else
         {
-            this.stack[i].setNull();
+            this.setNull(0, this.sp + 1);
+            this.sp = -1;
+            if (this.types.length > SHRINK_STACK_SIZE)
+                this.shrinkStack();
         }
-        Arrays.fill(this.frameSize, 0);
-        Arrays.fill(this.frameStart, 0);
-        Arrays.fill(this.closureFunctions, null);
+        this.tmpKey.setNull();
+        this.tmpValue.setNull();
+        this.mother.releaseRuntime(this);
+    }
+
+    /**
+     * Grows the Weel stack.
+     * 
+     * @param size
+     *            The minimum size needed.
+     * @throws WeelException
+     *             If the size exceeds the stack size limit.
+     */
+    private void growStack(final int size)
+    {
+        final int max = this.mother.valueStackSize;
+        if (size > max)
+            throw new WeelException("Stack overflow");
+        this.resizeStack(Math.min(max,
+                Math.max(size + STACK_SLACK, this.types.length * 2)));
+    }
+
+    /**
+     * Reallocates the Weel stack.
+     * 
+     * @param size
+     *            The new size, has to be greater than the stack pointer.
+     */
+    private void resizeStack(final int size)
+    {
+        this.types = Arrays.copyOf(this.types, size);
+        this.numbers = Arrays.copyOf(this.numbers, size);
+        this.objects = Arrays.copyOf(this.objects, size);
+    }
+
+    /**
+     * Shrinks the Weel stack after a deep call returned.
+     */
+    private void shrinkStack()
+    {
+        int size = INITIAL_STACK_SIZE;
+        while (size <= this.sp + STACK_SLACK)
+            size <<= 1;
+        if (size < this.types.length)
+            this.resizeStack(size);
+    }
+
+    /**
+     * Grows the frame stack.
+     * 
+     * @throws WeelException
+     *             If the frame stack size limit is reached.
+     */
+    private void growFrames()
+    {
+        final int max = this.mother.frameStackSize;
+        if (this.frameStart.length >= max)
+            throw new WeelException("Frame stack overflow");
+        final int size = Math.min(max, this.frameStart.length * 2);
+        this.frameStart = Arrays.copyOf(this.frameStart, size);
+        this.frameSize = Arrays.copyOf(this.frameSize, size);
     }
 
     /**
@@ -129,10 +249,8 @@ public final class WeelRuntime
      */
     public void npop(final int count)
     {
-        for (int i = 0; i < count; i++)
-        {
-            this.stack[this.sp--].setNull();
-        }
+        this.setNull(this.sp - count + 1, this.sp + 1);
+        this.sp -= count;
     }
 
     /**
@@ -150,7 +268,7 @@ public final class WeelRuntime
      */
     public Value pop()
     {
-        return this.stack[this.sp--].clone();
+        return this.get(this.sp--, new Value());
     }
 
     /**
@@ -165,8 +283,7 @@ public final class WeelRuntime
      */
     public void sloc(final int var)
     {
-        this.stack[this.sp--]
-                .copyTo(this.stack[var + this.frameStart[this.fp]]);
+        this.move(this.sp--, var + this.base);
     }
 
     /**
@@ -181,8 +298,43 @@ public final class WeelRuntime
      */
     public void lloc(final int var)
     {
-        this.stack[var + this.frameStart[this.fp]]
-                .copyTo(this.stack[++this.sp]);
+        this.move(var + this.base, ++this.sp);
+    }
+
+    /**
+     * Adds a constant to a local variable, same as <code>lloc(var);
+     * add(value); sloc(var);</code>.
+     * 
+     * <p>
+     * <code>... &rArr; ...</code>
+     * </p>
+     * 
+     * @param var
+     *            The index of the local variable.
+     * @param value
+     *            The value to add.
+     */
+    public void incLocal(final int var, final double value)
+    {
+        this.numbers[var + this.base] += value;
+    }
+
+    /**
+     * Copies a local variable into another one, same as
+     * <code>lloc(from); sloc(to);</code>.
+     * 
+     * <p>
+     * <code>... &rArr; ...</code>
+     * </p>
+     * 
+     * @param from
+     *            The index of the source variable.
+     * @param to
+     *            The index of the target variable.
+     */
+    public void movLocal(final int from, final int to)
+    {
+        this.move(from + this.base, to + this.base);
     }
 
     /**
@@ -197,7 +349,7 @@ public final class WeelRuntime
      */
     public void sglob(final int index)
     {
-        this.stack[this.sp--].copyTo(this.globals.get(index));
+        this.get(this.sp--, this.globals.get(index));
     }
 
     /**
@@ -212,7 +364,7 @@ public final class WeelRuntime
      */
     public void lglob(final int index)
     {
-        this.globals.get(index).copyTo(this.stack[++this.sp]);
+        this.set(++this.sp, this.globals.get(index));
     }
 
     /**
@@ -227,7 +379,7 @@ public final class WeelRuntime
      */
     public void spriv(final int index)
     {
-        this.stack[this.sp--].copyTo(this.privates.get(index));
+        this.get(this.sp--, this.privates.get(index));
     }
 
     /**
@@ -242,7 +394,7 @@ public final class WeelRuntime
      */
     public void lpriv(final int index)
     {
-        this.privates.get(index).copyTo(this.stack[++this.sp]);
+        this.set(++this.sp, this.privates.get(index));
     }
 
     /**
@@ -257,8 +409,7 @@ public final class WeelRuntime
      */
     public void linenv(final int index)
     {
-        this.closureFunctions[this.vp].environment[index]
-                .copyTo(this.stack[++this.sp]);
+        this.set(++this.sp, this.closureFunctions[this.vp].environment[index]);
     }
 
     /**
@@ -273,8 +424,7 @@ public final class WeelRuntime
      */
     public void sinenv(final int index)
     {
-        this.stack[this.sp--]
-                .copyTo(this.closureFunctions[this.vp].environment[index]);
+        this.get(this.sp--, this.closureFunctions[this.vp].environment[index]);
     }
 
     /**
@@ -286,8 +436,8 @@ public final class WeelRuntime
      */
     public void sdup()
     {
-        final Value a = this.stack[this.sp];
-        a.copyTo(this.stack[++this.sp]);
+        this.move(this.sp, this.sp + 1);
+        this.sp++;
     }
 
     /**
@@ -299,8 +449,8 @@ public final class WeelRuntime
      */
     public void sdup2()
     {
-        this.stack[this.sp - 1].copyTo(this.stack[this.sp + 1]);
-        this.stack[this.sp].copyTo(this.stack[this.sp + 2]);
+        this.move(this.sp - 1, this.sp + 1);
+        this.move(this.sp, this.sp + 2);
         this.sp += 2;
     }
 
@@ -314,10 +464,10 @@ public final class WeelRuntime
      */
     public void sdups()
     {
-        this.stack[this.sp].copyTo(this.stack[this.sp + 1]);
-        this.stack[this.sp - 1].copyTo(this.stack[this.sp]);
-        this.stack[this.sp - 2].copyTo(this.stack[this.sp - 1]);
-        this.stack[this.sp + 1].copyTo(this.stack[this.sp - 2]);
+        this.move(this.sp, this.sp + 1);
+        this.move(this.sp - 1, this.sp);
+        this.move(this.sp - 2, this.sp - 1);
+        this.move(this.sp + 1, this.sp - 2);
         this.sp++;
     }
 
@@ -328,7 +478,7 @@ public final class WeelRuntime
      */
     public boolean testPopTrue()
     {
-        if (this.stack[this.sp].toBoolean())
+        if (this.toBoolean(this.sp))
             return true;
         this.sp--;
         return false;
@@ -341,7 +491,7 @@ public final class WeelRuntime
      */
     public boolean testPopFalse()
     {
-        if (!this.stack[this.sp].toBoolean())
+        if (!this.toBoolean(this.sp))
             return true;
         this.sp--;
         return false;
@@ -358,7 +508,7 @@ public final class WeelRuntime
      */
     public boolean popBoolean()
     {
-        return this.stack[this.sp--].toBoolean();
+        return this.toBoolean(this.sp--);
     }
 
     /**
@@ -375,22 +525,23 @@ public final class WeelRuntime
      */
     int cmp()
     {
-        final Value a = this.stack[this.sp - 1];
-        final Value b = this.stack[this.sp];
+        final int b = this.sp, a = b - 1;
         this.sp -= 2;
-        if (a.type != b.type)
+        if (this.types[a] != this.types[b])
             throw new WeelException("Incompatible values for comparison: "
-                    + a.type + " <-> " + b.type);
-        switch (a.type)
+                    + TYPES[this.types[a]] + " <-> " + TYPES[this.types[b]]);
+        switch (this.types[a])
         {
-        case NULL:
+        case T_NULL:
             return 0;
-        case NUMBER:
-            return Double.compare(a.number, b.number);
-        case STRING:
-            return ((String) a.object).compareTo((String) b.object);
+        case T_NUMBER:
+            return Double.compare(this.numbers[a], this.numbers[b]);
+        case T_STRING:
+            return ((String) this.objects[a])
+                    .compareTo((String) this.objects[b]);
         default:
-            throw new WeelException("Can't compare values of type: " + a.type);
+            throw new WeelException("Can't compare values of type: "
+                    + TYPES[this.types[a]]);
         }
     }
 
@@ -404,8 +555,8 @@ public final class WeelRuntime
     public void cmpEq()
     {
         final boolean res = this.cmpEqual();
-        this.stack[++this.sp].type = ValueType.NUMBER;
-        this.stack[this.sp].number = res ? -1 : 0;
+        this.types[++this.sp] = T_NUMBER;
+        this.numbers[this.sp] = res ? -1 : 0;
     }
 
     /**
@@ -420,9 +571,9 @@ public final class WeelRuntime
      */
     public void cmpEq(final double operand)
     {
-        final Value a = this.stack[this.sp];
-        a.number = Double.compare(a.number, operand) == 0 ? -1 : 0;
-        a.type = ValueType.NUMBER;
+        this.numbers[this.sp] = Double.compare(this.numbers[this.sp],
+                operand) == 0 ? -1 : 0;
+        this.types[this.sp] = T_NUMBER;
     }
 
     /**
@@ -435,8 +586,8 @@ public final class WeelRuntime
     public void cmpNe()
     {
         final boolean res = this.cmpEqual();
-        this.stack[++this.sp].type = ValueType.NUMBER;
-        this.stack[this.sp].number = res ? 0 : -1;
+        this.types[++this.sp] = T_NUMBER;
+        this.numbers[this.sp] = res ? 0 : -1;
     }
 
     /**
@@ -451,9 +602,9 @@ public final class WeelRuntime
      */
     public void cmpNe(final double operand)
     {
-        final Value a = this.stack[this.sp];
-        a.number = Double.compare(a.number, operand) == 0 ? 0 : -1;
-        a.type = ValueType.NUMBER;
+        this.numbers[this.sp] = Double.compare(this.numbers[this.sp],
+                operand) == 0 ? 0 : -1;
+        this.types[this.sp] = T_NUMBER;
     }
 
     /**
@@ -466,8 +617,8 @@ public final class WeelRuntime
     public void cmpGt()
     {
         final int res = this.cmp();
-        this.stack[++this.sp].type = ValueType.NUMBER;
-        this.stack[this.sp].number = res > 0 ? -1 : 0;
+        this.types[++this.sp] = T_NUMBER;
+        this.numbers[this.sp] = res > 0 ? -1 : 0;
     }
 
     /**
@@ -482,9 +633,9 @@ public final class WeelRuntime
      */
     public void cmpGt(final double operand)
     {
-        final Value a = this.stack[this.sp];
-        a.number = Double.compare(a.number, operand) > 0 ? -1 : 0;
-        a.type = ValueType.NUMBER;
+        this.numbers[this.sp] = Double.compare(this.numbers[this.sp],
+                operand) > 0 ? -1 : 0;
+        this.types[this.sp] = T_NUMBER;
     }
 
     /**
@@ -497,8 +648,8 @@ public final class WeelRuntime
     public void cmpGe()
     {
         final int res = this.cmp();
-        this.stack[++this.sp].type = ValueType.NUMBER;
-        this.stack[this.sp].number = res >= 0 ? -1 : 0;
+        this.types[++this.sp] = T_NUMBER;
+        this.numbers[this.sp] = res >= 0 ? -1 : 0;
     }
 
     /**
@@ -513,9 +664,9 @@ public final class WeelRuntime
      */
     public void cmpGe(final double operand)
     {
-        final Value a = this.stack[this.sp];
-        a.number = Double.compare(a.number, operand) >= 0 ? -1 : 0;
-        a.type = ValueType.NUMBER;
+        this.numbers[this.sp] = Double.compare(this.numbers[this.sp],
+                operand) >= 0 ? -1 : 0;
+        this.types[this.sp] = T_NUMBER;
     }
 
     /**
@@ -528,8 +679,8 @@ public final class WeelRuntime
     public void cmpLt()
     {
         final int res = this.cmp();
-        this.stack[++this.sp].type = ValueType.NUMBER;
-        this.stack[this.sp].number = res < 0 ? -1 : 0;
+        this.types[++this.sp] = T_NUMBER;
+        this.numbers[this.sp] = res < 0 ? -1 : 0;
     }
 
     /**
@@ -544,9 +695,9 @@ public final class WeelRuntime
      */
     public void cmpLt(final double operand)
     {
-        final Value a = this.stack[this.sp];
-        a.number = Double.compare(a.number, operand) < 0 ? -1 : 0;
-        a.type = ValueType.NUMBER;
+        this.numbers[this.sp] = Double.compare(this.numbers[this.sp],
+                operand) < 0 ? -1 : 0;
+        this.types[this.sp] = T_NUMBER;
     }
 
     /**
@@ -559,8 +710,8 @@ public final class WeelRuntime
     public void cmpLe()
     {
         final int res = this.cmp();
-        this.stack[++this.sp].type = ValueType.NUMBER;
-        this.stack[this.sp].number = res <= 0 ? -1 : 0;
+        this.types[++this.sp] = T_NUMBER;
+        this.numbers[this.sp] = res <= 0 ? -1 : 0;
     }
 
     /**
@@ -575,9 +726,9 @@ public final class WeelRuntime
      */
     public void cmpLe(final double operand)
     {
-        final Value a = this.stack[this.sp];
-        a.number = Double.compare(a.number, operand) <= 0 ? -1 : 0;
-        a.type = ValueType.NUMBER;
+        this.numbers[this.sp] = Double.compare(this.numbers[this.sp],
+                operand) <= 0 ? -1 : 0;
+        this.types[this.sp] = T_NUMBER;
     }
 
     /**
@@ -607,7 +758,7 @@ public final class WeelRuntime
      */
     public boolean cmpEqPop(final double operand)
     {
-        return Double.compare(this.stack[this.sp--].number, operand) == 0;
+        return Double.compare(this.numbers[this.sp--], operand) == 0;
     }
 
     /**
@@ -637,7 +788,7 @@ public final class WeelRuntime
      */
     public boolean cmpNePop(final double operand)
     {
-        return Double.compare(this.stack[this.sp--].number, operand) != 0;
+        return Double.compare(this.numbers[this.sp--], operand) != 0;
     }
 
     /**
@@ -667,7 +818,7 @@ public final class WeelRuntime
      */
     public boolean cmpGtPop(final double operand)
     {
-        return Double.compare(this.stack[this.sp--].number, operand) > 0;
+        return Double.compare(this.numbers[this.sp--], operand) > 0;
     }
 
     /**
@@ -697,7 +848,7 @@ public final class WeelRuntime
      */
     public boolean cmpGePop(final double operand)
     {
-        return Double.compare(this.stack[this.sp--].number, operand) >= 0;
+        return Double.compare(this.numbers[this.sp--], operand) >= 0;
     }
 
     /**
@@ -727,7 +878,7 @@ public final class WeelRuntime
      */
     public boolean cmpLtPop(final double operand)
     {
-        return Double.compare(this.stack[this.sp--].number, operand) < 0;
+        return Double.compare(this.numbers[this.sp--], operand) < 0;
     }
 
     /**
@@ -757,7 +908,103 @@ public final class WeelRuntime
      */
     public boolean cmpLePop(final double operand)
     {
-        return Double.compare(this.stack[this.sp--].number, operand) <= 0;
+        return Double.compare(this.numbers[this.sp--], operand) <= 0;
+    }
+
+    /**
+     * Compares a local variable for equality, same as
+     * <code>lloc(var); cmpEqPop(operand)</code>.
+     * 
+     * @param var
+     *            The index of the local variable.
+     * @param operand
+     *            Value to compare to.
+     * @return <code>true</code> if condition is met.
+     */
+    public boolean cmpEqLocal(final int var, final double operand)
+    {
+        return Double.compare(this.numbers[var + this.base],
+                operand) == 0;
+    }
+
+    /**
+     * Compares a local variable for inequality, same as
+     * <code>lloc(var); cmpNePop(operand)</code>.
+     * 
+     * @param var
+     *            The index of the local variable.
+     * @param operand
+     *            Value to compare to.
+     * @return <code>true</code> if condition is met.
+     */
+    public boolean cmpNeLocal(final int var, final double operand)
+    {
+        return Double.compare(this.numbers[var + this.base],
+                operand) != 0;
+    }
+
+    /**
+     * Compares a local variable for greater than, same as
+     * <code>lloc(var); cmpGtPop(operand)</code>.
+     * 
+     * @param var
+     *            The index of the local variable.
+     * @param operand
+     *            Value to compare to.
+     * @return <code>true</code> if condition is met.
+     */
+    public boolean cmpGtLocal(final int var, final double operand)
+    {
+        return Double.compare(this.numbers[var + this.base],
+                operand) > 0;
+    }
+
+    /**
+     * Compares a local variable for greater or equal, same as
+     * <code>lloc(var); cmpGePop(operand)</code>.
+     * 
+     * @param var
+     *            The index of the local variable.
+     * @param operand
+     *            Value to compare to.
+     * @return <code>true</code> if condition is met.
+     */
+    public boolean cmpGeLocal(final int var, final double operand)
+    {
+        return Double.compare(this.numbers[var + this.base],
+                operand) >= 0;
+    }
+
+    /**
+     * Compares a local variable for less than, same as
+     * <code>lloc(var); cmpLtPop(operand)</code>.
+     * 
+     * @param var
+     *            The index of the local variable.
+     * @param operand
+     *            Value to compare to.
+     * @return <code>true</code> if condition is met.
+     */
+    public boolean cmpLtLocal(final int var, final double operand)
+    {
+        return Double.compare(this.numbers[var + this.base],
+                operand) < 0;
+    }
+
+    /**
+     * Compares a local variable for less or equal, same as
+     * <code>lloc(var); cmpLePop(operand)</code>.
+     * 
+     * @param var
+     *            The index of the local variable.
+     * @param operand
+     *            Value to compare to.
+     * @return <code>true</code> if condition is met.
+     */
+    public boolean cmpLeLocal(final int var, final double operand)
+    {
+        return Double.compare(this.numbers[var + this.base],
+                operand) <= 0;
     }
 
     /**
@@ -773,25 +1020,24 @@ public final class WeelRuntime
      */
     public boolean cmpEqual()
     {
-        final Value a = this.stack[this.sp - 1];
-        final Value b = this.stack[this.sp];
+        final int b = this.sp, a = b - 1;
         this.sp -= 2;
-        if (a.type != b.type)
+        if (this.types[a] != this.types[b])
             return false;
-        switch (a.type)
+        switch (this.types[a])
         {
-        case NULL:
+        case T_NULL:
             return true;
-        case NUMBER:
-            return a.number == b.number;
-        case STRING:
-            return ((String) a.object).equals(b.object);
-        case MAP:
-            return ((ValueMap) a.object).equals(b.object);
-        case FUNCTION:
-            return ((WeelFunction) a.object).equals(b.object);
-        case OBJECT:
-            return a.object.equals(b.object);
+        case T_NUMBER:
+            return this.numbers[a] == this.numbers[b];
+        case T_STRING:
+            return ((String) this.objects[a]).equals(this.objects[b]);
+        case T_MAP:
+            return ((ValueMap) this.objects[a]).equals(this.objects[b]);
+        case T_FUNCTION:
+            return ((WeelFunction) this.objects[a]).equals(this.objects[b]);
+        case T_OBJECT:
+            return this.objects[a].equals(this.objects[b]);
         }
         return false;
     }
@@ -807,13 +1053,13 @@ public final class WeelRuntime
      */
     public boolean beginForLoop(final int var)
     {
-        final int index = var + this.frameStart[this.fp];
-        final double step = this.stack[this.sp].number;
-        final double lim = this.stack[this.sp - 1].number;
-        final Value value = this.stack[index];
-        if (value.type != ValueType.NUMBER)
+        final int index = var + this.base;
+        final double step = this.numbers[this.sp];
+        final double lim = this.numbers[this.sp - 1];
+        if (this.types[index] != T_NUMBER)
             throw new WeelException("FOR variable must be a number.");
-        return step < 0 ? value.number >= lim : value.number <= lim;
+        final double value = this.numbers[index];
+        return step < 0 ? value >= lim : value <= lim;
     }
 
     /**
@@ -825,10 +1071,140 @@ public final class WeelRuntime
      */
     public boolean endForLoop(final int var)
     {
-        final double step = this.stack[this.sp].number;
-        final double value = this.stack[var + this.frameStart[this.fp]].number += step;
-        return step < 0 ? value >= this.stack[this.sp - 1].number
-                : value <= this.stack[this.sp - 1].number;
+        final double step = this.numbers[this.sp];
+        final double value = this.numbers[var + this.base] += step;
+        return step < 0 ? value >= this.numbers[this.sp - 1]
+                : value <= this.numbers[this.sp - 1];
+    }
+
+    /**
+     * Tests a for loop variable which is kept outside of the Weel stack.
+     *
+     * <p>
+     * <code>..., limit, step &rArr; ..., limit, step</code>
+     * </p>
+     *
+     * @param value
+     *            The loop variable's value.
+     * @return <code>true</code> if the loop must be continued.
+     */
+    public boolean testForLoop(final double value)
+    {
+        return this.numbers[this.sp] < 0 ? value >= this.numbers[this.sp - 1]
+                : value <= this.numbers[this.sp - 1];
+    }
+
+    /**
+     * Gets the step of the current for loop.
+     *
+     * <p>
+     * <code>..., limit, step &rArr; ..., limit, step</code>
+     * </p>
+     *
+     * @return The step.
+     */
+    public double getForLoopStep()
+    {
+        return this.numbers[this.sp];
+    }
+
+    /**
+     * Profiles a call of a function compiled in tiered mode.
+     *
+     * @param id
+     *            The profile id.
+     * @return <code>true</code> if the call was handled by optimized code.
+     * @see Weel#setTieredCompilation(boolean)
+     */
+    public boolean enterProfile(final int id)
+    {
+        final WeelProfile p = this.mother.profiles.get(id);
+        final WeelInvoker inv = p.optimized;
+        if (inv != null)
+        {
+            inv.invoke(this);
+            return true;
+        }
+        this.profileArguments(p);
+        return p.enter(this);
+    }
+
+    /**
+     * Records the type of the value on top of the stack.
+     *
+     * @param id
+     *            The profile id.
+     * @param site
+     *            The profiled instruction.
+     */
+    public void profileType(final int id, final int site)
+    {
+        this.mother.profiles.get(id).types[site] |= 1 << this.types[this.sp];
+    }
+
+    /**
+     * Checks if the value on top of the stack is a number.
+     *
+     * @return <code>true</code> if so.
+     */
+    public boolean isNumberOnTop()
+    {
+        return this.types[this.sp] == T_NUMBER;
+    }
+
+    /**
+     * Checks if the given function arguments on the stack are numbers.
+     *
+     * @param args
+     *            Number of arguments.
+     * @param mask
+     *            Bit mask of the arguments to check.
+     * @return <code>true</code> if they are numbers.
+     */
+    public boolean checkNumberArguments(final int args, final int mask)
+    {
+        final int base = this.sp - args + 1;
+        for (int i = 0; i < args; i++)
+        {
+            if ((mask & (1 << i)) != 0 && this.types[base + i] != T_NUMBER)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called by optimized code when a type guard failed.
+     *
+     * @param id
+     *            The profile id.
+     * @param site
+     *            The profiled instruction or <code>-1</code> for the
+     *            function arguments.
+     */
+    public void deoptimize(final int id, final int site)
+    {
+        final WeelProfile p = this.mother.profiles.get(id);
+        if (site < 0)
+            this.profileArguments(p);
+        else
+            p.types[site] |= 1 << this.types[this.sp];
+        p.deoptimized();
+    }
+
+    /**
+     * Records the types of the arguments on the stack.
+     *
+     * @param profile
+     *            The profile.
+     */
+    private void profileArguments(final WeelProfile profile)
+    {
+        final int[] args = profile.arguments;
+        final int base = this.sp - profile.function.arguments + 1;
+        for (int i = 0; i < args.length; i++)
+        {
+            args[i] |= 1 << this.types[base + i];
+        }
     }
 
     /**
@@ -840,9 +1216,9 @@ public final class WeelRuntime
      */
     public void prepareForEach()
     {
-        final ValueMap map = this.stack[this.sp].getMap();
-        this.stack[this.sp].type = ValueType.OBJECT;
-        this.stack[this.sp].object = map.createIterator();
+        final ValueMap map = this.map(this.sp);
+        this.types[this.sp] = T_OBJECT;
+        this.objects[this.sp] = map.createIterator();
     }
 
     /**
@@ -856,11 +1232,12 @@ public final class WeelRuntime
      */
     public boolean doForEach()
     {
-        final ValueMapIterator iterator = (ValueMapIterator) this.stack[this.sp]
-                .getObject();
-        if (!iterator.next(this.stack[this.sp + 1], this.stack[this.sp + 2]))
+        final ValueMapIterator iterator = (ValueMapIterator) this
+                .object(this.sp);
+        if (!iterator.next(this.tmpKey, this.tmpValue))
             return false;
-        this.sp += 2;
+        this.set(++this.sp, this.tmpKey);
+        this.set(++this.sp, this.tmpValue);
         return true;
     }
 
@@ -873,10 +1250,9 @@ public final class WeelRuntime
      */
     public void strcat()
     {
-        final Value b = this.stack[this.sp--];
-        final Value a = this.stack[this.sp];
-        a.object = a.toString() + b.toString();
-        a.type = ValueType.STRING;
+        final int b = this.sp--, a = this.sp;
+        this.objects[a] = this.toString(a) + this.toString(b);
+        this.types[a] = T_STRING;
     }
 
     /**
@@ -898,13 +1274,14 @@ public final class WeelRuntime
 
         if (a.ordered && b.ordered)
         {
+            final Value v = new Value();
             for (int i = 0; i < a.size; i++)
             {
-                c.append(a.data.get(i));
+                c.append(a.valueAt(i, v));
             }
             for (int i = 0; i < b.size; i++)
             {
-                c.append(b.data.get(i));
+                c.append(b.valueAt(i, v));
             }
         }
         else
@@ -920,8 +1297,8 @@ public final class WeelRuntime
                 c.set(k, v);
             }
         }
-        this.stack[++this.sp].type = ValueType.MAP;
-        this.stack[this.sp].object = c;
+        this.types[++this.sp] = T_MAP;
+        this.objects[this.sp] = c;
     }
 
     /**
@@ -939,7 +1316,7 @@ public final class WeelRuntime
     public void mapcat2()
     {
         final ValueMap b = this.popMap();
-        final ValueMap a = this.stack[this.sp].getMap();
+        final ValueMap a = this.map(this.sp);
 
         if (a.ordered && b.ordered)
         {
@@ -969,9 +1346,8 @@ public final class WeelRuntime
      */
     public void add()
     {
-        final Value b = this.stack[this.sp--];
-        final Value a = this.stack[this.sp];
-        a.number += b.number;
+        final double b = this.numbers[this.sp--];
+        this.numbers[this.sp] += b;
     }
 
     /**
@@ -986,7 +1362,22 @@ public final class WeelRuntime
      */
     public void add(final double operand)
     {
-        this.stack[this.sp].number += operand;
+        this.numbers[this.sp] += operand;
+    }
+
+    /**
+     * Addition with a local variable, same as <code>lloc(var); add()</code>.
+     * 
+     * <p>
+     * <code>..., value &rArr; ..., value + local</code>
+     * </p>
+     * 
+     * @param var
+     *            The index of the local variable.
+     */
+    public void addLocal(final int var)
+    {
+        this.numbers[this.sp] += this.numbers[var + this.base];
     }
 
     /**
@@ -998,9 +1389,8 @@ public final class WeelRuntime
      */
     public void sub()
     {
-        final Value b = this.stack[this.sp--];
-        final Value a = this.stack[this.sp];
-        a.number -= b.number;
+        final double b = this.numbers[this.sp--];
+        this.numbers[this.sp] -= b;
     }
 
     /**
@@ -1015,7 +1405,22 @@ public final class WeelRuntime
      */
     public void sub(final double operand)
     {
-        this.stack[this.sp].number -= operand;
+        this.numbers[this.sp] -= operand;
+    }
+
+    /**
+     * Subtraction with a local variable, same as <code>lloc(var); sub()</code>.
+     * 
+     * <p>
+     * <code>..., value &rArr; ..., value - local</code>
+     * </p>
+     * 
+     * @param var
+     *            The index of the local variable.
+     */
+    public void subLocal(final int var)
+    {
+        this.numbers[this.sp] -= this.numbers[var + this.base];
     }
 
     /**
@@ -1027,9 +1432,8 @@ public final class WeelRuntime
      */
     public void mul()
     {
-        final Value b = this.stack[this.sp--];
-        final Value a = this.stack[this.sp];
-        a.number *= b.number;
+        final double b = this.numbers[this.sp--];
+        this.numbers[this.sp] *= b;
     }
 
     /**
@@ -1044,7 +1448,23 @@ public final class WeelRuntime
      */
     public void mul(final double operand)
     {
-        this.stack[this.sp].number *= operand;
+        this.numbers[this.sp] *= operand;
+    }
+
+    /**
+     * Multiplication with a local variable, same as
+     * <code>lloc(var); mul()</code>.
+     * 
+     * <p>
+     * <code>..., value &rArr; ..., value * local</code>
+     * </p>
+     * 
+     * @param var
+     *            The index of the local variable.
+     */
+    public void mulLocal(final int var)
+    {
+        this.numbers[this.sp] *= this.numbers[var + this.base];
     }
 
     /**
@@ -1056,9 +1476,8 @@ public final class WeelRuntime
      */
     public void div()
     {
-        final Value b = this.stack[this.sp--];
-        final Value a = this.stack[this.sp];
-        a.number /= b.number;
+        final double b = this.numbers[this.sp--];
+        this.numbers[this.sp] /= b;
     }
 
     /**
@@ -1073,7 +1492,22 @@ public final class WeelRuntime
      */
     public void div(final double operand)
     {
-        this.stack[this.sp].number /= operand;
+        this.numbers[this.sp] /= operand;
+    }
+
+    /**
+     * Division with a local variable, same as <code>lloc(var); div()</code>.
+     * 
+     * <p>
+     * <code>..., value &rArr; ..., value / local</code>
+     * </p>
+     * 
+     * @param var
+     *            The index of the local variable.
+     */
+    public void divLocal(final int var)
+    {
+        this.numbers[this.sp] /= this.numbers[var + this.base];
     }
 
     /**
@@ -1085,9 +1519,8 @@ public final class WeelRuntime
      */
     public void mod()
     {
-        final Value b = this.stack[this.sp--];
-        final Value a = this.stack[this.sp];
-        a.number %= b.number;
+        final double b = this.numbers[this.sp--];
+        this.numbers[this.sp] %= b;
     }
 
     /**
@@ -1102,7 +1535,22 @@ public final class WeelRuntime
      */
     public void mod(final double operand)
     {
-        this.stack[this.sp].number %= operand;
+        this.numbers[this.sp] %= operand;
+    }
+
+    /**
+     * Modulo with a local variable, same as <code>lloc(var); mod()</code>.
+     * 
+     * <p>
+     * <code>..., value &rArr; ..., value % local</code>
+     * </p>
+     * 
+     * @param var
+     *            The index of the local variable.
+     */
+    public void modLocal(final int var)
+    {
+        this.numbers[this.sp] %= this.numbers[var + this.base];
     }
 
     /**
@@ -1114,9 +1562,8 @@ public final class WeelRuntime
      */
     public void pow()
     {
-        final Value b = this.stack[this.sp--];
-        final Value a = this.stack[this.sp];
-        a.number = Math.pow(a.number, b.number);
+        final double b = this.numbers[this.sp--];
+        this.numbers[this.sp] = Math.pow(this.numbers[this.sp], b);
     }
 
     /**
@@ -1131,29 +1578,43 @@ public final class WeelRuntime
      */
     public void pow(final double operand)
     {
-        final Value a = this.stack[this.sp];
-        a.number = Math.pow(a.number, operand);
+        this.numbers[this.sp] = Math.pow(this.numbers[this.sp], operand);
     }
 
     /**
-     * Binary and.
+     * Pow with a local variable, same as <code>lloc(var); pow()</code>.
      * 
      * <p>
-     * <code>..., value1, value2 &rArr; ..., value1 &amp; value2 </code>
+     * <code>..., value &rArr; ..., value ** local</code>
      * </p>
      * 
-     * <p>
-     * All binary operations in Weel are performed on 32 Bit integer. As Weel
-     * uses (like most other dynamically types languages) double as its number
-     * type, and doubles only have 52(+1) Bits mantissa, only 32 Bit binary
-     * integer arithmetics makes sense.
-     * </p>
+     * @param var
+     *            The index of the local variable.
+     */
+    public void powLocal(final int var)
+    {
+        this.numbers[this.sp] = Math.pow(this.numbers[this.sp],
+                this.numbers[var + this.base]);
+    }
+
+    /**
+     * Binary and.
+     * 
+     * <p>
+     * <code>..., value1, value2 &rArr; ..., value1 &amp; value2 </code>
+     * </p>
+     * 
+     * <p>
+     * All binary operations in Weel are performed on 32 Bit integer. As Weel
+     * uses (like most other dynamically types languages) double as its number
+     * type, and doubles only have 52(+1) Bits mantissa, only 32 Bit binary
+     * integer arithmetics makes sense.
+     * </p>
      */
     public void and()
     {
-        final Value b = this.stack[this.sp--];
-        final Value a = this.stack[this.sp];
-        a.number = (int) a.number & (int) b.number;
+        final double b = this.numbers[this.sp--];
+        this.numbers[this.sp] = (int) this.numbers[this.sp] & (int) b;
     }
 
     /**
@@ -1167,9 +1628,8 @@ public final class WeelRuntime
      */
     public void or()
     {
-        final Value b = this.stack[this.sp--];
-        final Value a = this.stack[this.sp];
-        a.number = (int) a.number | (int) b.number;
+        final double b = this.numbers[this.sp--];
+        this.numbers[this.sp] = (int) this.numbers[this.sp] | (int) b;
     }
 
     /**
@@ -1183,9 +1643,8 @@ public final class WeelRuntime
      */
     public void xor()
     {
-        final Value b = this.stack[this.sp--];
-        final Value a = this.stack[this.sp];
-        a.number = (int) a.number ^ (int) b.number;
+        final double b = this.numbers[this.sp--];
+        this.numbers[this.sp] = (int) this.numbers[this.sp] ^ (int) b;
     }
 
     /**
@@ -1197,9 +1656,8 @@ public final class WeelRuntime
      */
     public void shr()
     {
-        final Value b = this.stack[this.sp--];
-        final Value a = this.stack[this.sp];
-        a.number = (int) a.number >> (int) b.number;
+        final double b = this.numbers[this.sp--];
+        this.numbers[this.sp] = (int) this.numbers[this.sp] >> (int) b;
     }
 
     /**
@@ -1211,9 +1669,8 @@ public final class WeelRuntime
      */
     public void ushr()
     {
-        final Value b = this.stack[this.sp--];
-        final Value a = this.stack[this.sp];
-        a.number = (int) a.number >>> (int) b.number;
+        final double b = this.numbers[this.sp--];
+        this.numbers[this.sp] = (int) this.numbers[this.sp] >>> (int) b;
     }
 
     /**
@@ -1225,9 +1682,8 @@ public final class WeelRuntime
      */
     public void shl()
     {
-        final Value b = this.stack[this.sp--];
-        final Value a = this.stack[this.sp];
-        a.number = (int) a.number << (int) b.number;
+        final double b = this.numbers[this.sp--];
+        this.numbers[this.sp] = (int) this.numbers[this.sp] << (int) b;
     }
 
     /**
@@ -1241,8 +1697,7 @@ public final class WeelRuntime
      */
     public void not()
     {
-        final Value a = this.stack[this.sp];
-        a.number = ~(int) a.number;
+        this.numbers[this.sp] = ~(int) this.numbers[this.sp];
     }
 
     /**
@@ -1254,8 +1709,7 @@ public final class WeelRuntime
      */
     public void neg()
     {
-        final Value a = this.stack[this.sp];
-        a.number = -a.number;
+        this.numbers[this.sp] = -this.numbers[this.sp];
     }
 
     /**
@@ -1267,8 +1721,8 @@ public final class WeelRuntime
      */
     public void lnot()
     {
-        this.stack[this.sp].number = this.stack[this.sp].toBoolean() ? 0 : -1;
-        this.stack[this.sp].type = ValueType.NUMBER;
+        this.numbers[this.sp] = this.toBoolean(this.sp) ? 0 : -1;
+        this.types[this.sp] = T_NUMBER;
     }
 
     /**
@@ -1280,7 +1734,7 @@ public final class WeelRuntime
      */
     public void load()
     {
-        this.stack[++this.sp].type = ValueType.NULL;
+        this.setNull(++this.sp);
     }
 
     /**
@@ -1295,8 +1749,8 @@ public final class WeelRuntime
      */
     public void load(final float value)
     {
-        this.stack[++this.sp].type = ValueType.NUMBER;
-        this.stack[this.sp].number = value;
+        this.types[++this.sp] = T_NUMBER;
+        this.numbers[this.sp] = value;
     }
 
     /**
@@ -1311,8 +1765,8 @@ public final class WeelRuntime
      */
     public void load(final double value)
     {
-        this.stack[++this.sp].type = ValueType.NUMBER;
-        this.stack[this.sp].number = value;
+        this.types[++this.sp] = T_NUMBER;
+        this.numbers[this.sp] = value;
     }
 
     /**
@@ -1327,8 +1781,8 @@ public final class WeelRuntime
      */
     public void load(final int value)
     {
-        this.stack[++this.sp].type = ValueType.NUMBER;
-        this.stack[this.sp].number = value;
+        this.types[++this.sp] = T_NUMBER;
+        this.numbers[this.sp] = value;
     }
 
     /**
@@ -1343,8 +1797,8 @@ public final class WeelRuntime
      */
     public void load(final boolean value)
     {
-        this.stack[++this.sp].type = ValueType.NUMBER;
-        this.stack[this.sp].number = value ? -1 : 0;
+        this.types[++this.sp] = T_NUMBER;
+        this.numbers[this.sp] = value ? -1 : 0;
     }
 
     /**
@@ -1361,12 +1815,12 @@ public final class WeelRuntime
     {
         if (value != null)
         {
-            this.stack[++this.sp].type = ValueType.STRING;
-            this.stack[this.sp].object = value;
+            this.types[++this.sp] = T_STRING;
+            this.objects[this.sp] = value;
         }
         else
         {
-            this.stack[++this.sp].type = ValueType.NULL;
+            this.setNull(++this.sp);
         }
     }
 
@@ -1384,12 +1838,12 @@ public final class WeelRuntime
     {
         if (value != null)
         {
-            this.stack[++this.sp].type = ValueType.MAP;
-            this.stack[this.sp].object = value;
+            this.types[++this.sp] = T_MAP;
+            this.objects[this.sp] = value;
         }
         else
         {
-            this.stack[++this.sp].type = ValueType.NULL;
+            this.setNull(++this.sp);
         }
     }
 
@@ -1407,12 +1861,12 @@ public final class WeelRuntime
     {
         if (value != null)
         {
-            this.stack[++this.sp].type = ValueType.FUNCTION;
-            this.stack[this.sp].object = value;
+            this.types[++this.sp] = T_FUNCTION;
+            this.objects[this.sp] = value;
         }
         else
         {
-            this.stack[++this.sp].type = ValueType.NULL;
+            this.setNull(++this.sp);
         }
     }
 
@@ -1428,8 +1882,8 @@ public final class WeelRuntime
      */
     public void load(final Object value)
     {
-        this.stack[++this.sp].type = ValueType.OBJECT;
-        this.stack[this.sp].object = value;
+        this.types[++this.sp] = T_OBJECT;
+        this.objects[this.sp] = value;
     }
 
     /**
@@ -1446,11 +1900,11 @@ public final class WeelRuntime
     {
         if (value != null)
         {
-            value.copyTo(this.stack[++this.sp]);
+            this.set(++this.sp, value);
         }
         else
         {
-            this.stack[++this.sp].type = ValueType.NULL;
+            this.setNull(++this.sp);
         }
     }
 
@@ -1466,8 +1920,8 @@ public final class WeelRuntime
      */
     public void loadFunc(final int index)
     {
-        this.stack[++this.sp].type = ValueType.FUNCTION;
-        this.stack[this.sp].object = this.mother.functions.get(index);
+        this.types[++this.sp] = T_FUNCTION;
+        this.objects[this.sp] = this.mother.functions.get(index);
     }
 
     /**
@@ -1480,9 +1934,34 @@ public final class WeelRuntime
      */
     public void openFrame(final int args, final int locals)
     {
-        this.frameStart[++this.fp] = this.sp - args + 1;
+        this.openFrame(args, locals, 0);
+    }
+
+    /**
+     * Opens a function frame, growing the stacks if needed.
+     * 
+     * @param args
+     *            Number of arguments.
+     * @param locals
+     *            Number of locals.
+     * @param depth
+     *            Maximum stack depth the function uses.
+     * @throws WeelException
+     *             If a stack size limit is reached.
+     */
+    public void openFrame(final int args, final int locals, final int depth)
+    {
+        final int top = this.sp + locals + depth;
+        if (top + STACK_SLACK >= this.types.length)
+            this.growStack(top + 2);
+        if (this.fp + 1 == this.frameStart.length)
+            this.growFrames();
+        this.frameStart[++this.fp] = this.base;
         this.frameSize[this.fp] = args + locals;
-        this.sp += locals;
+        this.base = this.sp - args + 1;
+        // Slots above the stack pointer only have their references cleared
+        for (int i = 0; i < locals; i++)
+            this.types[++this.sp] = T_NULL;
     }
 
     /**
@@ -1493,12 +1972,12 @@ public final class WeelRuntime
      */
     public void closeFrame(final int depth)
     {
-        final int pops = this.frameSize[this.fp--];
-        for (int i = -depth; i < pops; i++)
-        {
-            this.stack[this.sp - i].setNull();
-        }
+        final int pops = this.frameSize[this.fp];
+        this.base = this.frameStart[this.fp--];
+        this.clearReferences(this.sp - pops + 1, this.sp + depth + 1);
         this.sp -= pops;
+        if (this.fp < 0 && this.types.length > SHRINK_STACK_SIZE)
+            this.shrinkStack();
     }
 
     /**
@@ -1509,18 +1988,35 @@ public final class WeelRuntime
      */
     public void closeFrameRet(final int depth)
     {
-        this.stack[this.sp].copyTo(this.stack[this.frameStart[this.fp]]);
-        final int pops = this.frameSize[this.fp--];
-        for (int i = -depth; i < pops; i++)
+        this.move(this.sp, this.base);
+        final int pops = this.frameSize[this.fp];
+        this.base = this.frameStart[this.fp--];
+        this.clearReferences(this.sp - pops + 1, this.sp + depth + 1);
+        this.sp -= pops;
+        if (this.fp < 0 && this.types.length > SHRINK_STACK_SIZE)
+            this.shrinkStack();
+    }
+
+    /**
+     * Drops all function frames above <code>fp</code>, used to recover from
+     * aborted calls.
+     * 
+     * @param fp
+     *            The frame pointer to return to.
+     */
+    void unwindFrames(final int fp)
+    {
+        if (this.fp > fp)
         {
-            this.stack[this.sp - i].setNull();
+            this.base = this.frameStart[fp + 1];
+            this.fp = fp;
         }
-        this.sp -= pops;
     }
 
     /**
      * Calls a Weel function defined by a value on the stack. Stack calls are
-     * significantly slower than 'normal' calls.
+     * significantly slower than 'normal' calls. Overloads are resolved through
+     * the function's {@link WeelOverloadCache}.
      * 
      * <p>
      * <code>..., function, [arguments] &rArr; ..., [return value]</code>
@@ -1536,17 +2032,20 @@ public final class WeelRuntime
      */
     public void stackCall(final int args, final boolean shouldReturn)
     {
-        WeelFunction func = this.stack[this.sp - args].getFunction();
+        WeelFunction func = this.function(this.sp - args);
 
         if (func.arguments != args)
         {
             // Is there a valid overloaded function?
-            final WeelFunction overloaded = this.mother.findFunction(func.name,
+            WeelOverloadCache cache = func.overloads;
+            if (cache == null)
+                cache = func.overloads = new WeelOverloadCache();
+            final WeelFunction overloaded = cache.resolve(this.mother, func,
                     args);
             if (overloaded != null)
             {
                 // Yes, use it
-                func = (WeelFunction) (this.stack[this.sp - args].object = overloaded);
+                func = (WeelFunction) (this.objects[this.sp - args] = overloaded);
             }
             else
             {
@@ -1563,7 +2062,7 @@ public final class WeelRuntime
         {
             if (shouldReturn)
             {
-                this.stack[this.sp].copyTo(this.stack[this.sp - 1]);
+                this.move(this.sp, this.sp - 1);
                 --this.sp;
             }
             else
@@ -1573,7 +2072,7 @@ public final class WeelRuntime
         }
         else if (shouldReturn)
         {
-            this.stack[this.sp].setNull();
+            this.setNull(this.sp);
         }
         else
         {
@@ -1581,6 +2080,44 @@ public final class WeelRuntime
         }
     }
 
+    /**
+     * Calls the function with the given index through its invoker. Used for
+     * functions whose code lives in its own class loader.
+     * 
+     * <p>
+     * <code>..., [arguments] &rArr; ..., [return value]</code>
+     * </p>
+     * 
+     * @param index
+     *            The function index.
+     */
+    public void call(final int index)
+    {
+        this.mother.functions.get(index).invoke(this);
+    }
+
+    /**
+     * Compiles the function with the given index if it still is lazy and
+     * calls it. Called by the stubs of lazily compiled functions.
+     * 
+     * <p>
+     * <code>..., [arguments] &rArr; ..., [return value]</code>
+     * </p>
+     * 
+     * @param index
+     *            The function index.
+     * @see Weel#setLazyCompilation(boolean)
+     */
+    public void lazyCall(final int index)
+    {
+        final WeelFunction func = this.mother.functions.get(index);
+        final WeelLazyCode lazy = func.lazy;
+        if (lazy != null)
+            lazy.compile();
+        func.invoke(this);
+    }
+
+
     /**
      * Performs a special call.
      * 
@@ -1598,11 +2135,34 @@ public final class WeelRuntime
     public void specialCall(final String name, final int args,
             final boolean shouldReturn)
     {
-        final TypeFunctions funcs = this.typeFunctions[this.stack[this.sp
-                - args].type.ordinal()];
-        final WeelFunction func = funcs.findFunction(name);
+        this.specialCall(this.mother.getTypeFunctionSlot(name), args,
+                shouldReturn);
+    }
+
+    /**
+     * Performs a special call.
+     * 
+     * <p>
+     * <code>..., value, [arguments] &rArr; ..., [return value]</code>
+     * </p>
+     * 
+     * @param slot
+     *            The slot of the function.
+     * @param args
+     *            The number of arguments.
+     * @param shouldReturn
+     *            Flags indicating that we need a return value.
+     * @see Weel#getTypeFunctionSlot(String)
+     */
+    public void specialCall(final int slot, final int args,
+            final boolean shouldReturn)
+    {
+        final TypeFunctions funcs = this.typeFunctions[this.types[this.sp
+                - args]];
+        final WeelFunction func = funcs.getFunction(slot);
         if (func == null)
         {
+            final String name = this.mother.getTypeFunctionSlotName(slot);
             throw new WeelException("Unknown support function '"
                     + name.substring(0, name.lastIndexOf('#')) + "(" + args
                     + ")'");
@@ -1616,7 +2176,7 @@ public final class WeelRuntime
         }
         else if (!func.returnsValue && shouldReturn)
         {
-            this.stack[++this.sp].setNull();
+            this.setNull(++this.sp);
         }
     }
 
@@ -1629,8 +2189,24 @@ public final class WeelRuntime
      */
     public void createMap()
     {
-        this.stack[++this.sp].type = ValueType.MAP;
-        this.stack[this.sp].object = new ValueMap();
+        this.types[++this.sp] = T_MAP;
+        this.objects[this.sp] = new ValueMap();
+    }
+
+    /**
+     * Creates a copy of a frozen constant map.
+     * 
+     * <p>
+     * <code>... &rArr; ..., map</code>
+     * </p>
+     * 
+     * @param constant
+     *            The constant map.
+     */
+    public void createMap(final ValueMap constant)
+    {
+        this.types[++this.sp] = T_MAP;
+        this.objects[this.sp] = constant.cloneShared();
     }
 
     /**
@@ -1645,9 +2221,52 @@ public final class WeelRuntime
      */
     public void getMap()
     {
-        final ValueMap map = this.stack[this.sp - 1].getMap();
-        map.get(this.stack[this.sp], this.stack[this.sp - 1]);
-        --this.sp;
+        final ValueMap map = this.map(this.sp - 1);
+        if (map.numbers != null && this.types[this.sp] == T_NUMBER)
+        {
+            final int idx = (int) this.numbers[this.sp];
+            if (idx >= 0 && idx < map.arraySize)
+            {
+                this.types[--this.sp] = T_NUMBER;
+                this.numbers[this.sp] = map.numbers[idx];
+                return;
+            }
+        }
+        map.get(this.get(this.sp, this.tmpKey), this.tmpValue);
+        this.set(--this.sp, this.tmpValue);
+    }
+
+    /**
+     * Gets a value from a map using two local variables, same as
+     * <code>lloc(map); lloc(index); getMap();</code>.
+     * 
+     * <p>
+     * <code>... &rArr; ..., value</code>
+     * </p>
+     * 
+     * @param mapVar
+     *            The index of the local variable holding the map.
+     * @param indexVar
+     *            The index of the local variable holding the index.
+     * @throws WeelException
+     *             If the 'map' is not a ValueMap.
+     */
+    public void getMapLocal(final int mapVar, final int indexVar)
+    {
+        final int index = indexVar + this.base;
+        final ValueMap map = this.map(mapVar + this.base);
+        if (map.numbers != null && this.types[index] == T_NUMBER)
+        {
+            final int idx = (int) this.numbers[index];
+            if (idx >= 0 && idx < map.arraySize)
+            {
+                this.types[++this.sp] = T_NUMBER;
+                this.numbers[this.sp] = map.numbers[idx];
+                return;
+            }
+        }
+        map.get(this.get(index, this.tmpKey), this.tmpValue);
+        this.set(++this.sp, this.tmpValue);
     }
 
     /**
@@ -1664,8 +2283,14 @@ public final class WeelRuntime
      */
     public void getMap(final int index)
     {
-        final ValueMap map = this.stack[this.sp].getMap();
-        map.get(index, this.stack[this.sp]);
+        final ValueMap map = this.map(this.sp);
+        if (map.numbers != null && index >= 0 && index < map.arraySize)
+        {
+            this.types[this.sp] = T_NUMBER;
+            this.numbers[this.sp] = map.numbers[index];
+            return;
+        }
+        this.set(this.sp, map.get(index, this.tmpValue));
     }
 
     /**
@@ -1682,8 +2307,41 @@ public final class WeelRuntime
      */
     public void getMap(final String index)
     {
-        final ValueMap map = this.stack[this.sp].getMap();
-        map.get(index, this.stack[this.sp]);
+        final ValueMap map = this.map(this.sp);
+        this.set(this.sp, map.get(index, this.tmpValue));
+    }
+
+    /**
+     * Gets a value from a map using an inline cache.
+     * 
+     * <p>
+     * <code>..., map &rArr; ..., value</code>
+     * </p>
+     * 
+     * @param index
+     *            The index.
+     * @param sites
+     *            The inline caches of the calling class.
+     * @param site
+     *            The index of the inline cache.
+     * @throws WeelException
+     *             If the 'map' is not a ValueMap.
+     */
+    public void getMap(final String index, final WeelMapSite[] sites,
+            final int site)
+    {
+        final ValueMap map = this.map(this.sp);
+        final WeelMapSite s = sites[site];
+        final Value v = s != null ? s.get(map) : null;
+        if (v != null)
+        {
+            this.set(this.sp, v);
+        }
+        else
+        {
+            this.set(this.sp, map.get(index, this.tmpValue));
+            WeelMapSite.cache(sites, site, map.shape, index);
+        }
     }
 
     /**
@@ -1698,10 +2356,11 @@ public final class WeelRuntime
      */
     public void getMapOop()
     {
-        final ValueMap map = this.stack[this.sp - 1].getMap();
-        map.get(this.stack[this.sp], this.stack[this.sp - 1]);
-        this.stack[this.sp].type = ValueType.MAP;
-        this.stack[this.sp].object = map;
+        final ValueMap map = this.map(this.sp - 1);
+        map.get(this.get(this.sp, this.tmpKey), this.tmpValue);
+        this.set(this.sp - 1, this.tmpValue);
+        this.types[this.sp] = T_MAP;
+        this.objects[this.sp] = map;
     }
 
     /**
@@ -1718,10 +2377,45 @@ public final class WeelRuntime
      */
     public void getMapOop(final String index)
     {
-        final ValueMap map = this.stack[this.sp].getMap();
-        map.get(index, this.stack[this.sp]);
-        this.stack[++this.sp].type = ValueType.MAP;
-        this.stack[this.sp].object = map;
+        final ValueMap map = this.map(this.sp);
+        this.set(this.sp, map.get(index, this.tmpValue));
+        this.types[++this.sp] = T_MAP;
+        this.objects[this.sp] = map;
+    }
+
+    /**
+     * Gets a value from a map prepared for OOP calls using an inline cache.
+     * 
+     * <p>
+     * <code>..., map &rArr; ..., value, map</code>
+     * </p>
+     * 
+     * @param index
+     *            The index.
+     * @param sites
+     *            The inline caches of the calling class.
+     * @param site
+     *            The index of the inline cache.
+     * @throws WeelException
+     *             If the 'map' is not a ValueMap.
+     */
+    public void getMapOop(final String index, final WeelMapSite[] sites,
+            final int site)
+    {
+        final ValueMap map = this.map(this.sp);
+        final WeelMapSite s = sites[site];
+        final Value v = s != null ? s.get(map) : null;
+        if (v != null)
+        {
+            this.set(this.sp, v);
+        }
+        else
+        {
+            this.set(this.sp, map.get(index, this.tmpValue));
+            WeelMapSite.cache(sites, site, map.shape, index);
+        }
+        this.types[++this.sp] = T_MAP;
+        this.objects[this.sp] = map;
     }
 
     /**
@@ -1738,10 +2432,10 @@ public final class WeelRuntime
      */
     public void getMapOop(final int index)
     {
-        final ValueMap map = this.stack[this.sp].getMap();
-        map.get(index, this.stack[this.sp]);
-        this.stack[++this.sp].type = ValueType.MAP;
-        this.stack[this.sp].object = map;
+        final ValueMap map = this.map(this.sp);
+        this.set(this.sp, map.get(index, this.tmpValue));
+        this.types[++this.sp] = T_MAP;
+        this.objects[this.sp] = map;
     }
 
     /**
@@ -1756,8 +2450,21 @@ public final class WeelRuntime
      */
     public void setMap()
     {
-        final ValueMap map = this.stack[this.sp - 2].getMap();
-        map.set(this.stack[this.sp - 1], this.stack[this.sp]);
+        final ValueMap map = this.map(this.sp - 2);
+        if (map.numbers != null && !map.shared
+                && this.types[this.sp - 1] == T_NUMBER
+                && this.types[this.sp] == T_NUMBER)
+        {
+            final int idx = (int) this.numbers[this.sp - 1];
+            if (idx >= 0 && idx < map.arraySize)
+            {
+                map.numbers[idx] = this.numbers[this.sp];
+                this.sp -= 3;
+                return;
+            }
+        }
+        map.set(this.get(this.sp - 1, this.tmpKey),
+                this.get(this.sp, this.tmpValue));
         this.sp -= 3;
     }
 
@@ -1775,8 +2482,8 @@ public final class WeelRuntime
      */
     public void setMap(final int index)
     {
-        final ValueMap map = this.stack[this.sp - 1].getMap();
-        map.set(index, this.stack[this.sp]);
+        final ValueMap map = this.map(this.sp - 1);
+        map.set(index, this.get(this.sp, this.tmpValue));
         this.sp -= 2;
     }
 
@@ -1794,8 +2501,42 @@ public final class WeelRuntime
      */
     public void setMap(final String index)
     {
-        final ValueMap map = this.stack[this.sp - 1].getMap();
-        map.set(index, this.stack[this.sp]);
+        final ValueMap map = this.map(this.sp - 1);
+        map.set(index, this.get(this.sp, this.tmpValue));
+        this.sp -= 2;
+    }
+
+    /**
+     * Sets a value in a map using an inline cache.
+     * 
+     * <p>
+     * <code>..., map, value &rArr; ...</code>
+     * </p>
+     * 
+     * @param index
+     *            The index.
+     * @param sites
+     *            The inline caches of the calling class.
+     * @param site
+     *            The index of the inline cache.
+     * @throws WeelException
+     *             If the 'map' is not a ValueMap.
+     */
+    public void setMap(final String index, final WeelMapSite[] sites,
+            final int site)
+    {
+        final ValueMap map = this.map(this.sp - 1);
+        final Value v = this.get(this.sp, this.tmpValue);
+        final WeelMapSite s = sites[site];
+        if (s == null || !s.set(map, v))
+        {
+            final ValueMapShape shape = map.shape;
+            map.set(index, v);
+            if (map.shape == shape)
+                WeelMapSite.cache(sites, site, shape, index);
+            else
+                WeelMapSite.cacheTransition(sites, site, shape, map.shape);
+        }
         this.sp -= 2;
     }
 
@@ -1811,7 +2552,7 @@ public final class WeelRuntime
      */
     public void appendMap()
     {
-        this.stack[this.sp - 1].getMap().append(this.stack[this.sp]);
+        this.map(this.sp - 1).append(this.get(this.sp, this.tmpValue));
         this.sp -= 2;
     }
 
@@ -1839,7 +2580,7 @@ public final class WeelRuntime
      */
     public double popNumber()
     {
-        return this.stack[this.sp--].getNumber();
+        return this.number(this.sp--);
     }
 
     /**
@@ -1855,7 +2596,7 @@ public final class WeelRuntime
      */
     public String popString()
     {
-        return this.stack[this.sp--].getString();
+        return this.string(this.sp--);
     }
 
     /**
@@ -1869,7 +2610,7 @@ public final class WeelRuntime
      */
     public String popToString()
     {
-        return this.stack[this.sp--].toString();
+        return this.toString(this.sp--);
     }
 
     /**
@@ -1883,7 +2624,7 @@ public final class WeelRuntime
      */
     public ValueType popType()
     {
-        return this.stack[this.sp--].type;
+        return TYPES[this.types[this.sp--]];
     }
 
     /**
@@ -1897,7 +2638,9 @@ public final class WeelRuntime
      */
     public double popSize()
     {
-        return this.stack[this.sp--].size();
+        final int index = this.sp--;
+        return Value.size(TYPES[this.types[index]], this.numbers[index],
+                this.objects[index]);
     }
 
     /**
@@ -1913,7 +2656,7 @@ public final class WeelRuntime
      */
     public ValueMap popMap()
     {
-        return this.stack[this.sp--].getMap();
+        return this.map(this.sp--);
     }
 
     /**
@@ -1929,7 +2672,7 @@ public final class WeelRuntime
      */
     public WeelFunction popFunction()
     {
-        return this.stack[this.sp--].getFunction();
+        return this.function(this.sp--);
     }
 
     /**
@@ -1945,7 +2688,7 @@ public final class WeelRuntime
      */
     public Object popObject()
     {
-        return this.stack[this.sp--].getObject();
+        return this.object(this.sp--);
     }
 
     /**
@@ -1960,7 +2703,7 @@ public final class WeelRuntime
      */
     public double getNumberLocal(final int var)
     {
-        return this.stack[var + this.frameStart[this.fp]].getNumber();
+        return this.number(var + this.base);
     }
 
     /**
@@ -1975,7 +2718,7 @@ public final class WeelRuntime
      */
     public boolean getBooleanLocal(final int var)
     {
-        return this.stack[var + this.frameStart[this.fp]].toBoolean();
+        return this.toBoolean(var + this.base);
     }
 
     /**
@@ -1990,8 +2733,8 @@ public final class WeelRuntime
      */
     public String getStringLocal(final int var)
     {
-        final Value value = this.stack[var + this.frameStart[this.fp]];
-        return value.type == ValueType.NULL ? null : value.getString();
+        final int index = var + this.base;
+        return this.types[index] == T_NULL ? null : this.string(index);
     }
 
     /**
@@ -2006,8 +2749,8 @@ public final class WeelRuntime
      */
     public ValueMap getMapLocal(final int var)
     {
-        final Value value = this.stack[var + this.frameStart[this.fp]];
-        return value.type == ValueType.NULL ? null : value.getMap();
+        final int index = var + this.base;
+        return this.types[index] == T_NULL ? null : this.map(index);
     }
 
     /**
@@ -2022,8 +2765,8 @@ public final class WeelRuntime
      */
     public WeelFunction getFunctionLocal(final int var)
     {
-        final Value value = this.stack[var + this.frameStart[this.fp]];
-        return value.type == ValueType.NULL ? null : value.getFunction();
+        final int index = var + this.base;
+        return this.types[index] == T_NULL ? null : this.function(index);
     }
 
     /**
@@ -2038,8 +2781,8 @@ public final class WeelRuntime
      */
     public Object getObjectLocal(final int var)
     {
-        final Value value = this.stack[var + this.frameStart[this.fp]];
-        return value.type == ValueType.NULL ? null : value.getObject();
+        final int index = var + this.base;
+        return this.types[index] == T_NULL ? null : this.object(index);
     }
 
     /**
@@ -2054,7 +2797,7 @@ public final class WeelRuntime
      */
     public Value getValueLocal(final int var)
     {
-        return this.stack[var + this.frameStart[this.fp]].clone();
+        return this.get(var + this.base, new Value());
     }
 
     /**
@@ -2065,9 +2808,9 @@ public final class WeelRuntime
      */
     public void createClosure(final int index)
     {
-        this.stack[++this.sp].type = ValueType.FUNCTION;
-        this.stack[this.sp].object = this.mother.functions.get(index)
-                .cloneClosure(this);
+        this.types[++this.sp] = T_FUNCTION;
+        this.objects[this.sp] = this.mother.functions.get(index).cloneClosure(
+                this);
     }
 
     /**
@@ -2080,10 +2823,7 @@ public final class WeelRuntime
      */
     public void wipeStack()
     {
-        for (int i = this.stack.length - 1; i > this.sp; i--)
-        {
-            this.stack[i].setNull();
-        }
+        this.setNull(this.sp + 1, this.types.length);
     }
 
     /**
@@ -2123,50 +2863,11 @@ public final class WeelRuntime
             throw new WeelException("Argument count mismatch");
         }
 
+        if (this.sp + args.length + STACK_SLACK >= this.types.length)
+            this.growStack(this.sp + args.length + 1);
         for (final Object o : args)
         {
-            if (o == null)
-            {
-                this.load();
-                continue;
-            }
-            final Class<?> oc = o.getClass();
-            if (oc == Double.class)
-            {
-                this.load((double) ((Double) o));
-            }
-            else if (oc == Float.class)
-            {
-                this.load((float) ((Float) o));
-            }
-            else if (oc == Integer.class)
-            {
-                this.load((int) ((Integer) o));
-            }
-            else if (oc == Short.class)
-            {
-                this.load((int) ((Short) o));
-            }
-            else if (oc == Byte.class)
-            {
-                this.load((int) ((Byte) o));
-            }
-            else if (oc == Character.class)
-            {
-                this.load((int) ((Character) o));
-            }
-            else if (oc == String.class)
-            {
-                this.load((String) o);
-            }
-            else if (oc == ValueMap.class)
-            {
-                this.load((ValueMap) o);
-            }
-            else
-            {
-                this.load(o);
-            }
+            this.loadBoxed(o);
         }
 
         function.invoke(this);
@@ -2177,6 +2878,99 @@ public final class WeelRuntime
         return null;
     }
 
+    /**
+     * Loads a Java object onto the Weel stack, unboxing numbers and booleans
+     * and recognizing CharSequences and ValueMaps.
+     * 
+     * <p>
+     * <code>... &rArr; ..., value</code>
+     * </p>
+     * 
+     * @param o
+     *            The object, may be <code>null</code>.
+     */
+    public void loadBoxed(final Object o)
+    {
+        if (o == null)
+        {
+            this.load();
+            return;
+        }
+        final Class<?> oc = o.getClass();
+        if (oc == Double.class)
+        {
+            this.load((double) ((Double) o));
+        }
+        else if (oc == Float.class)
+        {
+            this.load((float) ((Float) o));
+        }
+        else if (oc == Integer.class)
+        {
+            this.load((int) ((Integer) o));
+        }
+        else if (oc == Short.class)
+        {
+            this.load((int) ((Short) o));
+        }
+        else if (oc == Byte.class)
+        {
+            this.load((int) ((Byte) o));
+        }
+        else if (oc == Character.class)
+        {
+            this.load((int) ((Character) o));
+        }
+        else if (oc == String.class)
+        {
+            this.load((String) o);
+        }
+        else if (oc == ValueMap.class)
+        {
+            this.load((ValueMap) o);
+        }
+        else if (oc == Boolean.class)
+        {
+            this.load((boolean) ((Boolean) o));
+        }
+        else if (o instanceof Number)
+        {
+            this.load(((Number) o).doubleValue());
+        }
+        else if (o instanceof CharSequence)
+        {
+            this.load(o.toString());
+        }
+        else
+        {
+            this.load(o);
+        }
+    }
+
+    /**
+     * Pops a value from the stack and returns it as a Java object. Numbers
+     * are returned as Doubles, <code>null</code> as <code>null</code>.
+     * 
+     * <p>
+     * <code>..., value &rArr; ...</code>
+     * </p>
+     * 
+     * @return The object.
+     */
+    public Object popBoxed()
+    {
+        final int index = this.sp--;
+        switch (this.types[index])
+        {
+        case T_NULL:
+            return null;
+        case T_NUMBER:
+            return this.numbers[index];
+        default:
+            return this.objects[index];
+        }
+    }
+
     /**
      * Initializes a virtual function. Called from invokers only.
      * 
@@ -2185,6 +2979,14 @@ public final class WeelRuntime
      */
     void initVirtual(final WeelFunction function)
     {
+        if (this.vp + 1 == this.closureFunctions.length)
+        {
+            final int max = this.mother.closureStackSize;
+            if (this.closureFunctions.length >= max)
+                throw new WeelException("Closure stack overflow");
+            this.closureFunctions = Arrays.copyOf(this.closureFunctions,
+                    Math.min(max, this.closureFunctions.length * 2));
+        }
         this.closureFunctions[++this.vp] = function;
     }
 
@@ -2205,7 +3007,7 @@ public final class WeelRuntime
      */
     Value gloc(final int var)
     {
-        return this.stack[var + this.frameStart[this.fp]].clone();
+        return this.get(var + this.base, new Value());
     }
 
     /**
@@ -2219,4 +3021,223 @@ public final class WeelRuntime
     {
         return this.closureFunctions[this.vp].environment[var].clone();
     }
+
+    /**
+     * Copies a stack slot into a Value.
+     * 
+     * @param index
+     *            The stack index.
+     * @param out
+     *            The output Value.
+     * @return out.
+     */
+    private Value get(final int index, final Value out)
+    {
+        final byte type = this.types[index];
+        out.type = TYPES[type];
+        out.number = this.numbers[index];
+        out.object = type != T_NUMBER ? this.objects[index] : null;
+        return out;
+    }
+
+    /**
+     * Copies a Value into a stack slot.
+     * 
+     * @param index
+     *            The stack index.
+     * @param value
+     *            The Value.
+     */
+    private void set(final int index, final Value value)
+    {
+        this.types[index] = (byte) value.type.ordinal();
+        this.numbers[index] = value.number;
+        this.objects[index] = value.object;
+    }
+
+    /**
+     * Copies a stack slot into another one.
+     * 
+     * <p>
+     * NUMBERs don't copy the object slot, so a stale reference may survive
+     * until the slot gets overwritten or the frame is closed. Skipping the
+     * reference store keeps the hot arithmetic paths free of GC barriers.
+     * </p>
+     * 
+     * @param from
+     *            The source index.
+     * @param to
+     *            The destination index.
+     */
+    private void move(final int from, final int to)
+    {
+        final byte type = this.types[from];
+        this.types[to] = type;
+        this.numbers[to] = this.numbers[from];
+        if (type != T_NUMBER)
+            this.objects[to] = this.objects[from];
+    }
+
+    /**
+     * Sets a stack slot to NULL.
+     * 
+     * @param index
+     *            The stack index.
+     */
+    private void setNull(final int index)
+    {
+        this.types[index] = T_NULL;
+        this.numbers[index] = 0;
+        this.objects[index] = null;
+    }
+
+    /**
+     * Sets a range of stack slots to NULL.
+     * 
+     * @param from
+     *            The first index (inclusive).
+     * @param to
+     *            The last index (exclusive).
+     */
+    private void setNull(final int from, final int to)
+    {
+        Arrays.fill(this.types, from, to, T_NULL);
+        Arrays.fill(this.numbers, from, to, 0);
+        Arrays.fill(this.objects, from, to, null);
+    }
+
+    /**
+     * Clears the object references of a range of stack slots which are not
+     * used anymore. Types and numbers are left as they are, slots get
+     * initialized when they are pushed.
+     * 
+     * @param from
+     *            The first index (inclusive).
+     * @param to
+     *            The last index (exclusive).
+     */
+    private void clearReferences(final int from, final int to)
+    {
+        final Object[] objs = this.objects;
+        for (int i = from; i < to; i++)
+            objs[i] = null;
+    }
+
+    /**
+     * Returns a boolean interpretation of a stack slot.
+     * 
+     * @param index
+     *            The stack index.
+     * @return The boolean.
+     * @see Value#toBoolean()
+     */
+    private boolean toBoolean(final int index)
+    {
+        switch (this.types[index])
+        {
+        case T_NULL:
+            return false;
+        case T_NUMBER:
+            return this.numbers[index] != 0;
+        default:
+            return Value.toBoolean(TYPES[this.types[index]],
+                    this.numbers[index], this.objects[index]);
+        }
+    }
+
+    /**
+     * Returns a String representation of a stack slot.
+     * 
+     * @param index
+     *            The stack index.
+     * @return The String.
+     * @see Value#toString()
+     */
+    private String toString(final int index)
+    {
+        if (this.types[index] == T_STRING)
+            return (String) this.objects[index];
+        return Value.toString(TYPES[this.types[index]], this.numbers[index],
+                this.objects[index]);
+    }
+
+    /**
+     * Gets the number of a stack slot.
+     * 
+     * @param index
+     *            The stack index.
+     * @return The number.
+     * @throws WeelException
+     *             If the slot is not a NUMBER.
+     */
+    private double number(final int index)
+    {
+        if (this.types[index] != T_NUMBER)
+            throw new WeelException("Value is not a NUMBER");
+        return this.numbers[index];
+    }
+
+    /**
+     * Gets the String of a stack slot.
+     * 
+     * @param index
+     *            The stack index.
+     * @return The String.
+     * @throws WeelException
+     *             If the slot is not a STRING.
+     */
+    private String string(final int index)
+    {
+        if (this.types[index] != T_STRING)
+            throw new WeelException("Value is not a STRING");
+        return (String) this.objects[index];
+    }
+
+    /**
+     * Gets the map of a stack slot.
+     * 
+     * @param index
+     *            The stack index.
+     * @return The ValueMap.
+     * @throws WeelException
+     *             If the slot is not a MAP.
+     */
+    private ValueMap map(final int index)
+    {
+        if (this.types[index] != T_MAP)
+            throw new WeelException("Value is not a MAP");
+        return (ValueMap) this.objects[index];
+    }
+
+    /**
+     * Gets the function of a stack slot.
+     * 
+     * @param index
+     *            The stack index.
+     * @return The WeelFunction.
+     * @throws WeelException
+     *             If the slot is not a FUNCTION.
+     */
+    private WeelFunction function(final int index)
+    {
+        if (this.types[index] != T_FUNCTION)
+            throw new WeelException("Value is not a FUNCTION");
+        return (WeelFunction) this.objects[index];
+    }
+
+    /**
+     * Gets the object of a stack slot.
+     * 
+     * @param index
+     *            The stack index.
+     * @return The Object.
+     * @throws WeelException
+     *             If the slot is not an OBJECT.
+     */
+    private Object object(final int index)
+    {
+        if (this.types[index] != T_OBJECT)
+            throw new WeelException("Value is not an OBJECT");
+        return this.objects[index];
+    }
 }
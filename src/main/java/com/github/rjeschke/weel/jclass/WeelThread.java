@@ -139,24 +139,30 @@ public final class WeelThread
         @Override
         public void run()
         {
-            final WeelRuntime runtime = this.weel.getRuntime();
-
-            this.func.invoke(runtime);
-
-            if (this.finFunc != null)
+            final WeelRuntime runtime = this.weel.acquireRuntime();
+            try
             {
-                if (this.finFunc.getNumArguments() == 1
-                        && !this.func.returnsValue())
-                    runtime.load();
-                else if (this.finFunc.getNumArguments() == 0
-                        && this.func.returnsValue())
-                    runtime.pop1();
-                this.finFunc.invoke(runtime);
+                this.func.invoke(runtime);
+
+                if (this.finFunc != null)
+                {
+                    if (this.finFunc.getNumArguments() == 1
+                            && !this.func.returnsValue())
+                        runtime.load();
+                    else if (this.finFunc.getNumArguments() == 0
+                            && this.func.returnsValue())
+                        runtime.pop1();
+                    this.finFunc.invoke(runtime);
+                }
+                else
+                {
+                    if (this.func.returnsValue())
+                        runtime.pop1();
+                }
             }
-            else
+            finally
             {
-                if (this.func.returnsValue())
-                    runtime.pop1();
+                runtime.release();
             }
         }
     }